@@ -0,0 +1,225 @@
+package webserver;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Accepts connections on a listening socket and hands them to its own group of
+ * worker threads. Several acceptors can listen on the same port with
+ * SO_REUSEPORT, so the kernel spreads the new connections across them. The
+ * workers may also be an executor given by the code that embeds the server,
+ * shared by all the acceptors and not stopped by them.
+ *
+ * @author Ángel Miguélez Millos
+ */
+public class Acceptor implements Runnable {
+
+	private final static int BACKLOG = 1024;
+	private final static long MIN_BACKOFF = 10;		// ms waiting after a failed accept
+	private final static long MAX_BACKOFF = 1000;	// ms waiting at most, doubling from the min
+
+	// SO_REUSEPORT is only available from Java 9 and on some systems
+	private final static SocketOption<Boolean> SO_REUSEPORT = reusePortOption();
+
+	private final int id;
+	private final ServerSocketChannel channel;
+	private final ServerSocket server;
+	private final ExecutorService workers;
+	private final boolean shared;  // the workers belong to the embedding code
+	private final ConnectionFactory factory;
+
+	private volatile boolean running = true;
+
+	/**
+	 * Creates the connection that serves an accepted socket.
+	 */
+	public interface ConnectionFactory {
+
+		/**
+		 * Creates the task that serves a client connection.
+		 *
+		 * @param client socket of the client
+		 * @return the task serving the connection
+		 */
+		Runnable create(Socket client);
+	}
+
+	/**
+	 * Creates a new Acceptor listening on its own socket.
+	 *
+	 * @param id number of the acceptor, used to name its threads
+	 * @param port port to listen, 0 for any free one
+	 * @param reusePort true to bind with SO_REUSEPORT, so other acceptors can
+	 * listen on the same port
+	 * @param workers number of worker threads, 0 to create one per connection
+	 * @param executor runs the connections instead of an own worker group, 
+	 * null to create the group
+	 * @param factory creates the task that serves each connection
+	 * @throws IOException If an I/O error occurs when opening the socket
+	 * @throws UnsupportedOperationException If SO_REUSEPORT is requested and
+	 * not supported
+	 */
+	public Acceptor(int id, int port, boolean reusePort, int workers, ExecutorService executor,
+			ConnectionFactory factory) throws IOException {
+		this.id = id;
+		this.factory = factory;
+		this.shared = executor != null;
+
+		// Open the listening socket
+		channel = ServerSocketChannel.open();
+		if (reusePort) {
+			if (!isReusePortSupported())
+				throw new UnsupportedOperationException("SO_REUSEPORT not supported");
+			channel.setOption(SO_REUSEPORT, true);
+		}
+		channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+		channel.bind(new InetSocketAddress(port), BACKLOG);
+		server = channel.socket();
+
+		// Create the worker group
+		if (shared) {
+			this.workers = executor;
+			return;
+		}
+
+		ThreadFactory threads = new ThreadFactory() {
+			private final AtomicInteger n = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				return new Thread(r, "worker-" + id + "-" + n.incrementAndGet());
+			}
+		};
+
+		if (workers > 0)
+			this.workers = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.MILLISECONDS,
+					new LinkedBlockingQueue<>(), threads);
+		else
+			this.workers = Executors.newCachedThreadPool(threads);
+	}
+
+	/**
+	 * Checks if the listening sockets can be bound with SO_REUSEPORT.
+	 *
+	 * @return true if SO_REUSEPORT is supported
+	 */
+	public static boolean isReusePortSupported() {
+		if (SO_REUSEPORT == null)
+			return false;
+
+		try (ServerSocketChannel c = ServerSocketChannel.open()) {
+			return c.supportedOptions().contains(SO_REUSEPORT);
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Gets the worker group of the acceptor.
+	 *
+	 * @return the executor serving the connections
+	 */
+	public ExecutorService getWorkers() { return workers; }
+
+	/**
+	 * Checks if the workers were given by the embedding code, so the server 
+	 * must not stop them.
+	 *
+	 * @return true if the executor is shared
+	 */
+	public boolean isShared() { return shared; }
+
+	/**
+	 * Gets the address the socket is bound to.
+	 *
+	 * @return the local address, with the port chosen if it was 0
+	 */
+	public InetSocketAddress getAddress() { return (InetSocketAddress) server.getLocalSocketAddress(); }
+
+	/**
+	 * Waits for connections and hands them to the worker group until closed.
+	 */
+	@Override
+	public void run() {
+		long backoff = 0;  // ms to wait before accepting again, 0 after a success
+
+		while (running) {
+			Socket client;
+
+			// Wait for connections
+			try {
+				client = server.accept();
+				backoff = 0;
+			} catch (IOException e) {
+				if (!running)
+					break;  // the socket was closed by the shutdown
+
+				// i.e. out of file descriptors, keep listening but without
+				// spinning until some are freed
+				backoff = Math.min(Math.max(backoff * 2, MIN_BACKOFF), MAX_BACKOFF);
+				System.err.println("Error accepting a connection in acceptor " + id + ", retrying in " + backoff 
+						+ " ms: " + e.getMessage());
+				try {
+					Thread.sleep(backoff);
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+				continue;
+			}
+
+			// A shared executor may be full or stopped by its owner
+			try {
+				workers.execute(factory.create(client));
+			} catch (RejectedExecutionException e) {
+				System.err.println("Connection rejected by the workers of acceptor " + id + ": " + e.getMessage());
+				try {
+					client.close();
+				} catch (IOException ex) {
+					ex.printStackTrace();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Stops accepting connections. The connections in progress keep running.
+	 *
+	 * @throws IOException If an I/O error occurs when closing the socket
+	 */
+	public void close() throws IOException {
+		running = false;
+		channel.close();
+		if (!shared)
+			workers.shutdown();
+	}
+
+	/**
+	 * Looks up StandardSocketOptions.SO_REUSEPORT, which does not exist before Java 9.
+	 *
+	 * @return the option or null if not available
+	 */
+	@SuppressWarnings("unchecked")
+	private static SocketOption<Boolean> reusePortOption() {
+		try {
+			Field f = StandardSocketOptions.class.getField("SO_REUSEPORT");
+			return (SocketOption<Boolean>) f.get(null);
+		} catch (ReflectiveOperationException e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,423 @@
+package webserver;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.function.Supplier;
+
+/**
+ * Listener on localhost that shows the live state of the server as text:
+ * the connections, the executors, the caches, the log queues and the
+ * bandwidth, and runs some actions on it. The state is read from counters
+ * and concurrent collections, so a snapshot never stops the requests. A
+ * single thread serves the admin requests one by one.
+ *
+ * GET / shows everything, GET /connections, /executors, /caches, /logs and
+ * /bandwidth a part. POST /caches/flush empties the caches of all the hosts,
+ * POST /connections/idle/close closes the connections waiting for a request
+ * and POST /connections/{id}/close closes one connection.
+ *
+ * @author Ángel Miguélez Millos
+ */
+public class AdminServer implements Runnable {
+
+	private final static int TIMEOUT = 5000;  // ms a client has to send the request
+
+	private final ServerSocket server;
+	private final Thread thread;
+	private volatile boolean running = true;
+
+	private final Set<WebServerThread> connections;
+	private final List<Acceptor> acceptors;
+	private final ServletExecutor servlets;
+	private final Supplier<HostTable> hosts;
+	private final BandwidthScheduler bandwidth;
+
+	private final Router<Page> views = new Router<>();		// GET
+	private final Router<Page> actions = new Router<>();	// POST
+
+	/**
+	 * Part of the state or action.
+	 */
+	private interface Page {
+
+		/**
+		 * Writes the page.
+		 *
+		 * @param m parameters of the path
+		 * @param out text of the response
+		 * @return OK, or the error of the request
+		 */
+		HttpCode render(Router.Match m, StringBuilder out);
+	}
+
+	/**
+	 * Creates a new AdminServer and starts listening on localhost.
+	 *
+	 * @param port port to listen, 0 for any free one
+	 * @param connections connections being served
+	 * @param acceptors acceptors, with their workers
+	 * @param servlets pool running the servlets
+	 * @param hosts current table of the hosts
+	 * @param bandwidth scheduler of the response bodies
+	 * @throws IOException If an I/O error occurs when opening the socket
+	 */
+	public AdminServer(int port, Set<WebServerThread> connections, List<Acceptor> acceptors,
+			ServletExecutor servlets, Supplier<HostTable> hosts, BandwidthScheduler bandwidth) throws IOException {
+		this.connections = connections;
+		this.acceptors = acceptors;
+		this.servlets = servlets;
+		this.hosts = hosts;
+		this.bandwidth = bandwidth;
+
+		views.add("/", this::all);
+		views.add("/connections", this::connections);
+		views.add("/executors", this::executors);
+		views.add("/caches", this::caches);
+		views.add("/logs", this::logs);
+		views.add("/bandwidth", this::bandwidth);
+		actions.add("/caches/flush", this::flush);
+		actions.add("/connections/idle/close", this::closeIdle);
+		actions.add("/connections/{id}/close", this::close);
+
+		// Only reachable from the machine
+		server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+
+		thread = new Thread(this, "admin");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Gets the address the listener is bound to.
+	 *
+	 * @return the local address, with the port chosen if it was 0
+	 */
+	public InetSocketAddress getAddress() { return (InetSocketAddress) server.getLocalSocketAddress(); }
+
+	/**
+	 * Serves the admin requests until closed.
+	 */
+	@Override
+	public void run() {
+		while (running) {
+			try (Socket client = server.accept()) {
+				client.setSoTimeout(TIMEOUT);
+				serve(client.getInputStream(), client.getOutputStream());
+
+			} catch (IOException e) {
+				if (!running)
+					break;  // closed by the shutdown
+				System.out.println("Error in the admin listener: " + e.getMessage());
+			} catch (RuntimeException e) {
+				// Only this request is lost, the admin thread must survive
+				System.out.println("Error in the admin listener: " + e.getMessage());
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Stops listening.
+	 */
+	public void close() {
+		running = false;
+		try {
+			server.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Answers a request, closing the connection after it.
+	 *
+	 * @param sIn stream of the request
+	 * @param sOut stream of the response
+	 * @throws IOException If an I/O error occurs
+	 */
+	private void serve(InputStream sIn, OutputStream sOut) throws IOException {
+		String message = ServerUtils.readInput(new BufferedInputStream(sIn));
+		int eol = message.indexOf('\n');
+		String[] tokens = (eol == -1 ? message : message.substring(0, eol)).split(" ");
+
+		StringBuilder body = new StringBuilder(4096);
+		HttpCode code;
+
+		if (tokens.length != 3)
+			code = HttpCode.BAD_REQUEST;
+		else {
+			// Views are read, actions are posted
+			Router<Page> router = tokens[0].equals("POST") ? actions : tokens[0].equals("GET") ? views : null;
+			Router.Match m = Router.Match.acquire();
+			try {
+				Page page = router == null ? null : router.match(tokens[1], m);
+				if (page != null)
+					code = page.render(m, body);
+				else if (views.match(tokens[1], m) != null || actions.match(tokens[1], m) != null)
+					code = HttpCode.NOT_IMPLEMENTED;
+				else
+					code = HttpCode.NOT_FOUND;
+			} catch (RuntimeException e) {
+				// A broken page answers 500, the listener keeps serving
+				System.out.println("Error rendering the admin page " + tokens[1] + ": " + e.getMessage());
+				e.printStackTrace();
+				body.setLength(0);
+				code = HttpCode.INTERNAL_SERVER_ERROR;
+			} finally {
+				Router.Match.release(m);
+			}
+		}
+
+		if (code != HttpCode.OK && body.length() == 0)
+			body.append(code.getMessage()).append('\n');
+
+		byte[] b = body.toString().getBytes(StandardCharsets.UTF_8);
+		String header = "HTTP/1.0 " + code.getCode() + " " + code.name() + "\r\n"
+				+ "Content-Type: text/plain; charset=UTF-8\r\n"
+				+ "Content-Length: " + b.length + "\r\n"
+				+ "Cache-Control: no-store\r\n\r\n";
+		sOut.write(header.getBytes(StandardCharsets.ISO_8859_1));
+		sOut.write(b);
+		sOut.flush();
+	}
+
+	/**
+	 * Writes every part of the state.
+	 */
+	private HttpCode all(Router.Match m, StringBuilder out) {
+		out.append("# Connections\n\n");
+		connections(m, out);
+		out.append("# Executors\n\n");
+		executors(m, out);
+		out.append("# Caches\n\n");
+		caches(m, out);
+		out.append("# Logs\n\n");
+		logs(m, out);
+		out.append("# Bandwidth\n\n");
+		return bandwidth(m, out);
+	}
+
+	/**
+	 * Writes the connections being served, the oldest first.
+	 */
+	private HttpCode connections(Router.Match m, StringBuilder out) {
+		List<WebServerThread> list = new ArrayList<>(connections);
+		Collections.sort(list, (a, b) -> Long.compare(a.getId(), b.getId()));
+
+		int idle = 0;
+		for (WebServerThread c : list)
+			if (c.isIdle())
+				idle++;
+		out.append("Connections=").append(list.size()).append('\n');
+		out.append("Idle=").append(idle).append("\n\n");
+
+		for (WebServerThread c : list) {
+			String request = c.getRequestLine();
+			out.append("Connection=").append(c.getId()).append('\n');
+			out.append("IP=").append(c.getClientIP().getHostAddress()).append('\n');
+			out.append("Request=").append(request == null ? "" : request).append('\n');
+			out.append("Sent=").append(c.getBytesSent()).append('\n');
+			out.append("Age=").append(c.getAge()).append(" ms\n");
+			out.append("Idle=").append(c.isIdle()).append('\n');
+			if (c.getOpenStreams() >= 0)
+				out.append("Streams=").append(c.getOpenStreams()).append('\n');
+			out.append('\n');
+		}
+
+		return HttpCode.OK;
+	}
+
+	/**
+	 * Writes the threads, the busy ones and the queue of each executor.
+	 */
+	private HttpCode executors(Router.Match m, StringBuilder out) {
+		out.append("Executor=servlets\n");
+		appendPool(out, servlets.getThreads(), servlets.getActiveCount(), servlets.getQueueSize());
+
+		// A shared executor is shown once
+		List<ExecutorService> seen = new ArrayList<>();
+		for (int i = 0; i < acceptors.size(); i++) {
+			Acceptor a = acceptors.get(i);
+			ExecutorService w = a.getWorkers();
+			if (seen.contains(w))
+				continue;
+			seen.add(w);
+
+			out.append("Executor=").append(a.isShared() ? "shared" : "acceptor-" + i).append('\n');
+			if (w instanceof ThreadPoolExecutor) {
+				ThreadPoolExecutor p = (ThreadPoolExecutor) w;
+				appendPool(out, p.getMaximumPoolSize() == Integer.MAX_VALUE ? p.getPoolSize() : p.getMaximumPoolSize(),
+						p.getActiveCount(), p.getQueue().size());
+			} else
+				out.append("Threads=unknown\n\n");
+		}
+
+		return HttpCode.OK;
+	}
+
+	/**
+	 * Writes the state of a thread pool.
+	 *
+	 * @param out text of the response
+	 * @param threads threads of the pool
+	 * @param active busy threads
+	 * @param queued tasks waiting for a thread
+	 */
+	private static void appendPool(StringBuilder out, int threads, int active, int queued) {
+		out.append("Threads=").append(threads).append('\n');
+		out.append("Active=").append(active).append('\n');
+		out.append("Queued=").append(queued).append('\n');
+		out.append("Utilization=").append(threads == 0 ? 0 : active * 100 / threads).append("%\n\n");
+	}
+
+	/**
+	 * Writes the size and hit ratio of the path and response caches of each host.
+	 */
+	private HttpCode caches(Router.Match m, StringBuilder out) {
+		for (HostContext h : contexts()) {
+			PathResolver r = h.getResolver();
+			ResponseCache c = h.getCache();
+
+			out.append("Host=").append(name(h)).append('\n');
+			out.append("PathCache=").append(r.size()).append('\n');
+			out.append("PathHits=").append(r.getHits()).append('\n');
+			out.append("PathMisses=").append(r.getMisses()).append('\n');
+			out.append("PathHitRatio=").append(ratio(r.getHits(), r.getMisses())).append('\n');
+			out.append("ResponseCache=").append(c.size()).append('\n');
+			out.append("ResponseHits=").append(c.getHits()).append('\n');
+			out.append("ResponseMisses=").append(c.getMisses()).append('\n');
+			out.append("ResponseCoalesced=").append(c.getCoalesced()).append('\n');
+			out.append("ResponseHitRatio=").append(ratio(c.getHits(), c.getMisses())).append("\n\n");
+		}
+
+		return HttpCode.OK;
+	}
+
+	/**
+	 * Writes the records waiting to be written by the log handler of each host.
+	 */
+	private HttpCode logs(Router.Match m, StringBuilder out) {
+		for (HostContext h : contexts()) {
+			out.append("Host=").append(name(h)).append('\n');
+			out.append("Queued=").append(h.getLogHandler().getQueueSize()).append("\n\n");
+		}
+
+		return HttpCode.OK;
+	}
+
+	/**
+	 * Writes the bytes sent of each class of responses and their throughput.
+	 */
+	private HttpCode bandwidth(Router.Match m, StringBuilder out) {
+		out.append("Limited=").append(bandwidth.isLimited()).append("\n\n");
+		for (BandwidthScheduler.Traffic t : BandwidthScheduler.Traffic.values()) {
+			out.append("Traffic=").append(t.name().toLowerCase()).append('\n');
+			out.append("Sent=").append(bandwidth.getBytes(t)).append('\n');
+			out.append("Throughput=").append(Math.round(bandwidth.getAverageThroughput(t))).append(" bytes/s\n\n");
+		}
+
+		return HttpCode.OK;
+	}
+
+	/**
+	 * Empties the path and response caches of all the hosts.
+	 */
+	private HttpCode flush(Router.Match m, StringBuilder out) {
+		List<HostContext> list = contexts();
+		for (HostContext h : list) {
+			h.getResolver().clear();
+			h.getCache().clear();
+		}
+
+		out.append("Flushed=").append(list.size()).append(" host(s)\n");
+		return HttpCode.OK;
+	}
+
+	/**
+	 * Closes the connections waiting for a request. A request arriving at
+	 * the same time may be cut.
+	 */
+	private HttpCode closeIdle(Router.Match m, StringBuilder out) {
+		int closed = 0;
+		for (WebServerThread c : connections) {
+			if (c.isIdle()) {
+				c.close();
+				closed++;
+			}
+		}
+
+		out.append("Closed=").append(closed).append('\n');
+		return HttpCode.OK;
+	}
+
+	/**
+	 * Closes a connection, whatever it is doing.
+	 */
+	private HttpCode close(Router.Match m, StringBuilder out) {
+		long id;
+		try {
+			id = Long.parseLong(m.getValue(0));
+		} catch (NumberFormatException e) {
+			return HttpCode.BAD_REQUEST;
+		}
+
+		for (WebServerThread c : connections) {
+			if (c.getId() == id) {
+				c.close();
+				out.append("Closed=1\n");
+				return HttpCode.OK;
+			}
+		}
+
+		return HttpCode.NOT_FOUND;
+	}
+
+	/**
+	 * Gets the hosts of the current table, the default one first.
+	 *
+	 * @return the hosts
+	 */
+	private List<HostContext> contexts() {
+		HostTable table = hosts.get();
+		List<HostContext> list = new ArrayList<>();
+		list.add(table.getDefault());
+		list.addAll(table.getHosts());
+		return list;
+	}
+
+	/**
+	 * Gets the name of a host.
+	 *
+	 * @param h host
+	 * @return its name, "default" for the default host
+	 */
+	private static String name(HostContext h) {
+		String name = h.getHost().getName();
+		return name == null ? "default" : name;
+	}
+
+	/**
+	 * Formats the hit ratio of a cache.
+	 *
+	 * @param hits requests served from the cache
+	 * @param misses requests not found in it
+	 * @return the percentage, with a decimal
+	 */
+	private static String ratio(long hits, long misses) {
+		long total = hits + misses;
+		return total == 0 ? "0.0%" : String.format("%.1f%%", hits * 100.0 / total);
+	}
+}
@@ -0,0 +1,138 @@
+package webserver;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shares the bandwidth of the server among the response bodies. The writes
+ * take tokens from a global bucket and, when it is empty, the waiting ones
+ * are served by weighted fair queueing of two classes: the small responses,
+ * as pages and images, and the bulk transfers, as big downloads. The small
+ * ones get their weight times the bytes of the bulk ones, so a few big
+ * downloads do not delay the page loads. Within a class, the writes go in
+ * turns as the monitor wakes them.
+ *
+ * The bytes sent of each class are counted, also without limit.
+ *
+ * @author Ángel Miguélez Millos
+ */
+public class BandwidthScheduler {
+
+	/**
+	 * Class of a response.
+	 */
+	public enum Traffic {
+		SMALL,	// body up to the small size
+		BULK	// bigger body
+	}
+
+	private TokenBucket bucket;		// null for no limit
+	private int smallWeight = 1;
+	private final int[] waiting = new int[2];		// writes waiting by class
+	private final double[] served = new double[2];	// bytes sent by class over its weight, while waiting
+
+	private final AtomicLong[] bytes = { new AtomicLong(), new AtomicLong() };	// sent by class
+	private final long started = System.nanoTime();
+
+	/**
+	 * Creates a new BandwidthScheduler.
+	 *
+	 * @param settings rate and weights
+	 */
+	public BandwidthScheduler(ThrottleSettings settings) {
+		configure(settings);
+	}
+
+	/**
+	 * Applies new rate and weights, the writes waiting too.
+	 *
+	 * @param settings rate and weights
+	 */
+	public synchronized void configure(ThrottleSettings settings) {
+		long rate = settings.getRate();
+		if (rate == 0)
+			bucket = null;
+		else if (bucket == null)
+			bucket = new TokenBucket(rate);
+		else
+			bucket.setRate(rate);
+
+		smallWeight = settings.getSmallWeight();
+		notifyAll();
+	}
+
+	/**
+	 * Waits for the turn of a write and takes its tokens.
+	 *
+	 * @param t class of the response
+	 * @param n bytes to write
+	 * @throws InterruptedIOException If interrupted while waiting
+	 */
+	public void acquire(Traffic t, long n) throws InterruptedIOException {
+		bytes[t.ordinal()].addAndGet(n);
+
+		synchronized (this) {
+			if (bucket == null)
+				return;
+
+			int c = t.ordinal(), other = 1 - c;
+
+			// A class that was idle does not get credit for it
+			if (waiting[c] == 0 && waiting[other] > 0)
+				served[c] = Math.max(served[c], served[other]);
+			waiting[c]++;
+
+			try {
+				while (true) {
+					if (bucket == null)
+						return;
+
+					// The class that got less for its weight goes first
+					long wait = bucket.waitMillis();
+					if (wait == 0 && (waiting[other] == 0 || served[c] <= served[other])) {
+						bucket.take(n);
+						served[c] += (double) n / (t == Traffic.SMALL ? smallWeight : 1);
+						return;
+					}
+
+					wait(Math.max(wait, 1));
+				}
+
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while throttled");
+
+			} finally {
+				waiting[c]--;
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Checks if there is a global rate.
+	 *
+	 * @return true if the writes may wait
+	 */
+	public synchronized boolean isLimited() {
+		return bucket != null;
+	}
+
+	/**
+	 * Gets the bytes sent of a class.
+	 *
+	 * @param t class of the responses
+	 * @return the bytes sent since the start
+	 */
+	public long getBytes(Traffic t) { return bytes[t.ordinal()].get(); }
+
+	/**
+	 * Gets the average throughput of a class since the start.
+	 *
+	 * @param t class of the responses
+	 * @return the bytes per second
+	 */
+	public double getAverageThroughput(Traffic t) {
+		return getBytes(t) / (Math.max(System.nanoTime() - started, 1) / 1e9);
+	}
+}
@@ -0,0 +1,138 @@
+package webserver;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Encodes log records in a compact binary format, read by LogReader. Each file
+ * starts with MAGIC and the records follow:
+ * <ul>
+ * <li>type, 1 byte: ACCESS or ERROR, ACCESS_TIMED or ERROR_TIMED if the 
+ * record has a duration</li>
+ * <li>date, zigzag varint: milliseconds since the previous record</li>
+ * <li>request line, varint: NEW followed by the string, which gets the next 
+ * id; LITERAL followed by the string, which gets no id; or FIRST_ID + id</li>
+ * <li>client ip: length, 1 byte, and the address bytes</li>
+ * <li>http code, varint</li>
+ * <li>body size, varint, only in access records</li>
+ * <li>duration, varint: microseconds of the request, only in timed records</li>
+ * </ul>
+ * The strings are a varint length and ISO-8859-1 bytes. The dates and ids 
+ * restart in each file, so a rotated file can be read alone.
+ *
+ * @author Ángel Miguélez Millos
+ */
+public class BinaryLogEncoder {
+
+	public final static byte[] MAGIC = { 'W', 'S', 'L', 'O', 'G', 1 };
+	public final static int ACCESS = 1, ERROR = 2, ACCESS_TIMED = 3, ERROR_TIMED = 4;
+	public final static int NEW = 0, LITERAL = 1, FIRST_ID = 2;
+
+	private final static int MAX_IDS = 65536;  // interned request lines per file
+
+	private final Map<String, Integer> ids = new HashMap<>();
+	private byte[] scratch = new byte[1024];  // record being encoded
+	private int pos;
+	private long lastDate;
+
+	/**
+	 * Creates a new BinaryLogEncoder.
+	 */
+	public BinaryLogEncoder() {
+
+	}
+
+	/**
+	 * Starts a file, writing its header and forgetting the ids of the previous one.
+	 *
+	 * @param out file to write into
+	 * @throws IOException If an I/O error occurs
+	 */
+	public void start(RotatingLog out) throws IOException {
+		ids.clear();
+		lastDate = 0;
+		out.write(MAGIC, 0, MAGIC.length);
+	}
+
+	/**
+	 * Encodes a record into a file.
+	 *
+	 * @param out file to write into
+	 * @param access true for an access record, false for an error record
+	 * @param requestLine client request line
+	 * @param ip client ip address bytes
+	 * @param date milliseconds of the response date
+	 * @param code http code
+	 * @param size length of the body sent, only for access records
+	 * @param duration microseconds taken by the request, -1 if not logged
+	 * @throws IOException If an I/O error occurs
+	 */
+	public void encode(RotatingLog out, boolean access, String requestLine, byte[] ip, long date,
+			int code, long size, long duration) throws IOException {
+		pos = 0;
+		ensure(requestLine.length() + ip.length + 64);
+
+		if (duration < 0)
+			scratch[pos++] = (byte) (access ? ACCESS : ERROR);
+		else
+			scratch[pos++] = (byte) (access ? ACCESS_TIMED : ERROR_TIMED);
+
+		// Date, zigzag so a clock going back stays short
+		long delta = date - lastDate;
+		putVarint((delta << 1) ^ (delta >> 63));
+		lastDate = date;
+
+		// Request line, each distinct one is written once per file
+		Integer id = ids.get(requestLine);
+		if (id != null)
+			putVarint(FIRST_ID + id);
+		else {
+			if (ids.size() < MAX_IDS) {
+				ids.put(requestLine, ids.size());
+				putVarint(NEW);
+			} else
+				putVarint(LITERAL);
+
+			putVarint(requestLine.length());
+			for (int i = 0; i < requestLine.length(); i++)
+				scratch[pos++] = (byte) requestLine.charAt(i);  // ISO-8859-1
+		}
+
+		scratch[pos++] = (byte) ip.length;
+		System.arraycopy(ip, 0, scratch, pos, ip.length);
+		pos += ip.length;
+
+		putVarint(code);
+		if (access)
+			putVarint(size);
+		if (duration >= 0)
+			putVarint(duration);
+
+		out.write(scratch, 0, pos);
+	}
+
+	/**
+	 * Writes an unsigned varint, 7 bits per byte with the high bit set in all
+	 * the bytes but the last one.
+	 *
+	 * @param v value to write
+	 */
+	private void putVarint(long v) {
+		while ((v & ~0x7FL) != 0) {
+			scratch[pos++] = (byte) ((v & 0x7F) | 0x80);
+			v >>>= 7;
+		}
+		scratch[pos++] = (byte) v;
+	}
+
+	/**
+	 * Grows the scratch buffer if a record does not fit.
+	 *
+	 * @param n max length of the record
+	 */
+	private void ensure(int n) {
+		if (scratch.length < n)
+			scratch = new byte[Math.max(n, scratch.length * 2)];
+	}
+}
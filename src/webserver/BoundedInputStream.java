@@ -0,0 +1,71 @@
+package webserver;
+
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads exactly the number of bytes declared by a Content-Length header, 
+ * without reading past the end of the body.
+ * 
+ * @author Ángel Miguélez Millos
+ */
+public class BoundedInputStream extends FilterInputStream {
+
+	private long remaining;
+	
+	/**
+	 * Creates a new BoundedInputStream.
+	 * 
+	 * @param in stream positioned at the start of the body
+	 * @param length length of the body in bytes
+	 */
+	public BoundedInputStream(InputStream in, long length) {
+		super(in);
+		remaining = length;
+	}
+	
+	@Override
+	public int read() throws IOException {
+		if (remaining == 0)
+			return -1;
+		
+		int b = in.read();
+		if (b == -1)
+			throw new EOFException("Body shorter than its Content-Length");
+		
+		remaining--;
+		return b;
+	}
+	
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (remaining == 0)
+			return -1;
+		if (len == 0)
+			return 0;
+		
+		int n = in.read(b, off, (int) Math.min(len, remaining));
+		if (n == -1)
+			throw new EOFException("Body shorter than its Content-Length");
+		
+		remaining -= n;
+		return n;
+	}
+	
+	@Override
+	public long skip(long n) throws IOException {
+		long skipped = in.skip(Math.min(n, remaining));
+		remaining -= skipped;
+		return skipped;
+	}
+	
+	@Override
+	public int available() throws IOException {
+		return (int) Math.min(in.available(), remaining);
+	}
+	
+	@Override
+	public boolean markSupported() { return false; }
+}
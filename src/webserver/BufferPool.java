@@ -0,0 +1,74 @@
+package webserver;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of byte buffers of the same size, so the connections do not allocate
+ * and clear new ones each time. Direct buffers are expensive to create and
+ * are freed late, so they should always be pooled.
+ * 
+ * @author Ángel Miguélez Millos
+ */
+public class BufferPool {
+
+	private final int bufferSize;
+	private final boolean direct;
+	private final int maxPooled;	// buffers kept, the rest are left to the garbage collector
+
+	private final Queue<ByteBuffer> pool = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger pooled = new AtomicInteger();
+
+	/**
+	 * Creates a new empty BufferPool.
+	 * 
+	 * @param bufferSize capacity of the buffers
+	 * @param direct true to create direct buffers, false for heap ones
+	 * @param maxPooled max number of buffers kept
+	 */
+	public BufferPool(int bufferSize, boolean direct, int maxPooled) {
+		this.bufferSize = bufferSize;
+		this.direct = direct;
+		this.maxPooled = maxPooled;
+	}
+
+	/**
+	 * Gets a clear buffer from the pool, or a new one if the pool is empty.
+	 * 
+	 * @return a buffer of the pool size
+	 */
+	public ByteBuffer acquire() {
+		ByteBuffer b = pool.poll();
+		if (b == null)
+			return direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+
+		pooled.decrementAndGet();
+		b.clear();
+		return b;
+	}
+
+	/**
+	 * Returns a buffer to the pool. A buffer of another size, i.e. one that 
+	 * was enlarged, is dropped.
+	 * 
+	 * @param b buffer to release, null is ignored
+	 */
+	public void release(ByteBuffer b) {
+		if (b == null || b.capacity() != bufferSize || b.isDirect() != direct)
+			return;
+
+		if (pooled.incrementAndGet() <= maxPooled)
+			pool.offer(b);
+		else
+			pooled.decrementAndGet();
+	}
+
+	/**
+	 * Gets the capacity of the buffers.
+	 * 
+	 * @return the buffer size in bytes
+	 */
+	public int getBufferSize() { return bufferSize; }
+}
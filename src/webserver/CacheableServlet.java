@@ -0,0 +1,18 @@
+package webserver;
+
+/**
+ * Servlet whose GET response depends only on its parameters, so it can be 
+ * served from the response cache for a while.
+ * 
+ * @author Ángel Miguélez Millos
+ */
+public interface CacheableServlet extends MiniServlet {
+
+	/**
+	 * Gets how long a response stays valid in the cache.
+	 * 
+	 * @return the time to live in milliseconds, 0 to not cache
+	 */
+	public long getCacheTtl();
+	
+}
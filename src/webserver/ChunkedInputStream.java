@@ -0,0 +1,135 @@
+package webserver;
+
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decodes a request body sent with "Transfer-Encoding: chunked". The chunk
+ * extensions and the trailer are discarded.
+ * 
+ * @author Ángel Miguélez Millos
+ */
+public class ChunkedInputStream extends FilterInputStream {
+
+	private final static int MAX_LINE = 4096;  // max length of a chunk size line
+	
+	private long remaining;  // bytes left in the current chunk
+	private boolean eof;
+	
+	/**
+	 * Creates a new ChunkedInputStream.
+	 * 
+	 * @param in stream positioned at the start of the body
+	 */
+	public ChunkedInputStream(InputStream in) {
+		super(in);
+	}
+	
+	@Override
+	public int read() throws IOException {
+		byte[] b = new byte[1];
+		return read(b, 0, 1) == -1 ? -1 : (b[0] & 0xff);
+	}
+	
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0)
+			return 0;
+		
+		// Start the next chunk
+		if (remaining == 0 && !nextChunk())
+			return -1;
+		
+		int n = in.read(b, off, (int) Math.min(len, remaining));
+		if (n == -1)
+			throw new EOFException("Unexpected end of chunked body");
+		
+		remaining -= n;
+		
+		// Skip the CRLF that closes the chunk
+		if (remaining == 0)
+			readLine();
+		
+		return n;
+	}
+	
+	@Override
+	public int available() throws IOException {
+		return (int) Math.min(in.available(), remaining);
+	}
+	
+	@Override
+	public long skip(long n) throws IOException {
+		byte[] b = new byte[4096];
+		long skipped = 0;
+		int r;
+		
+		while (skipped < n && (r = read(b, 0, (int) Math.min(b.length, n - skipped))) != -1)
+			skipped += r;
+		
+		return skipped;
+	}
+	
+	@Override
+	public boolean markSupported() { return false; }
+	
+	/**
+	 * Reads the size of the next chunk, and the trailer if it is the last one.
+	 * 
+	 * @return false if there are no more chunks
+	 * @throws IOException If the size is malformed or the stream ends
+	 */
+	private boolean nextChunk() throws IOException {
+		if (eof)
+			return false;
+		
+		String line = readLine();
+		
+		// Discard the chunk extensions
+		int semicolon = line.indexOf(';');
+		if (semicolon != -1)
+			line = line.substring(0, semicolon);
+		
+		try {
+			remaining = Long.parseLong(line.trim(), 16);
+		} catch (NumberFormatException e) {
+			throw new IOException("Malformed chunk size: " + line);
+		}
+		
+		if (remaining < 0)
+			throw new IOException("Malformed chunk size: " + line);
+		
+		// Last chunk, discard the trailer until the empty line
+		if (remaining == 0) {
+			while (!readLine().isEmpty());
+			eof = true;
+			return false;
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Reads a line ended by LF, removing the CR.
+	 * 
+	 * @return the line without the line terminator
+	 * @throws IOException If the stream ends or the line is too long
+	 */
+	private String readLine() throws IOException {
+		StringBuilder line = new StringBuilder();
+		int c;
+		
+		while ((c = in.read()) != '\n') {
+			if (c == -1)
+				throw new EOFException("Unexpected end of chunked body");
+			if (line.length() == MAX_LINE)
+				throw new IOException("Chunk line too long");
+			if (c != '\r')
+				line.append((char) c);
+		}
+		
+		return line.toString();
+	}
+}
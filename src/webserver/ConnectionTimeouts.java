@@ -0,0 +1,58 @@
+package webserver;
+
+/**
+ * Deadlines and limits applied to every client connection.
+ * 
+ * @author Ángel Miguélez Millos
+ */
+public class ConnectionTimeouts {
+
+	private final int header;		// max time to receive the request header (ms)
+	private final int body;			// max idle time while reading the request body (ms)
+	private final int write;		// max time without write progress (ms)
+	private final int minDataRate;	// min bytes/s sent by the client, 0 disables it
+
+	/**
+	 * Creates a new ConnectionTimeouts.
+	 * 
+	 * @param header max time to receive the request header in milliseconds
+	 * @param body max idle time while reading the request body in milliseconds
+	 * @param write max time without write progress in milliseconds
+	 * @param minDataRate min bytes per second sent by the client, 0 to disable it
+	 * @throws IllegalArgumentException If any of the values is negative or a 
+	 * timeout is zero
+	 */
+	public ConnectionTimeouts(int header, int body, int write, int minDataRate) {
+		if (header <= 0 || body <= 0 || write <= 0 || minDataRate < 0)
+			throw new IllegalArgumentException("Invalid connection timeouts");
+
+		this.header = header;
+		this.body = body;
+		this.write = write;
+		this.minDataRate = minDataRate;
+	}
+
+	/**
+	 * Gets the max time to receive the request header.
+	 * @return the header timeout in milliseconds
+	 */
+	public int getHeader() { return header; }
+
+	/**
+	 * Gets the max idle time while reading the request body.
+	 * @return the body timeout in milliseconds
+	 */
+	public int getBody() { return body; }
+
+	/**
+	 * Gets the max time without write progress.
+	 * @return the write timeout in milliseconds
+	 */
+	public int getWrite() { return write; }
+
+	/**
+	 * Gets the min data rate a client must keep while sending.
+	 * @return the min rate in bytes per second, 0 if disabled
+	 */
+	public int getMinDataRate() { return minDataRate; }
+}
@@ -0,0 +1,82 @@
+package webserver;
+
+/**
+ * Count-min sketch: estimates how many times each item was added with a fixed
+ * amount of memory. An estimate is never lower than the real count and is 
+ * higher by at most a small fraction of the total count, with high probability.
+ * The items are given by a well mixed 64 bit hash.
+ *
+ * @author Ángel Miguélez Millos
+ */
+public class CountMinSketch {
+
+	private final int depth, width;	// rows and counters per row
+	private final int mask;
+	private final long[] counts;
+
+	/**
+	 * Creates a new CountMinSketch.
+	 *
+	 * @param depth number of rows, more rows lower the probability of a bad estimate
+	 * @param width counters per row, rounded up to a power of two. More 
+	 * counters lower the error of the estimates
+	 */
+	public CountMinSketch(int depth, int width) {
+		int n = Integer.highestOneBit(width);
+		if (n < width) n <<= 1;
+
+		this.depth = depth;
+		this.width = n;
+		mask = n - 1;
+		counts = new long[depth * n];
+	}
+
+	/**
+	 * Adds an item once.
+	 *
+	 * @param hash hash of the item
+	 * @return the estimated count of the item, this one included
+	 */
+	public long add(long hash) {
+		int h1 = (int) hash, h2 = (int) (hash >>> 32);
+		long min = Long.MAX_VALUE;
+
+		// A counter per row, chosen by double hashing
+		for (int i = 0; i < depth; i++) {
+			int j = i * width + ((h1 + i * h2) & mask);
+			min = Math.min(min, ++counts[j]);
+		}
+
+		return min;
+	}
+
+	/**
+	 * Estimates how many times an item was added.
+	 *
+	 * @param hash hash of the item
+	 * @return the estimated count
+	 */
+	public long estimate(long hash) {
+		int h1 = (int) hash, h2 = (int) (hash >>> 32);
+		long min = Long.MAX_VALUE;
+
+		for (int i = 0; i < depth; i++)
+			min = Math.min(min, counts[i * width + ((h1 + i * h2) & mask)]);
+
+		return min;
+	}
+
+	/**
+	 * Adds the counts of another sketch with the same dimensions.
+	 *
+	 * @param other sketch to add
+	 * @throws IllegalArgumentException If the dimensions are not the same
+	 */
+	public void merge(CountMinSketch other) {
+		if (other.depth != depth || other.width != width)
+			throw new IllegalArgumentException("Different sketch dimensions");
+
+		for (int i = 0; i < counts.length; i++)
+			counts[i] += other.counts[i];
+	}
+}
@@ -0,0 +1,321 @@
+package webserver;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Feed of the changes under a resources directory, shared by the caches of
+ * the files under it. A single thread watches every directory of the tree and
+ * the events arriving together are coalesced into one batch of changed paths,
+ * so a storm of writes costs one invalidation. The caches subscribe and are
+ * told of the changes; they do nothing per request to stay fresh.
+ *
+ * If the system loses events, or a directory cannot be watched, the
+ * subscribers drop everything and the tree is scanned periodically comparing
+ * the modification dates, until the watch can be trusted again.
+ *
+ * @author Ángel Miguélez Millos
+ */
+public class FileWatcher {
+
+	private final static long QUIET = 20;			// ms without events that end a batch
+	private final static long MAX_DELAY = 200;		// ms a batch waits at most
+	private final static int MAX_BATCH = 4096;		// changed paths told one by one
+	private final static long SCAN_INTERVAL = 2000;	// ms between scans of the tree
+	private final static long SCAN_PERIOD = 60000;	// ms scanning after events are lost
+
+	private final Path root;
+	private final WatchService watcher;
+	private final Thread watcherThread;
+	private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+	// scanning fallback, only used by the watcher thread
+	private Map<Path, Long> snapshot;	// modification date and length of each path, null if not scanning
+	private long scanUntil;				// currentTimeMillis to stop scanning
+	private long nextScan;
+
+	/**
+	 * Cache that drops its entries when the files change.
+	 */
+	public interface Listener {
+
+		/**
+		 * Tells the paths created, modified or deleted. A created or deleted
+		 * path also changes the listing of its directory.
+		 *
+		 * @param paths absolute paths changed, a directory includes anything under it
+		 */
+		void changed(Set<Path> paths);
+
+		/**
+		 * Tells that the changes are unknown, so everything may have changed.
+		 */
+		void invalidateAll();
+	}
+
+	/**
+	 * Creates a new FileWatcher and starts watching the tree of a directory.
+	 *
+	 * @param root directory to watch
+	 * @throws IOException If the watch service cannot be created
+	 */
+	public FileWatcher(Path root) throws IOException {
+		this.root = root.toAbsolutePath().normalize();
+
+		// Watch every directory under the root, or scan the tree if it is not possible
+		watcher = FileSystems.getDefault().newWatchService();
+		try {
+			register(this.root, null);
+		} catch (IOException e) {
+			System.out.println("Error watching " + this.root + ", scanning it: " + e.getMessage());
+			startScan(Long.MAX_VALUE);
+		}
+
+		watcherThread = new Thread(this::watch, "file-watcher");
+		watcherThread.setDaemon(true);
+		watcherThread.start();
+	}
+
+	/**
+	 * Gets the directory watched.
+	 * @return the absolute root
+	 */
+	public Path getRoot() { return root; }
+
+	/**
+	 * Adds a cache to be told of the changes.
+	 *
+	 * @param l listener of the changes
+	 */
+	public void subscribe(Listener l) {
+		listeners.add(l);
+	}
+
+	/**
+	 * Removes a cache.
+	 *
+	 * @param l listener added before
+	 */
+	public void unsubscribe(Listener l) {
+		listeners.remove(l);
+	}
+
+	/**
+	 * Stops watching the tree.
+	 */
+	public void close() {
+		try {
+			watcher.close();
+		} catch (IOException e) {
+			System.out.println("Error closing the watcher: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Tells the subscribers the changes until the watcher is closed.
+	 */
+	private void watch() {
+		try {
+			while (true) {
+				long now = System.currentTimeMillis();
+				WatchKey key = snapshot == null ? watcher.take()
+						: watcher.poll(Math.max(nextScan - now, 1), TimeUnit.MILLISECONDS);
+
+				// Coalesce the events arriving together, and the paths repeated
+				Set<Path> changed = new HashSet<>();
+				boolean lost = false;
+				long deadline = System.currentTimeMillis() + MAX_DELAY;
+				while (key != null) {
+					lost |= drain(key, changed);
+					if (System.currentTimeMillis() >= deadline)
+						break;
+					key = watcher.poll(QUIET, TimeUnit.MILLISECONDS);
+				}
+
+				// Events lost or too many to tell, scan the tree for a while
+				if (lost || changed.size() > MAX_BATCH) {
+					startScan(System.currentTimeMillis() + SCAN_PERIOD);
+					rewatch();
+					for (Listener l : listeners)
+						l.invalidateAll();
+					continue;
+				}
+
+				if (snapshot != null && System.currentTimeMillis() >= nextScan)
+					scan(changed);
+
+				if (!changed.isEmpty()) {
+					Set<Path> paths = Collections.unmodifiableSet(changed);
+					for (Listener l : listeners)
+						l.changed(paths);
+				}
+			}
+
+		} catch (InterruptedException | ClosedWatchServiceException e) {
+			// closed, stop watching
+		}
+	}
+
+	/**
+	 * Takes the events of a directory.
+	 *
+	 * @param key key of the directory
+	 * @param changed where the changed paths are added
+	 * @return true if events were lost
+	 */
+	private boolean drain(WatchKey key, Set<Path> changed) {
+		Path dir = (Path) key.watchable();
+		boolean lost = false;
+
+		for (WatchEvent<?> event : key.pollEvents()) {
+			if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+				lost = true;
+				continue;
+			}
+
+			Path path = dir.resolve((Path) event.context());
+			changed.add(path);
+
+			// Watch the new directories too, their files may be there already
+			if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path)) {
+				try {
+					register(path, changed);
+				} catch (IOException e) {
+					System.out.println("Error watching " + path + ", scanning " + root + ": " + e.getMessage());
+					startScan(Long.MAX_VALUE);
+					lost = true;
+				}
+			}
+		}
+
+		key.reset();
+		return lost;
+	}
+
+	/**
+	 * Registers again the whole tree, so the directories created while the
+	 * events were lost are watched once the scanning ends. The directories
+	 * already watched keep their keys.
+	 */
+	private void rewatch() {
+		try {
+			register(root, null);
+		} catch (IOException e) {
+			System.out.println("Error watching " + root + ", scanning it: " + e.getMessage());
+			startScan(Long.MAX_VALUE);
+		}
+	}
+
+	/**
+	 * Registers a directory and all its subdirectories in the watcher.
+	 *
+	 * @param dir directory to watch
+	 * @param found where the paths under it are added, null to not add them
+	 * @throws IOException If an I/O error occurs when walking the directory
+	 */
+	private void register(Path dir, Set<Path> found) throws IOException {
+		Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes attrs) throws IOException {
+				d.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+						StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+				if (found != null)
+					found.add(d);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFile(Path f, BasicFileAttributes attrs) {
+				if (found != null)
+					found.add(f);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	/**
+	 * Starts or extends the scanning of the tree, taking its first snapshot.
+	 *
+	 * @param until currentTimeMillis to stop scanning
+	 */
+	private void startScan(long until) {
+		scanUntil = Math.max(scanUntil, until);
+		nextScan = System.currentTimeMillis() + SCAN_INTERVAL;
+		if (snapshot == null)
+			snapshot = snapshot();
+	}
+
+	/**
+	 * Compares the tree with the last snapshot, and stops scanning when the
+	 * period ends.
+	 *
+	 * @param changed where the paths created, deleted or modified are added
+	 */
+	private void scan(Set<Path> changed) {
+		Map<Path, Long> current = snapshot();
+
+		for (Map.Entry<Path, Long> e : current.entrySet())
+			if (!e.getValue().equals(snapshot.get(e.getKey())))
+				changed.add(e.getKey());
+		for (Path p : snapshot.keySet())
+			if (!current.containsKey(p))
+				changed.add(p);
+
+		long now = System.currentTimeMillis();
+		snapshot = now >= scanUntil ? null : current;
+		nextScan = now + SCAN_INTERVAL;
+	}
+
+	/**
+	 * Takes the modification date of every path under the root, and the
+	 * length of the files.
+	 *
+	 * @return the dates and lengths by path
+	 */
+	private Map<Path, Long> snapshot() {
+		Map<Path, Long> dates = new HashMap<>();
+
+		try {
+			Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes attrs) {
+					dates.put(d, attrs.lastModifiedTime().toMillis());
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult visitFile(Path f, BasicFileAttributes attrs) {
+					dates.put(f, attrs.lastModifiedTime().toMillis() * 31 + attrs.size());
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult visitFileFailed(Path f, IOException e) {
+					return FileVisitResult.CONTINUE;  // deleted while walking
+				}
+			});
+		} catch (IOException e) {
+			System.out.println("Error scanning " + root + ": " + e.getMessage());
+		}
+
+		return dates;
+	}
+}
@@ -0,0 +1,55 @@
+package webserver;
+
+/**
+ * Running state of a virtual host: the resolver of its files, the cache of its
+ * servlet responses and its log files. A reload creates a new context that 
+ * keeps the cache and logs of the previous one.
+ * 
+ * @author Ángel Miguélez Millos
+ */
+public class HostContext {
+
+	private final VirtualHost host;
+	private final PathResolver resolver;
+	private final ResponseCache cache;
+	private final LogHandler logHandler;
+
+	/**
+	 * Creates a new HostContext.
+	 * 
+	 * @param host configuration of the host
+	 * @param resolver resolves the URIs under the resources directory of the host
+	 * @param cache cache of the servlet responses of the host
+	 * @param logHandler accesses and errors log handler of the host
+	 */
+	public HostContext(VirtualHost host, PathResolver resolver, ResponseCache cache, LogHandler logHandler) {
+		this.host = host;
+		this.resolver = resolver;
+		this.cache = cache;
+		this.logHandler = logHandler;
+	}
+
+	/**
+	 * Gets the configuration of the host.
+	 * @return the virtual host
+	 */
+	public VirtualHost getHost() { return host; }
+
+	/**
+	 * Gets the resolver of the host files.
+	 * @return the path resolver
+	 */
+	public PathResolver getResolver() { return resolver; }
+
+	/**
+	 * Gets the cache of the host servlet responses.
+	 * @return the response cache
+	 */
+	public ResponseCache getCache() { return cache; }
+
+	/**
+	 * Gets the log handler of the host.
+	 * @return the log handler
+	 */
+	public LogHandler getLogHandler() { return logHandler; }
+}
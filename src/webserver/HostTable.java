@@ -0,0 +1,133 @@
+package webserver;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Immutable table of the virtual hosts by name. The names are hashed when the
+ * table is created and a lookup hashes the Host header in place, ignoring
+ * the case and the port, so routing a request allocates nothing.
+ * 
+ * @author Ángel Miguélez Millos
+ */
+public class HostTable {
+
+	private final HostContext defaultHost;
+	private final List<HostContext> hosts;
+
+	// open addressing table of the names and aliases
+	private final String[] names;
+	private final int[] hashes;
+	private final HostContext[] contexts;
+	private final int mask;
+
+	/**
+	 * Creates a new HostTable.
+	 * 
+	 * @param defaultHost host of the requests that match no other
+	 * @param hosts named hosts
+	 * @throws IllegalArgumentException If a name is used by two hosts
+	 */
+	public HostTable(HostContext defaultHost, List<HostContext> hosts) {
+		this.defaultHost = defaultHost;
+		this.hosts = Collections.unmodifiableList(new ArrayList<>(hosts));
+
+		int n = 0;
+		for (HostContext h : hosts)
+			n += 1 + h.getHost().getAliases().size();
+
+		// At most a quarter full, so a lookup probes one or two slots
+		int size = Integer.highestOneBit(Math.max(4, n * 4) - 1) << 1;
+		names = new String[size];
+		hashes = new int[size];
+		contexts = new HostContext[size];
+		mask = size - 1;
+
+		for (HostContext h : hosts) {
+			put(h.getHost().getName(), h);
+			for (String alias : h.getHost().getAliases())
+				put(alias, h);
+		}
+	}
+
+	/**
+	 * Adds a name of a host.
+	 * 
+	 * @param name lower-case name
+	 * @param context host
+	 * @throws IllegalArgumentException If the name is already used
+	 */
+	private void put(String name, HostContext context) {
+		int h = hash(name, name.length());
+		int i = h & mask;
+
+		while (contexts[i] != null) {
+			if (names[i].equals(name))
+				throw new IllegalArgumentException("Host name used twice: " + name);
+			i = (i + 1) & mask;
+		}
+
+		names[i] = name;
+		hashes[i] = h;
+		contexts[i] = context;
+	}
+
+	/**
+	 * Gets the host of a request.
+	 * 
+	 * @param host value of the Host header, i.e. "Example.com:5000", null if missing
+	 * @return the host with that name, the default host if none matches
+	 */
+	public HostContext get(String host) {
+		if (host == null)
+			return defaultHost;
+
+		// Name without the port nor the final dot
+		int end = host.length();
+		int colon = host.lastIndexOf(':');
+		if (colon >= 0 && host.indexOf(']', colon) < 0)
+			end = colon;
+		if (end > 0 && host.charAt(end - 1) == '.')
+			end--;
+
+		int h = hash(host, end);
+		for (int i = h & mask; contexts[i] != null; i = (i + 1) & mask) {
+			if (hashes[i] == h && names[i].length() == end && host.regionMatches(true, 0, names[i], 0, end))
+				return contexts[i];
+		}
+
+		return defaultHost;
+	}
+
+	/**
+	 * Gets the host of the requests that match no other.
+	 * @return the default host
+	 */
+	public HostContext getDefault() { return defaultHost; }
+
+	/**
+	 * Gets the named hosts.
+	 * @return unmodifiable list of the hosts, without the default one
+	 */
+	public List<HostContext> getHosts() { return hosts; }
+
+	/**
+	 * Hashes the start of a name ignoring the case of the ASCII letters.
+	 * 
+	 * @param s name
+	 * @param end length hashed
+	 * @return the hash
+	 */
+	private static int hash(String s, int end) {
+		int h = 0;
+		for (int i = 0; i < end; i++) {
+			char c = s.charAt(i);
+			if (c >= 'A' && c <= 'Z')
+				c += 'a' - 'A';
+			h = 31 * h + c;
+		}
+
+		return h ^ (h >>> 16);
+	}
+}
@@ -0,0 +1,149 @@
+package webserver;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.function.BiConsumer;
+
+/**
+ * Decodes the HPACK header blocks of a connection. The blocks must be decoded
+ * in the order they arrive, since they change the dynamic table.
+ *
+ * @author Ángel Miguélez Millos
+ */
+public class HpackDecoder {
+
+	private final HpackTable table;
+	private final int maxTableSize;		// size announced to the peer
+	private final ByteArrayOutputStream string = new ByteArrayOutputStream(256);
+
+	/**
+	 * Creates a new HpackDecoder.
+	 *
+	 * @param maxTableSize max octets of the dynamic table, as announced to the peer
+	 */
+	public HpackDecoder(int maxTableSize) {
+		this.maxTableSize = maxTableSize;
+		table = new HpackTable(maxTableSize, false);
+	}
+
+	/**
+	 * Decodes a header block.
+	 *
+	 * @param b buffer with the block
+	 * @param off position of the first byte
+	 * @param len number of bytes
+	 * @param fields receives the name and value of each field, in order
+	 * @throws IllegalArgumentException If the block is not valid
+	 */
+	public void decode(byte[] b, int off, int len, BiConsumer<String, String> fields) {
+		int[] pos = { off };
+		int end = off + len;
+		boolean first = true;  // the table size can only change before the fields
+
+		while (pos[0] < end) {
+			int octet = b[pos[0]] & 0xFF;
+
+			// Indexed field
+			if ((octet & 0x80) != 0) {
+				int index = readInt(b, pos, end, 7);
+				if (index == 0)
+					throw new IllegalArgumentException("Invalid header table index: 0");
+				fields.accept(table.getName(index), table.getValue(index));
+
+			// Literal field added to the table
+			} else if ((octet & 0x40) != 0) {
+				String name = readName(b, pos, end, 6);
+				String value = readString(b, pos, end);
+				table.add(name, value);
+				fields.accept(name, value);
+
+			// Table size update
+			} else if ((octet & 0x20) != 0) {
+				if (!first)
+					throw new IllegalArgumentException("Table size update after a field");
+				int size = readInt(b, pos, end, 5);
+				if (size > maxTableSize)
+					throw new IllegalArgumentException("Table size over the limit: " + size);
+				table.setMaxSize(size);
+				continue;
+
+			// Literal field not added, maybe never
+			} else {
+				String name = readName(b, pos, end, 4);
+				fields.accept(name, readString(b, pos, end));
+			}
+
+			first = false;
+		}
+	}
+
+	/**
+	 * Reads the name of a literal field, indexed or as a string.
+	 *
+	 * @param b buffer with the block
+	 * @param pos position of the field, moved after the name
+	 * @param end end of the block
+	 * @param prefix bits of the index in the first byte
+	 * @return the name
+	 */
+	private String readName(byte[] b, int[] pos, int end, int prefix) {
+		int index = readInt(b, pos, end, prefix);
+		return index == 0 ? readString(b, pos, end) : table.getName(index);
+	}
+
+	/**
+	 * Reads a string, Huffman encoded or not.
+	 *
+	 * @param b buffer with the block
+	 * @param pos position of the string, moved after it
+	 * @param end end of the block
+	 * @return the string, one char per octet
+	 */
+	private String readString(byte[] b, int[] pos, int end) {
+		if (pos[0] >= end)
+			throw new IllegalArgumentException("Truncated header block");
+
+		boolean huffman = (b[pos[0]] & 0x80) != 0;
+		int len = readInt(b, pos, end, 7);
+		if (len > end - pos[0])
+			throw new IllegalArgumentException("Truncated header block");
+
+		int start = pos[0];
+		pos[0] += len;
+		if (!huffman)
+			return new String(b, start, len, StandardCharsets.ISO_8859_1);
+
+		string.reset();
+		Huffman.decode(b, start, len, string);
+		return new String(string.toByteArray(), StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * Reads an integer with a prefix of the first byte.
+	 *
+	 * @param b buffer with the block
+	 * @param pos position of the integer, moved after it
+	 * @param end end of the block
+	 * @param prefix bits of the first byte used
+	 * @return the integer
+	 */
+	private static int readInt(byte[] b, int[] pos, int end, int prefix) {
+		int max = (1 << prefix) - 1;
+		int value = b[pos[0]++] & max;
+		if (value < max)
+			return value;
+
+		// Continued in 7 bit groups, low ones first
+		for (int shift = 0; ; shift += 7) {
+			if (pos[0] >= end)
+				throw new IllegalArgumentException("Truncated header block");
+			if (shift > 21)
+				throw new IllegalArgumentException("Header integer too large");
+
+			int octet = b[pos[0]++] & 0xFF;
+			value += (octet & 0x7F) << shift;
+			if ((octet & 0x80) == 0)
+				return value;
+		}
+	}
+}
@@ -0,0 +1,143 @@
+package webserver;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Encodes the HPACK header blocks of a connection. The fields repeated between
+ * responses, as the server or the content type, are added to the dynamic table
+ * and sent as an index the next times. The blocks must be sent in the order
+ * they are encoded.
+ *
+ * @author Ángel Miguélez Millos
+ */
+public class HpackEncoder {
+
+	private final static int DEFAULT_TABLE_SIZE = 4096;
+
+	// Fields that change on every response, not worth a table entry
+	private final static Set<String> NOT_INDEXED = new HashSet<>(Arrays.asList(
+			"content-length", "last-modified", "etag", "set-cookie"));
+
+	private final HpackTable table = new HpackTable(DEFAULT_TABLE_SIZE, true);
+	private int minSize = -1;	// smallest table size set since the last block, -1 if none
+	private int newSize;		// last table size set
+
+	/**
+	 * Creates a new HpackEncoder.
+	 */
+	public HpackEncoder() {
+
+	}
+
+	/**
+	 * Applies the max table size of the peer. The encoder uses the default size
+	 * or a smaller one, and announces the change in the next block.
+	 *
+	 * @param peerMaxSize max octets of the dynamic table of the peer
+	 */
+	public void setMaxTableSize(int peerMaxSize) {
+		int size = Math.min(peerMaxSize, DEFAULT_TABLE_SIZE);
+		if (minSize == -1 && size == table.getMaxSize())
+			return;
+
+		minSize = minSize == -1 ? size : Math.min(minSize, size);
+		newSize = size;
+	}
+
+	/**
+	 * Starts a header block, announcing the table size changes. If the size
+	 * went down and up again, the smallest one is announced first.
+	 *
+	 * @param out where the block is written
+	 */
+	public void start(ByteArrayOutputStream out) {
+		if (minSize == -1)
+			return;
+
+		if (minSize < newSize) {
+			writeInt(out, 0x20, 5, minSize);
+			table.setMaxSize(minSize);
+		}
+		writeInt(out, 0x20, 5, newSize);
+		table.setMaxSize(newSize);
+		minSize = -1;
+	}
+
+	/**
+	 * Encodes a field.
+	 *
+	 * @param out where the block is written
+	 * @param name name of the field, lower case
+	 * @param value value of the field
+	 */
+	public void encode(ByteArrayOutputStream out, String name, String value) {
+		int index = table.find(name, value);
+
+		// Field in the table
+		if (index > 0) {
+			writeInt(out, 0x80, 7, index);
+			return;
+		}
+
+		// Literal value, with an indexed name if the table has it
+		boolean indexed = !NOT_INDEXED.contains(name);
+		if (indexed)
+			writeInt(out, 0x40, 6, -index);
+		else
+			writeInt(out, 0x00, 4, -index);
+		if (index == 0)
+			writeString(out, name);
+		writeString(out, value);
+
+		if (indexed)
+			table.add(name, value);
+	}
+
+	/**
+	 * Writes a string, Huffman encoded if it is shorter.
+	 *
+	 * @param out where the block is written
+	 * @param s string, one char per octet
+	 */
+	private static void writeString(ByteArrayOutputStream out, String s) {
+		byte[] b = s.getBytes(StandardCharsets.ISO_8859_1);
+		int encoded = Huffman.encodedLength(b);
+
+		if (encoded < b.length) {
+			writeInt(out, 0x80, 7, encoded);
+			Huffman.encode(b, out);
+		} else {
+			writeInt(out, 0x00, 7, b.length);
+			out.write(b, 0, b.length);
+		}
+	}
+
+	/**
+	 * Writes an integer with a prefix of the first byte.
+	 *
+	 * @param out where the block is written
+	 * @param flags bits of the first byte over the prefix
+	 * @param prefix bits of the first byte used
+	 * @param value integer, not negative
+	 */
+	private static void writeInt(ByteArrayOutputStream out, int flags, int prefix, int value) {
+		int max = (1 << prefix) - 1;
+		if (value < max) {
+			out.write(flags | value);
+			return;
+		}
+
+		// Continued in 7 bit groups, low ones first
+		out.write(flags | max);
+		value -= max;
+		while (value >= 0x80) {
+			out.write((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.write(value);
+	}
+}
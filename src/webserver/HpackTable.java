@@ -0,0 +1,236 @@
+package webserver;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Header table of HPACK: the static table of RFC 7541 appendix A followed by
+ * a dynamic table of the fields added by a header block, newest first. The
+ * strings are ISO-8859-1, one char per octet, as the http/1.x header.
+ *
+ * The dynamic entries are numbered as they are added, so an entry keeps its
+ * number while the newer ones move it down the table and it can be found by
+ * name and value without walking the table.
+ *
+ * @author Ángel Miguélez Millos
+ */
+public class HpackTable {
+
+	private final static int ENTRY_OVERHEAD = 32;	// octets counted per entry besides its strings
+
+	private final static String[][] STATIC = {
+		{ ":authority", "" }, { ":method", "GET" }, { ":method", "POST" }, { ":path", "/" },
+		{ ":path", "/index.html" }, { ":scheme", "http" }, { ":scheme", "https" }, { ":status", "200" },
+		{ ":status", "204" }, { ":status", "206" }, { ":status", "304" }, { ":status", "400" },
+		{ ":status", "404" }, { ":status", "500" }, { "accept-charset", "" }, { "accept-encoding", "gzip, deflate" },
+		{ "accept-language", "" }, { "accept-ranges", "" }, { "accept", "" }, { "access-control-allow-origin", "" },
+		{ "age", "" }, { "allow", "" }, { "authorization", "" }, { "cache-control", "" },
+		{ "content-disposition", "" }, { "content-encoding", "" }, { "content-language", "" }, { "content-length", "" },
+		{ "content-location", "" }, { "content-range", "" }, { "content-type", "" }, { "cookie", "" },
+		{ "date", "" }, { "etag", "" }, { "expect", "" }, { "expires", "" },
+		{ "from", "" }, { "host", "" }, { "if-match", "" }, { "if-modified-since", "" },
+		{ "if-none-match", "" }, { "if-range", "" }, { "if-unmodified-since", "" }, { "last-modified", "" },
+		{ "link", "" }, { "location", "" }, { "max-forwards", "" }, { "proxy-authenticate", "" },
+		{ "proxy-authorization", "" }, { "range", "" }, { "referer", "" }, { "refresh", "" },
+		{ "retry-after", "" }, { "server", "" }, { "set-cookie", "" }, { "strict-transport-security", "" },
+		{ "transfer-encoding", "" }, { "user-agent", "" }, { "vary", "" }, { "via", "" },
+		{ "www-authenticate", "" }
+	};
+
+	/**
+	 * Number of entries of the static table, the first dynamic one is the next.
+	 */
+	public final static int STATIC_LENGTH = STATIC.length;
+
+	// Static index of each field and of the first field of each name
+	private final static Map<String, Integer> STATIC_FIELDS = new HashMap<>();
+	private final static Map<String, Integer> STATIC_NAMES = new HashMap<>();
+
+	static {
+		for (int i = STATIC.length - 1; i >= 0; i--) {
+			STATIC_FIELDS.put(STATIC[i][0] + '\0' + STATIC[i][1], i + 1);
+			STATIC_NAMES.put(STATIC[i][0], i + 1);
+		}
+	}
+
+	// dynamic entries in a ring, the oldest at head
+	private String[] names = new String[16];
+	private String[] values = new String[16];
+	private int head, count;
+	private long added;		// entries ever added, the number of the newest one
+	private int size;		// octets of the entries
+	private int maxSize;
+
+	// number of the newest entry of each field and name, to search them
+	private final Map<String, Long> fields = new HashMap<>();
+	private final Map<String, Long> fieldNames = new HashMap<>();
+	private final boolean searchable;
+
+	/**
+	 * Creates a new HpackTable.
+	 *
+	 * @param maxSize max octets of the dynamic table
+	 * @param searchable true to find the entries by name and value, as an encoder does
+	 */
+	public HpackTable(int maxSize, boolean searchable) {
+		this.maxSize = maxSize;
+		this.searchable = searchable;
+	}
+
+	/**
+	 * Gets the name of an entry.
+	 *
+	 * @param index index of the entry, from 1
+	 * @return the name
+	 * @throws IllegalArgumentException If there is no entry with that index
+	 */
+	public String getName(int index) {
+		if (index >= 1 && index <= STATIC_LENGTH)
+			return STATIC[index - 1][0];
+		return names[slot(index)];
+	}
+
+	/**
+	 * Gets the value of an entry.
+	 *
+	 * @param index index of the entry, from 1
+	 * @return the value
+	 * @throws IllegalArgumentException If there is no entry with that index
+	 */
+	public String getValue(int index) {
+		if (index >= 1 && index <= STATIC_LENGTH)
+			return STATIC[index - 1][1];
+		return values[slot(index)];
+	}
+
+	/**
+	 * Finds a field in the table, the static one first.
+	 *
+	 * @param name name of the field
+	 * @param value value of the field
+	 * @return the index of the field, minus the index of an entry with its name
+	 * if there is none, 0 if the name is not either
+	 */
+	public int find(String name, String value) {
+		String key = name + '\0' + value;
+
+		Integer i = STATIC_FIELDS.get(key);
+		if (i != null)
+			return i;
+		Long n = fields.get(key);
+		if (n != null)
+			return index(n);
+
+		i = STATIC_NAMES.get(name);
+		if (i != null)
+			return -i;
+		n = fieldNames.get(name);
+		if (n != null)
+			return -index(n);
+		return 0;
+	}
+
+	/**
+	 * Adds an entry to the dynamic table, evicting the oldest ones to make
+	 * room. An entry bigger than the table empties it and is not added.
+	 *
+	 * @param name name of the field
+	 * @param value value of the field
+	 */
+	public void add(String name, String value) {
+		int entrySize = name.length() + value.length() + ENTRY_OVERHEAD;
+		evict(maxSize - entrySize);
+		if (entrySize > maxSize)
+			return;
+
+		// Grow the ring
+		if (count == names.length) {
+			String[] n = new String[count * 2], v = new String[count * 2];
+			for (int i = 0; i < count; i++) {
+				n[i] = names[(head + i) % count];
+				v[i] = values[(head + i) % count];
+			}
+			names = n;
+			values = v;
+			head = 0;
+		}
+
+		int tail = (head + count) % names.length;
+		names[tail] = name;
+		values[tail] = value;
+		count++;
+		size += entrySize;
+		added++;
+
+		if (searchable) {
+			fields.put(name + '\0' + value, added);
+			fieldNames.put(name, added);
+		}
+	}
+
+	/**
+	 * Changes the max size of the dynamic table, evicting the oldest entries
+	 * that do not fit.
+	 *
+	 * @param maxSize max octets of the dynamic table
+	 */
+	public void setMaxSize(int maxSize) {
+		this.maxSize = maxSize;
+		evict(maxSize);
+	}
+
+	/**
+	 * Gets the max size of the dynamic table.
+	 *
+	 * @return the max octets of the entries
+	 */
+	public int getMaxSize() { return maxSize; }
+
+	/**
+	 * Evicts the oldest entries until the table is not bigger than a size.
+	 *
+	 * @param target octets the table can have
+	 */
+	private void evict(int target) {
+		while (count > 0 && size > target) {
+			String name = names[head], value = values[head];
+			long number = added - count + 1;
+
+			// Forget it unless a newer entry has the same field or name
+			if (searchable) {
+				fields.remove(name + '\0' + value, number);
+				fieldNames.remove(name, number);
+			}
+
+			names[head] = null;
+			values[head] = null;
+			head = (head + 1) % names.length;
+			count--;
+			size -= name.length() + value.length() + ENTRY_OVERHEAD;
+		}
+	}
+
+	/**
+	 * Gets the index of a dynamic entry from its number.
+	 *
+	 * @param number number of the entry
+	 * @return its index
+	 */
+	private int index(long number) {
+		return STATIC_LENGTH + (int) (added - number) + 1;
+	}
+
+	/**
+	 * Gets the position in the ring of a dynamic entry.
+	 *
+	 * @param index index of the entry
+	 * @return its position
+	 * @throws IllegalArgumentException If there is no entry with that index
+	 */
+	private int slot(int index) {
+		int i = index - STATIC_LENGTH - 1;  // 0 is the newest
+		if (index < 1 || i >= count)
+			throw new IllegalArgumentException("Invalid header table index: " + index);
+		return (head + count - 1 - i) % names.length;
+	}
+}
@@ -0,0 +1,1036 @@
+package webserver;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Serves a cleartext HTTP/2 connection (h2c), started with the connection
+ * preface or by upgrading an http/1.1 request. The connection thread reads the
+ * frames and each stream is served in its own thread by HttpRequestHandler,
+ * as an http/1.x request, so the files and the servlets are served the same
+ * way. The frames of the responses are written one at a time, so the bodies
+ * of the streams go interleaved, within the flow control windows the client
+ * grants.
+ *
+ * @author Ángel Miguélez Millos
+ */
+public class Http2Connection {
+
+	/**
+	 * Start of the connection preface as read by ServerUtils.readInput.
+	 */
+	public final static String PREFACE_START = "PRI * HTTP/2.0\n";
+	private final static byte[] PREFACE_END = "SM\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+	private final static byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+	private final static byte[] SWITCHING = ("HTTP/1.1 101 Switching Protocols\r\nConnection: Upgrade\r\n"
+			+ "Upgrade: h2c\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+
+	// frame types
+	private final static int DATA = 0x0, HEADERS = 0x1, PRIORITY = 0x2, RST_STREAM = 0x3, SETTINGS = 0x4,
+			PUSH_PROMISE = 0x5, PING = 0x6, GOAWAY = 0x7, WINDOW_UPDATE = 0x8, CONTINUATION = 0x9;
+
+	// frame flags
+	private final static int END_STREAM = 0x1, ACK = 0x1, END_HEADERS = 0x4, PADDED = 0x8, PRIORITY_FLAG = 0x20;
+
+	// settings
+	private final static int HEADER_TABLE_SIZE = 0x1, ENABLE_PUSH = 0x2, MAX_CONCURRENT_STREAMS = 0x3,
+			INITIAL_WINDOW_SIZE = 0x4, MAX_FRAME_SIZE = 0x5, MAX_HEADER_LIST_SIZE = 0x6;
+
+	// error codes
+	final static int NO_ERROR = 0x0, PROTOCOL_ERROR = 0x1, INTERNAL_ERROR = 0x2, FLOW_CONTROL_ERROR = 0x3,
+			STREAM_CLOSED = 0x5, FRAME_SIZE_ERROR = 0x6, REFUSED_STREAM = 0x7, COMPRESSION_ERROR = 0x9;
+
+	private final static int FRAME_SIZE = 16384;		// max payload received and sent
+	private final static int DEFAULT_WINDOW = 65535;	// window of the protocol before any setting
+	private final static int TABLE_SIZE = 4096;			// HPACK table of the requests
+	private final static long MAX_WINDOW = Integer.MAX_VALUE;
+	private final static int OUT_BUFFER_SIZE = 65536;
+
+	// Threads serving the streams of all the connections, kept while there is work
+	private final static ExecutorService STREAMS = Executors.newCachedThreadPool(new ThreadFactory() {
+		private final AtomicInteger n = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "h2-stream-" + n.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	private final long id;  // number of the connection
+	private final Socket socket;
+	private final InputStream in;
+	private final OutputStream out;
+	private final ServerConfig config;
+	private final HostTable hosts;
+	private final ServletExecutor servlets;
+	private final Throttle throttle;  // bandwidth of the connection
+	private final Http2Settings settings;
+	private final int writeTimeout;
+	private final int bodyTimeout;
+
+	// read side, used by the connection thread only
+	private final HpackDecoder decoder = new HpackDecoder(TABLE_SIZE);
+	private final byte[] frame = new byte[FRAME_SIZE];
+	private final byte[] frameHeader = new byte[9];
+	private final ByteArrayOutputStream block = new ByteArrayOutputStream();  // header block being received
+	private int lastStream;		// highest stream opened by the client
+	private int receiveWindow;	// body bytes the client can send on the connection
+	private int received;		// body bytes not given back yet
+	private boolean goingAway;
+
+	// write side
+	private final Object writeLock = new Object();
+	private final HpackEncoder encoder = new HpackEncoder();  // guarded by writeLock
+	private final byte[] header = new byte[9];  // guarded by writeLock
+	private volatile int maxFrameSize = FRAME_SIZE;
+
+	// flow control of the responses
+	private final Object flowLock = new Object();
+	private long sendWindow = DEFAULT_WINDOW;	// guarded by flowLock
+	private long initialWindow = DEFAULT_WINDOW;	// of new streams, guarded by flowLock
+
+	private final Map<Integer, Http2Stream> streams = new ConcurrentHashMap<>();
+	private volatile boolean closed;
+
+	/**
+	 * Error that closes the connection.
+	 */
+	private static class ConnectionError extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		private final int code;
+
+		private ConnectionError(int code, String message) {
+			super(message);
+			this.code = code;
+		}
+	}
+
+	/**
+	 * Creates a new Http2Connection.
+	 *
+	 * @param id number of the connection
+	 * @param socket socket of the client
+	 * @param in stream to read the frames, after the request or the preface start
+	 * @param out stream to send the frames
+	 * @param config server configuration snapshot used during the whole connection
+	 * @param hosts sites served, chosen by the authority of each request
+	 * @param servlets runs the servlets out of the stream threads
+	 * @param throttle bandwidth of the connection, shared by the streams
+	 */
+	public Http2Connection(long id, Socket socket, InputStream in, OutputStream out, ServerConfig config,
+			HostTable hosts, ServletExecutor servlets, Throttle throttle) {
+		this.id = id;
+		this.socket = socket;
+		this.in = in;
+		this.out = new BufferedOutputStream(out, OUT_BUFFER_SIZE);
+		this.config = config;
+		this.hosts = hosts;
+		this.servlets = servlets;
+		this.throttle = throttle;
+		this.settings = config.getHttp2Settings();
+		this.writeTimeout = config.getTimeouts().getWrite();
+		this.bodyTimeout = config.getTimeouts().getBody();
+	}
+
+	/**
+	 * Gets the number of streams being served.
+	 *
+	 * @return the open streams, 0 if the connection is idle
+	 */
+	public int getOpenStreams() { return streams.size(); }
+
+	/**
+	 * Checks if a request asks to upgrade to h2c. Only the requests without
+	 * body are upgraded.
+	 *
+	 * @param message request message
+	 * @return true if it can be upgraded
+	 */
+	public static boolean isUpgrade(String message) {
+		int i = message.indexOf('\n');
+		if (i == -1 || !message.substring(0, i).endsWith(" HTTP/1.1"))
+			return false;
+
+		Map<String, String> headers = ServerUtils.parseHeaders(message.substring(i + 1));
+		String upgrade = headers.get("upgrade"), length = headers.get("content-length");
+
+		return upgrade != null && hasToken(upgrade, "h2c") && headers.containsKey("http2-settings")
+				&& hasToken(headers.getOrDefault("connection", ""), "upgrade")
+				&& headers.get("transfer-encoding") == null && (length == null || length.equals("0"));
+	}
+
+	/**
+	 * Serves the connection until the client closes it, it stays idle without
+	 * streams or an error happens.
+	 *
+	 * @param upgrade request upgraded, served on stream 1, null if the client
+	 * started with the preface
+	 * @throws IOException If an I/O error occurs
+	 */
+	public void serve(String upgrade) throws IOException {
+		try {
+			// Answer the upgrade with the settings of the client in the request
+			if (upgrade != null) {
+				out.write(SWITCHING);
+				int i = upgrade.indexOf('\n');
+				String s = ServerUtils.parseHeaders(upgrade.substring(i + 1)).get("http2-settings");
+				byte[] b;
+				try {
+					b = Base64.getUrlDecoder().decode(s.trim());
+				} catch (IllegalArgumentException e) {
+					throw new ConnectionError(PROTOCOL_ERROR, "Invalid HTTP2-Settings");
+				}
+				applySettings(b, b.length);
+			}
+
+			sendSettings();
+
+			if (upgrade != null) {
+				lastStream = 1;
+				open(1, upgrade, true);
+			}
+
+			// Connection preface, part of it already read without upgrade
+			byte[] expected = upgrade != null ? PREFACE : PREFACE_END;
+			byte[] b = new byte[expected.length];
+			readFully(b, b.length);
+			for (int i = 0; i < b.length; i++)
+				if (b[i] != expected[i])
+					throw new ConnectionError(PROTOCOL_ERROR, "Invalid connection preface");
+
+			// The client starts with its settings
+			boolean first = true;
+			while (true) {
+				if (!readFrame(first))
+					break;
+				first = false;
+			}
+
+		} catch (ConnectionError e) {
+			System.out.println("HTTP/2 error in connection " + id + ": " + e.getMessage());
+			goAway(e.code);
+
+		} finally {
+			closed = true;
+			for (Http2Stream s : streams.values())
+				s.reset();
+			synchronized (flowLock) {
+				flowLock.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Reads and processes a frame.
+	 *
+	 * @param first true if it is the first frame of the client
+	 * @return false if the connection must be closed
+	 * @throws ConnectionError If the frame breaks the protocol
+	 * @throws IOException If an I/O error occurs
+	 */
+	private boolean readFrame(boolean first) throws IOException {
+		try {
+			readFully(frameHeader, 9);
+		} catch (SocketTimeoutException e) {
+			if (!streams.isEmpty())
+				return true;  // waiting for the responses
+
+			// Idle, close it
+			goAway(NO_ERROR);
+			return false;
+		} catch (EOFException e) {
+			return false;
+		}
+
+		int length = ((frameHeader[0] & 0xFF) << 16) | ((frameHeader[1] & 0xFF) << 8) | (frameHeader[2] & 0xFF);
+		int type = frameHeader[3] & 0xFF;
+		int flags = frameHeader[4] & 0xFF;
+		int stream = readInt(frameHeader, 5) & 0x7FFFFFFF;
+
+		if (length > FRAME_SIZE)
+			throw new ConnectionError(FRAME_SIZE_ERROR, "Frame too large: " + length);
+		readFully(frame, length);
+
+		if (first && (type != SETTINGS || (flags & ACK) != 0))
+			throw new ConnectionError(PROTOCOL_ERROR, "The connection does not start with SETTINGS");
+
+		switch (type) {
+			case DATA:
+				onData(stream, flags, length);
+				break;
+
+			case HEADERS:
+				onHeaders(stream, flags, length);
+				break;
+
+			case PRIORITY:
+				if (stream == 0)
+					throw new ConnectionError(PROTOCOL_ERROR, "PRIORITY without stream");
+				if (length != 5)
+					throw new ConnectionError(FRAME_SIZE_ERROR, "Invalid PRIORITY");
+				break;  // the streams are served as they come
+
+			case RST_STREAM:
+				onReset(stream, length);
+				break;
+
+			case SETTINGS:
+				onSettings(stream, flags, length);
+				break;
+
+			case PING:
+				if (stream != 0)
+					throw new ConnectionError(PROTOCOL_ERROR, "PING on a stream");
+				if (length != 8)
+					throw new ConnectionError(FRAME_SIZE_ERROR, "Invalid PING");
+				if ((flags & ACK) == 0)
+					sendFrame(PING, ACK, 0, frame, 0, 8);
+				break;
+
+			case GOAWAY:
+				if (stream != 0)
+					throw new ConnectionError(PROTOCOL_ERROR, "GOAWAY on a stream");
+				goingAway = true;  // finish the streams open, until the client closes
+				break;
+
+			case WINDOW_UPDATE:
+				onWindowUpdate(stream, length);
+				break;
+
+			case PUSH_PROMISE:
+			case CONTINUATION:
+				throw new ConnectionError(PROTOCOL_ERROR, "Unexpected frame type " + type);
+
+			default:
+				break;  // unknown types are ignored
+		}
+
+		return true;
+	}
+
+	/**
+	 * Processes a DATA frame, a piece of a request body.
+	 *
+	 * @param stream stream identifier
+	 * @param flags frame flags
+	 * @param length payload length
+	 * @throws IOException If the frame breaks the protocol or an I/O error occurs
+	 */
+	private void onData(int stream, int flags, int length) throws IOException {
+		if (stream == 0)
+			throw new ConnectionError(PROTOCOL_ERROR, "DATA without stream");
+
+		// The padding counts too
+		if (length > receiveWindow)
+			throw new ConnectionError(FLOW_CONTROL_ERROR, "Connection window exceeded");
+		receiveWindow -= length;
+		received += length;
+
+		// Give the window back, the streams bound what is kept
+		if (received >= settings.getWindowSize() / 2) {
+			sendWindowUpdate(0, received);
+			receiveWindow += received;
+			received = 0;
+		}
+
+		int off = 0, end = length;
+		if ((flags & PADDED) != 0) {
+			if (length < 1 || (frame[0] & 0xFF) >= length)
+				throw new ConnectionError(PROTOCOL_ERROR, "Invalid padding");
+			off = 1;
+			end = length - (frame[0] & 0xFF);
+		}
+
+		Http2Stream s = streams.get(stream);
+		if (s == null) {
+			if (stream > lastStream)
+				throw new ConnectionError(PROTOCOL_ERROR, "DATA on an idle stream");
+			return;  // closed, ignored
+		}
+
+		if (s.isRequestEnded()) {
+			resetStream(s, STREAM_CLOSED);
+			return;
+		}
+		if (!s.receive(frame, off, end - off, (flags & END_STREAM) != 0))
+			resetStream(s, FLOW_CONTROL_ERROR);
+	}
+
+	/**
+	 * Processes a HEADERS frame, with its CONTINUATION frames, a new request
+	 * or the trailer of a request body.
+	 *
+	 * @param stream stream identifier
+	 * @param flags frame flags
+	 * @param length payload length
+	 * @throws IOException If the frame breaks the protocol or an I/O error occurs
+	 */
+	private void onHeaders(int stream, int flags, int length) throws IOException {
+		if (stream == 0)
+			throw new ConnectionError(PROTOCOL_ERROR, "HEADERS without stream");
+
+		int off = 0, end = length;
+		if ((flags & PADDED) != 0) {
+			if (length < 1 || (frame[0] & 0xFF) >= length)
+				throw new ConnectionError(PROTOCOL_ERROR, "Invalid padding");
+			off = 1;
+			end = length - (frame[0] & 0xFF);
+		}
+		if ((flags & PRIORITY_FLAG) != 0)
+			off += 5;
+		if (off > end)
+			throw new ConnectionError(FRAME_SIZE_ERROR, "Invalid HEADERS");
+
+		// Whole header block, the frames of other streams cannot come between
+		block.reset();
+		block.write(frame, off, end - off);
+		int f = flags;
+		while ((f & END_HEADERS) == 0) {
+			readFully(frameHeader, 9);
+			int len = ((frameHeader[0] & 0xFF) << 16) | ((frameHeader[1] & 0xFF) << 8) | (frameHeader[2] & 0xFF);
+			if (len > FRAME_SIZE)
+				throw new ConnectionError(FRAME_SIZE_ERROR, "Frame too large: " + len);
+			if ((frameHeader[3] & 0xFF) != CONTINUATION || (readInt(frameHeader, 5) & 0x7FFFFFFF) != stream)
+				throw new ConnectionError(PROTOCOL_ERROR, "Header block interrupted");
+
+			readFully(frame, len);
+			block.write(frame, 0, len);
+			if (block.size() > 2 * ServerUtils.MAX_HEADER)
+				throw new ConnectionError(PROTOCOL_ERROR, "Header block too large");
+			f = frameHeader[4] & 0xFF;
+		}
+
+		// Decode it always, the table changes
+		Request r = new Request();
+		try {
+			byte[] b = block.toByteArray();
+			decoder.decode(b, 0, b.length, r::add);
+		} catch (IllegalArgumentException e) {
+			throw new ConnectionError(COMPRESSION_ERROR, e.getMessage());
+		}
+
+		// Trailer of a request body
+		Http2Stream s = streams.get(stream);
+		if (s != null) {
+			if (s.isRequestEnded())
+				resetStream(s, STREAM_CLOSED);
+			else if ((flags & END_STREAM) == 0)
+				resetStream(s, PROTOCOL_ERROR);
+			else
+				s.endRequest();
+			return;
+		}
+
+		if (stream % 2 == 0 || stream <= lastStream)
+			throw new ConnectionError(PROTOCOL_ERROR, "Invalid stream " + stream);
+		lastStream = stream;
+
+		if (goingAway)
+			return;
+		if (streams.size() >= settings.getMaxStreams()) {
+			sendReset(stream, REFUSED_STREAM);
+			return;
+		}
+
+		String message = r.toMessage();
+		if (message == null) {
+			sendReset(stream, PROTOCOL_ERROR);  // malformed request
+			return;
+		}
+
+		open(stream, message, (flags & END_STREAM) != 0);
+	}
+
+	/**
+	 * Processes a RST_STREAM frame, a stream cancelled by the client.
+	 *
+	 * @param stream stream identifier
+	 * @param length payload length
+	 * @throws ConnectionError If the frame breaks the protocol
+	 */
+	private void onReset(int stream, int length) throws ConnectionError {
+		if (stream == 0)
+			throw new ConnectionError(PROTOCOL_ERROR, "RST_STREAM without stream");
+		if (length != 4)
+			throw new ConnectionError(FRAME_SIZE_ERROR, "Invalid RST_STREAM");
+
+		Http2Stream s = streams.remove(stream);
+		if (s == null) {
+			if (stream > lastStream)
+				throw new ConnectionError(PROTOCOL_ERROR, "RST_STREAM on an idle stream");
+			return;
+		}
+
+		s.reset();
+		synchronized (flowLock) {
+			flowLock.notifyAll();
+		}
+	}
+
+	/**
+	 * Processes a SETTINGS frame, applying the settings and acknowledging them.
+	 *
+	 * @param stream stream identifier
+	 * @param flags frame flags
+	 * @param length payload length
+	 * @throws IOException If the frame breaks the protocol or an I/O error occurs
+	 */
+	private void onSettings(int stream, int flags, int length) throws IOException {
+		if (stream != 0)
+			throw new ConnectionError(PROTOCOL_ERROR, "SETTINGS on a stream");
+
+		if ((flags & ACK) != 0) {
+			if (length != 0)
+				throw new ConnectionError(FRAME_SIZE_ERROR, "Invalid SETTINGS acknowledgement");
+			return;
+		}
+
+		applySettings(frame, length);
+		sendFrame(SETTINGS, ACK, 0, frame, 0, 0);
+	}
+
+	/**
+	 * Applies the settings of the client.
+	 *
+	 * @param b buffer with the settings
+	 * @param length bytes of the settings
+	 * @throws ConnectionError If a setting is not valid
+	 */
+	private void applySettings(byte[] b, int length) throws ConnectionError {
+		if (length % 6 != 0)
+			throw new ConnectionError(FRAME_SIZE_ERROR, "Invalid SETTINGS");
+
+		for (int i = 0; i < length; i += 6) {
+			int setting = ((b[i] & 0xFF) << 8) | (b[i + 1] & 0xFF);
+			long value = readInt(b, i + 2) & 0xFFFFFFFFL;
+
+			switch (setting) {
+				case HEADER_TABLE_SIZE:
+					synchronized (writeLock) {
+						encoder.setMaxTableSize((int) Math.min(value, Integer.MAX_VALUE));
+					}
+					break;
+
+				case ENABLE_PUSH:
+					if (value > 1)
+						throw new ConnectionError(PROTOCOL_ERROR, "Invalid ENABLE_PUSH");
+					break;  // nothing is pushed
+
+				case INITIAL_WINDOW_SIZE:
+					if (value > MAX_WINDOW)
+						throw new ConnectionError(FLOW_CONTROL_ERROR, "Invalid INITIAL_WINDOW_SIZE");
+
+					// The open streams change by the difference
+					synchronized (flowLock) {
+						long delta = value - initialWindow;
+						initialWindow = value;
+						for (Http2Stream s : streams.values()) {
+							s.sendWindow += delta;
+							if (s.sendWindow > MAX_WINDOW)
+								throw new ConnectionError(FLOW_CONTROL_ERROR, "Stream window too large");
+						}
+						flowLock.notifyAll();
+					}
+					break;
+
+				case MAX_FRAME_SIZE:
+					if (value < FRAME_SIZE || value > 0xFFFFFF)
+						throw new ConnectionError(PROTOCOL_ERROR, "Invalid MAX_FRAME_SIZE");
+					maxFrameSize = (int) value;
+					break;
+
+				default:
+					break;  // unknown settings are ignored
+			}
+		}
+	}
+
+	/**
+	 * Processes a WINDOW_UPDATE frame, more response bytes allowed.
+	 *
+	 * @param stream stream identifier, 0 for the connection
+	 * @param length payload length
+	 * @throws IOException If the frame breaks the protocol or an I/O error occurs
+	 */
+	private void onWindowUpdate(int stream, int length) throws IOException {
+		if (length != 4)
+			throw new ConnectionError(FRAME_SIZE_ERROR, "Invalid WINDOW_UPDATE");
+		int increment = readInt(frame, 0) & 0x7FFFFFFF;
+
+		if (stream == 0) {
+			if (increment == 0)
+				throw new ConnectionError(PROTOCOL_ERROR, "Empty WINDOW_UPDATE");
+			synchronized (flowLock) {
+				sendWindow += increment;
+				if (sendWindow > MAX_WINDOW)
+					throw new ConnectionError(FLOW_CONTROL_ERROR, "Connection window too large");
+				flowLock.notifyAll();
+			}
+			return;
+		}
+
+		Http2Stream s = streams.get(stream);
+		if (s == null)
+			return;  // closed
+
+		if (increment == 0) {
+			resetStream(s, PROTOCOL_ERROR);
+			return;
+		}
+
+		boolean overflow;
+		synchronized (flowLock) {
+			s.sendWindow += increment;
+			overflow = s.sendWindow > MAX_WINDOW;
+			flowLock.notifyAll();
+		}
+		if (overflow)
+			resetStream(s, FLOW_CONTROL_ERROR);
+	}
+
+	/**
+	 * Opens a stream and serves its request in a stream thread.
+	 *
+	 * @param stream stream identifier
+	 * @param message request, as an http/1.x message
+	 * @param ended true if the request has no body
+	 */
+	private void open(int stream, String message, boolean ended) {
+		Http2Stream s;
+		synchronized (flowLock) {
+			s = new Http2Stream(this, stream, initialWindow, settings.getWindowSize(), bodyTimeout);
+		}
+		if (ended)
+			s.endRequest();
+		streams.put(stream, s);
+
+		RequestTrace trace = RequestTrace.acquire();
+		STREAMS.execute(() -> {
+			HttpRequestHandler handler = new HttpRequestHandler(s.getOutput(), s.getInput(), config, hosts,
+					servlets, trace, throttle);
+			try {
+				handler.processMessage(message).whenComplete((c, e) -> finish(s, handler, trace, e));
+			} catch (RuntimeException e) {
+				finish(s, handler, trace, e);
+			}
+		});
+	}
+
+	/**
+	 * Writes into the logs the exit status of a stream and closes it. If the
+	 * client is still sending the request body, it is told to stop.
+	 *
+	 * @param s stream
+	 * @param handler handler of the request
+	 * @param trace timing of the request, released
+	 * @param error error while serving the request, null if none
+	 */
+	private void finish(Http2Stream s, HttpRequestHandler handler, RequestTrace trace, Throwable error) {
+		try {
+			if (error != null) {
+				System.out.println("Error in connection " + id + ", stream " + s.getId() + ": " + error.getMessage());
+				error.printStackTrace();
+				resetStream(s, INTERNAL_ERROR);
+
+			} else {
+				// Write into a log file of the host the stream exit status
+				handler.log(ServerUtils.getClientIP(socket));
+
+				if (!s.isRequestEnded() && !s.isReset())
+					resetStream(s, NO_ERROR);
+			}
+
+		} catch (IOException e) {
+			System.out.println("Error in connection " + id + ": " + e.getMessage());
+
+		} finally {
+			streams.remove(s.getId());
+			s.getInput().close();
+			RequestTrace.release(trace);
+		}
+	}
+
+	/**
+	 * Sends the header of a response.
+	 *
+	 * @param s stream
+	 * @param fields names and values of the fields, in turns
+	 * @param end true to end the stream
+	 * @throws IOException If the stream was reset or an I/O error occurs
+	 */
+	void sendHeaders(Http2Stream s, List<String> fields, boolean end) throws IOException {
+		ByteArrayOutputStream b = new ByteArrayOutputStream(256);
+
+		synchronized (writeLock) {
+			if (closed || s.isReset())
+				throw new IOException("Stream reset");
+
+			// Encoded in the order sent
+			encoder.start(b);
+			for (int i = 0; i < fields.size(); i += 2)
+				encoder.encode(b, fields.get(i), fields.get(i + 1));
+
+			// Split into frames if it does not fit in one
+			byte[] encoded = b.toByteArray();
+			int off = 0, type = HEADERS;
+			do {
+				int n = Math.min(encoded.length - off, maxFrameSize);
+				int flags = (off + n == encoded.length ? END_HEADERS : 0)
+						| (type == HEADERS && end ? END_STREAM : 0);
+				writeFrame(type, flags, s.getId(), encoded, off, n);
+				off += n;
+				type = CONTINUATION;
+			} while (off < encoded.length);
+
+			out.flush();
+		}
+	}
+
+	/**
+	 * Sends body bytes of a response, as the flow control windows allow them.
+	 *
+	 * @param s stream
+	 * @param b buffer with the bytes
+	 * @param off position of the first byte
+	 * @param len number of bytes
+	 * @param end true to end the stream
+	 * @throws SocketTimeoutException If the client does not grant a window in time
+	 * @throws IOException If the stream was reset or an I/O error occurs
+	 */
+	void sendData(Http2Stream s, byte[] b, int off, int len, boolean end) throws IOException {
+		do {
+			int n = acquireWindow(s, Math.min(len, FRAME_SIZE));
+
+			synchronized (writeLock) {
+				if (closed || s.isReset())
+					throw new IOException("Stream reset");
+				writeFrame(DATA, end && n == len ? END_STREAM : 0, s.getId(), b, off, n);
+				out.flush();
+			}
+
+			off += n;
+			len -= n;
+		} while (len > 0);
+	}
+
+	/**
+	 * Sends a WINDOW_UPDATE frame.
+	 *
+	 * @param stream stream identifier, 0 for the connection
+	 * @param increment bytes the client can send
+	 * @throws IOException If an I/O error occurs
+	 */
+	void sendWindowUpdate(int stream, int increment) throws IOException {
+		byte[] b = new byte[4];
+		writeInt(b, 0, increment);
+		sendFrame(WINDOW_UPDATE, 0, stream, b, 0, 4);
+	}
+
+	/**
+	 * Resets a stream, failing its reads and writes, and tells the client.
+	 *
+	 * @param s stream
+	 * @param code error code
+	 * @throws IOException If an I/O error occurs
+	 */
+	void resetStream(Http2Stream s, int code) throws IOException {
+		if (s.isReset())
+			return;
+
+		s.reset();
+		synchronized (flowLock) {
+			flowLock.notifyAll();
+		}
+		sendReset(s.getId(), code);
+	}
+
+	/**
+	 * Waits until the windows of the connection and the stream allow to send
+	 * some bytes, and takes them.
+	 *
+	 * @param s stream
+	 * @param wanted bytes to send
+	 * @return the bytes that can be sent, up to the wanted ones
+	 * @throws SocketTimeoutException If the client does not grant a window in time
+	 * @throws IOException If the stream was reset
+	 */
+	private int acquireWindow(Http2Stream s, int wanted) throws IOException {
+		if (wanted == 0)
+			return 0;
+
+		long deadline = System.currentTimeMillis() + writeTimeout;
+		synchronized (flowLock) {
+			while (true) {
+				if (closed || s.isReset())
+					throw new IOException("Stream reset");
+
+				long window = Math.min(sendWindow, s.sendWindow);
+				if (window > 0) {
+					int n = (int) Math.min(window, wanted);
+					sendWindow -= n;
+					s.sendWindow -= n;
+					return n;
+				}
+
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0)
+					throw new SocketTimeoutException("Flow control window not granted in time");
+				try {
+					flowLock.wait(remaining);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while waiting for the window");
+				}
+			}
+		}
+	}
+
+	/**
+	 * Sends the settings of the server, and the window of the connection if
+	 * it is not the default one.
+	 *
+	 * @throws IOException If an I/O error occurs
+	 */
+	private void sendSettings() throws IOException {
+		byte[] b = new byte[18];
+		writeSetting(b, 0, MAX_CONCURRENT_STREAMS, settings.getMaxStreams());
+		writeSetting(b, 6, INITIAL_WINDOW_SIZE, settings.getWindowSize());
+		writeSetting(b, 12, MAX_HEADER_LIST_SIZE, ServerUtils.MAX_HEADER);
+		sendFrame(SETTINGS, 0, 0, b, 0, b.length);
+
+		if (settings.getWindowSize() > DEFAULT_WINDOW) {
+			sendWindowUpdate(0, settings.getWindowSize() - DEFAULT_WINDOW);
+			receiveWindow = settings.getWindowSize();
+		} else
+			receiveWindow = DEFAULT_WINDOW;
+	}
+
+	/**
+	 * Sends a RST_STREAM frame.
+	 *
+	 * @param stream stream identifier
+	 * @param code error code
+	 * @throws IOException If an I/O error occurs
+	 */
+	private void sendReset(int stream, int code) throws IOException {
+		byte[] b = new byte[4];
+		writeInt(b, 0, code);
+		sendFrame(RST_STREAM, 0, stream, b, 0, 4);
+	}
+
+	/**
+	 * Sends a GOAWAY frame, the streams over the last one opened are not served.
+	 * An error is ignored, the connection is being closed.
+	 *
+	 * @param code error code
+	 */
+	private void goAway(int code) {
+		byte[] b = new byte[8];
+		writeInt(b, 0, lastStream);
+		writeInt(b, 4, code);
+		try {
+			sendFrame(GOAWAY, 0, 0, b, 0, 8);
+		} catch (IOException e) {
+			// closed by the client
+		}
+	}
+
+	/**
+	 * Sends a frame.
+	 *
+	 * @param type frame type
+	 * @param flags frame flags
+	 * @param stream stream identifier
+	 * @param b buffer with the payload
+	 * @param off position of the payload
+	 * @param len payload length
+	 * @throws IOException If an I/O error occurs
+	 */
+	private void sendFrame(int type, int flags, int stream, byte[] b, int off, int len) throws IOException {
+		synchronized (writeLock) {
+			writeFrame(type, flags, stream, b, off, len);
+			out.flush();
+		}
+	}
+
+	/**
+	 * Writes a frame into the output buffer. The caller holds the write lock.
+	 *
+	 * @param type frame type
+	 * @param flags frame flags
+	 * @param stream stream identifier
+	 * @param b buffer with the payload
+	 * @param off position of the payload
+	 * @param len payload length
+	 * @throws IOException If an I/O error occurs
+	 */
+	private void writeFrame(int type, int flags, int stream, byte[] b, int off, int len) throws IOException {
+		header[0] = (byte) (len >> 16);
+		header[1] = (byte) (len >> 8);
+		header[2] = (byte) len;
+		header[3] = (byte) type;
+		header[4] = (byte) flags;
+		writeInt(header, 5, stream);
+		out.write(header, 0, 9);
+		out.write(b, off, len);
+	}
+
+	/**
+	 * Reads bytes from the client, waiting for all of them.
+	 *
+	 * @param b buffer
+	 * @param len number of bytes
+	 * @throws EOFException If the client closes the connection
+	 * @throws IOException If an I/O error occurs
+	 */
+	private void readFully(byte[] b, int len) throws IOException {
+		int off = 0;
+		while (off < len) {
+			int n;
+			try {
+				n = in.read(b, off, len - off);
+			} catch (SocketTimeoutException e) {
+				if (off == 0)
+					throw e;
+				continue;  // a frame being received
+			}
+			if (n == -1)
+				throw new EOFException("Connection closed by the client");
+			off += n;
+		}
+	}
+
+	/**
+	 * Writes a setting.
+	 *
+	 * @param b buffer
+	 * @param off position of the setting
+	 * @param setting setting identifier
+	 * @param value value of the setting
+	 */
+	private static void writeSetting(byte[] b, int off, int setting, int value) {
+		b[off] = (byte) (setting >> 8);
+		b[off + 1] = (byte) setting;
+		writeInt(b, off + 2, value);
+	}
+
+	/**
+	 * Reads a big-endian 32 bit integer.
+	 *
+	 * @param b buffer
+	 * @param off position of the integer
+	 * @return the integer
+	 */
+	private static int readInt(byte[] b, int off) {
+		return ((b[off] & 0xFF) << 24) | ((b[off + 1] & 0xFF) << 16) | ((b[off + 2] & 0xFF) << 8)
+				| (b[off + 3] & 0xFF);
+	}
+
+	/**
+	 * Writes a big-endian 32 bit integer.
+	 *
+	 * @param b buffer
+	 * @param off position of the integer
+	 * @param value the integer
+	 */
+	private static void writeInt(byte[] b, int off, int value) {
+		b[off] = (byte) (value >> 24);
+		b[off + 1] = (byte) (value >> 16);
+		b[off + 2] = (byte) (value >> 8);
+		b[off + 3] = (byte) value;
+	}
+
+	/**
+	 * Checks if a comma separated header value has a token.
+	 *
+	 * @param value header value
+	 * @param token token, lower case
+	 * @return true if the value has it, in any case
+	 */
+	private static boolean hasToken(String value, String token) {
+		for (String t : value.split(","))
+			if (t.trim().toLowerCase(Locale.ROOT).equals(token))
+				return true;
+		return false;
+	}
+
+	/**
+	 * Fields of a request as they are decoded, turned into an http/1.x message.
+	 */
+	private static class Request {
+		private String method, path, scheme, authority;
+		private final StringBuilder fields = new StringBuilder();
+		private boolean malformed, host;
+		private int size;
+
+		/**
+		 * Adds a decoded field.
+		 */
+		private void add(String name, String value) {
+			size += name.length() + value.length() + 32;
+
+			// Pseudo-header fields, before the others
+			if (name.startsWith(":")) {
+				if (fields.length() > 0)
+					malformed = true;
+				else if (name.equals(":method") && method == null)
+					method = value;
+				else if (name.equals(":path") && path == null)
+					path = value;
+				else if (name.equals(":scheme") && scheme == null)
+					scheme = value;
+				else if (name.equals(":authority") && authority == null)
+					authority = value;
+				else
+					malformed = true;
+				return;
+			}
+
+			// Lower case names, without the fields of http/1.x connections
+			if (!name.equals(name.toLowerCase(Locale.ROOT)) || name.equals("connection")
+					|| (name.equals("te") && !value.equals("trailers")))
+				malformed = true;
+			host |= name.equals("host");
+			fields.append(name).append(": ").append(value).append('\n');
+		}
+
+		/**
+		 * Creates the http/1.x message of the request.
+		 *
+		 * @return the message, null if the request is malformed
+		 */
+		private String toMessage() {
+			if (malformed || method == null || path == null || scheme == null || path.isEmpty()
+					|| size > ServerUtils.MAX_HEADER || method.indexOf(' ') != -1 || path.indexOf(' ') != -1)
+				return null;
+
+			StringBuilder m = new StringBuilder(fields.length() + 64);
+			m.append(method).append(' ').append(path).append(" HTTP/2.0\n");
+
+			// The authority replaces the Host field
+			if (authority != null && !host)
+				m.append("host: ").append(authority).append('\n');
+			m.append(fields);
+			return m.toString();
+		}
+	}
+}
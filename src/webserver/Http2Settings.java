@@ -0,0 +1,49 @@
+package webserver;
+
+/**
+ * Cleartext HTTP/2 (h2c) connections.
+ *
+ * @author Ángel Miguélez Millos
+ */
+public class Http2Settings {
+
+	private final boolean enabled;
+	private final int maxStreams;	// streams of a connection served at the same time
+	private final int windowSize;	// body bytes a client can send before they are read
+
+	/**
+	 * Creates a new Http2Settings.
+	 *
+	 * @param enabled true to accept h2c, with prior knowledge or upgrading
+	 * @param maxStreams streams of a connection served at the same time
+	 * @param windowSize body bytes a client can send on a stream before they
+	 * are read, also on the whole connection
+	 * @throws IllegalArgumentException If any of the values is out of range
+	 */
+	public Http2Settings(boolean enabled, int maxStreams, int windowSize) {
+		if (maxStreams < 1 || windowSize < 1)
+			throw new IllegalArgumentException("Invalid HTTP/2 settings");
+
+		this.enabled = enabled;
+		this.maxStreams = maxStreams;
+		this.windowSize = windowSize;
+	}
+
+	/**
+	 * Gets if h2c is accepted.
+	 * @return true if enabled
+	 */
+	public boolean isEnabled() { return enabled; }
+
+	/**
+	 * Gets the streams of a connection served at the same time.
+	 * @return the max concurrent streams
+	 */
+	public int getMaxStreams() { return maxStreams; }
+
+	/**
+	 * Gets the body bytes a client can send before they are read.
+	 * @return the flow control window in bytes
+	 */
+	public int getWindowSize() { return windowSize; }
+}
@@ -0,0 +1,410 @@
+package webserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * A request and its response on an HTTP/2 connection. The request body is
+ * read from its input as the client sends it, and the http/1.x response
+ * written into its output by HttpRequestHandler is turned into a HEADERS
+ * frame and DATA frames, so the handler serves the stream as a connection.
+ *
+ * @author Ángel Miguélez Millos
+ */
+public class Http2Stream {
+
+	private final static int DATA_BUFFER_SIZE = 16384;  // body bytes sent in a frame
+
+	// Fields of the connection, not of the response, not allowed in HTTP/2
+	private final static Set<String> CONNECTION_FIELDS = new HashSet<>(Arrays.asList(
+			"connection", "keep-alive", "proxy-connection", "transfer-encoding", "upgrade"));
+
+	private final Http2Connection connection;
+	private final int id;
+	private final Input input;
+	private final Output output = new Output();
+	private volatile boolean reset;
+
+	long sendWindow;  // response bytes the client accepts, guarded by the flow lock of the connection
+
+	/**
+	 * Body of the request, ended by the client with the stream.
+	 */
+	public class Input extends InputStream {
+
+		private final ArrayDeque<byte[]> chunks = new ArrayDeque<>();
+		private int position;		// in the first chunk
+		private int window;			// bytes the client can still send
+		private int consumed;		// bytes read and not given back to the client yet
+		private final int windowSize;
+		private final int timeout;	// ms waiting for the client
+		private boolean ended, closed;
+
+		private Input(int windowSize, int timeout) {
+			this.windowSize = windowSize;
+			this.window = windowSize;
+			this.timeout = timeout;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0)
+				return 0;
+
+			int n, update = 0;
+			synchronized (this) {
+				long deadline = System.currentTimeMillis() + timeout;
+
+				// Wait for the client
+				while (chunks.isEmpty() && !ended) {
+					if (reset || closed)
+						throw new IOException("Stream reset");
+					long remaining = deadline - System.currentTimeMillis();
+					if (remaining <= 0)
+						throw new SocketTimeoutException("Request body not received in time");
+					try {
+						wait(remaining);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new IOException("Interrupted while reading the request body");
+					}
+				}
+				if (chunks.isEmpty())
+					return -1;
+
+				byte[] chunk = chunks.peek();
+				n = Math.min(len, chunk.length - position);
+				System.arraycopy(chunk, position, b, off, n);
+				position += n;
+				if (position == chunk.length) {
+					chunks.poll();
+					position = 0;
+				}
+
+				// Let the client send more once half of the window is read
+				consumed += n;
+				if (consumed >= windowSize / 2 && !ended) {
+					update = consumed;
+					window += consumed;
+					consumed = 0;
+				}
+			}
+
+			if (update > 0)
+				connection.sendWindowUpdate(id, update);
+			return n;
+		}
+
+		@Override
+		public synchronized int available() {
+			return chunks.isEmpty() ? 0 : chunks.peek().length - position;
+		}
+
+		/**
+		 * Discards the data not read and the data received from now on.
+		 */
+		@Override
+		public synchronized void close() {
+			closed = true;
+			chunks.clear();
+			notifyAll();
+		}
+
+		/**
+		 * Adds data sent by the client.
+		 *
+		 * @param b buffer with the data, copied
+		 * @param off position of the first byte
+		 * @param len number of bytes
+		 * @return false if the data exceeds the window of the stream
+		 */
+		private synchronized boolean receive(byte[] b, int off, int len) {
+			if (len > window)
+				return false;
+			window -= len;
+
+			if (!closed && len > 0) {
+				chunks.add(Arrays.copyOfRange(b, off, off + len));
+				notifyAll();
+			}
+			return true;
+		}
+
+		/**
+		 * Ends the body.
+		 */
+		private synchronized void end() {
+			ended = true;
+			notifyAll();
+		}
+
+		/**
+		 * Wakes the readers after a reset.
+		 */
+		private synchronized void wake() {
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Response, written as http/1.x.
+	 */
+	public class Output extends OutputStream {
+
+		private final ByteArrayOutputStream header = new ByteArrayOutputStream(256);
+		private int last;				// last 4 bytes of the header
+		private List<String> fields;	// final header not sent yet
+		private boolean headerSent;
+		private final byte[] buffer = new byte[DATA_BUFFER_SIZE];
+		private int count;
+		private boolean closed;
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public synchronized void write(byte[] b, int off, int len) throws IOException {
+			if (closed)
+				throw new IOException("Stream closed");
+
+			// Header, until its empty line
+			while (len > 0 && fields == null && !headerSent) {
+				header.write(b[off]);
+				last = (last << 8) | (b[off] & 0xFF);
+				off++;
+				len--;
+
+				// Empty line
+				if (last == 0x0D0A0D0A)
+					parseHeader();
+			}
+			if (len == 0)
+				return;
+
+			// Big writes go straight to the frames
+			if (count == 0 && len >= buffer.length) {
+				sendHeader(false);
+				connection.sendData(Http2Stream.this, b, off, len, false);
+				return;
+			}
+
+			while (len > 0) {
+				int n = Math.min(len, buffer.length - count);
+				System.arraycopy(b, off, buffer, count, n);
+				count += n;
+				off += n;
+				len -= n;
+				if (count == buffer.length)
+					sendBuffered(false);
+			}
+		}
+
+		@Override
+		public synchronized void flush() throws IOException {
+			if (closed || (fields == null && !headerSent))
+				return;
+			sendBuffered(false);
+		}
+
+		/**
+		 * Sends what is buffered, ending the stream.
+		 */
+		@Override
+		public synchronized void close() throws IOException {
+			if (closed)
+				return;
+			closed = true;
+
+			if (fields == null && !headerSent) {
+				connection.resetStream(Http2Stream.this, Http2Connection.INTERNAL_ERROR);
+				throw new IOException("Response without header");
+			}
+
+			// Without body, the header ends the stream
+			if (!headerSent && count == 0)
+				sendHeader(true);
+			else
+				sendBuffered(true);
+		}
+
+		/**
+		 * Resets the stream instead of ending it, i.e. when the body is
+		 * shorter than the length in the header. The buffered body is dropped.
+		 *
+		 * @throws IOException If an I/O error occurs
+		 */
+		public synchronized void reset() throws IOException {
+			if (closed)
+				return;
+			closed = true;
+			connection.resetStream(Http2Stream.this, Http2Connection.INTERNAL_ERROR);
+		}
+
+		/**
+		 * Sends the header if not sent yet and the buffered body.
+		 *
+		 * @param end true to end the stream
+		 * @throws IOException If the stream was reset or an I/O error occurs
+		 */
+		private void sendBuffered(boolean end) throws IOException {
+			sendHeader(false);
+			if (count > 0 || end)
+				connection.sendData(Http2Stream.this, buffer, 0, count, end);
+			count = 0;
+		}
+
+		/**
+		 * Sends the header if not sent yet.
+		 *
+		 * @param end true to end the stream with it
+		 * @throws IOException If the stream was reset or an I/O error occurs
+		 */
+		private void sendHeader(boolean end) throws IOException {
+			if (headerSent)
+				return;
+			connection.sendHeaders(Http2Stream.this, fields, end);
+			headerSent = true;
+			fields = null;
+		}
+
+		/**
+		 * Turns the http/1.x header into the fields of HTTP/2. An interim
+		 * response, as 100 Continue, is sent at once and the final header is
+		 * read next. The final one is kept until the body is sent.
+		 *
+		 * @throws IOException If the header is malformed or cannot be sent
+		 */
+		private void parseHeader() throws IOException {
+			String[] lines = new String(header.toByteArray(), StandardCharsets.ISO_8859_1).split("\r\n");
+			header.reset();
+			last = 0;
+
+			// Status line, i.e. HTTP/1.0 200 OK
+			String[] status = lines[0].split(" ");
+			if (status.length < 2)
+				throw new IOException("Malformed response: " + lines[0]);
+
+			List<String> f = new ArrayList<>();
+			f.add(":status");
+			f.add(status[1]);
+
+			for (int i = 1; i < lines.length; i++) {
+				int colon = lines[i].indexOf(':');
+				if (colon <= 0)
+					continue;
+
+				String name = lines[i].substring(0, colon).trim().toLowerCase(Locale.ROOT);
+				if (CONNECTION_FIELDS.contains(name))
+					continue;
+				f.add(name);
+				f.add(lines[i].substring(colon + 1).trim());
+			}
+
+			if (status[1].startsWith("1"))
+				connection.sendHeaders(Http2Stream.this, f, false);
+			else
+				fields = f;
+		}
+	}
+
+	/**
+	 * Creates a new Http2Stream.
+	 *
+	 * @param connection connection of the stream
+	 * @param id stream identifier
+	 * @param sendWindow response bytes the client accepts at first
+	 * @param receiveWindow request body bytes the client can send before they are read
+	 * @param timeout milliseconds to wait for the request body
+	 */
+	public Http2Stream(Http2Connection connection, int id, long sendWindow, int receiveWindow, int timeout) {
+		this.connection = connection;
+		this.id = id;
+		this.sendWindow = sendWindow;
+		this.input = new Input(receiveWindow, timeout);
+	}
+
+	/**
+	 * Gets the stream identifier.
+	 * @return the identifier
+	 */
+	public int getId() { return id; }
+
+	/**
+	 * Gets the body of the request.
+	 * @return the request body stream
+	 */
+	public Input getInput() { return input; }
+
+	/**
+	 * Gets the response stream.
+	 * @return the response stream
+	 */
+	public Output getOutput() { return output; }
+
+	/**
+	 * Checks if the stream was reset by either side.
+	 * @return true if reset
+	 */
+	public boolean isReset() { return reset; }
+
+	/**
+	 * Checks if the client sent the whole request.
+	 * @return true if the request body ended
+	 */
+	public boolean isRequestEnded() {
+		synchronized (input) {
+			return input.ended;
+		}
+	}
+
+	/**
+	 * Adds request body data sent by the client.
+	 *
+	 * @param b buffer with the data, copied
+	 * @param off position of the first byte
+	 * @param len number of bytes
+	 * @param end true if it is the last data of the request
+	 * @return false if the data exceeds the window of the stream
+	 */
+	boolean receive(byte[] b, int off, int len, boolean end) {
+		if (!input.receive(b, off, len))
+			return false;
+		if (end)
+			input.end();
+		return true;
+	}
+
+	/**
+	 * Ends the request body.
+	 */
+	void endRequest() {
+		input.end();
+	}
+
+	/**
+	 * Marks the stream as reset, failing its reads and writes.
+	 */
+	void reset() {
+		reset = true;
+		input.wake();
+	}
+}
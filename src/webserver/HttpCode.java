@@ -1,5 +1,7 @@
 package webserver;
 
+import java.nio.charset.StandardCharsets;
+
 /**
  * Enumeration of all the http codes supported.
  * 
@@ -7,16 +9,25 @@ package webserver;
  */
 public enum HttpCode {
     OK(200, ""), 
+	CREATED(201, ""),
+	NO_CONTENT(204, ""),
 	NOT_MODIFIED(304, "The requested page has not been modified."),
     BAD_REQUEST(400, "Your client has issued a malformed or illegal request."),
 	FORBIDDEN(403, "You don't have permission to view this resource."), 
     NOT_FOUND(404, "The requested URL was not found on this server."), 
+	LENGTH_REQUIRED(411, "The request body must declare its length."),
+	PAYLOAD_TOO_LARGE(413, "The request body is larger than the server is willing to process."),
+	INTERNAL_SERVER_ERROR(500, "The server could not complete the request."),
     NOT_IMPLEMENTED(501, "The method or operation is not implemented."),
+	SERVICE_UNAVAILABLE(503, "The server is too busy to process the request, try again later."),
+	GATEWAY_TIMEOUT(504, "The server did not complete the response in time."),
     HTTP_VERSION_NOT_SUPPORTED(505, "The server does not support the HTTP protocol "
 			+ "version that was used in the request message.");
     
     private final int code;
     private final String message;
+	private final String html;		// html error page
+	private final byte[] htmlBytes;	// html error page encoded as UTF-8
 	
 	/**
 	 * Creates a http code with a code and a message.
@@ -27,6 +38,12 @@ public enum HttpCode {
     private HttpCode(int code, String message) {
         this.code = code;
         this.message = message;
+		html = "<html><body>"
+				+ "<p><h1> Error " + code + "</h1></p>"
+                + "<p><h3> " + name() + "</h3></p>"
+                + "<p><h5> " + message + "</h5></p>"
+				+ "</body></html>";
+		htmlBytes = html.getBytes(StandardCharsets.UTF_8);
     }
     
 	/**
@@ -42,16 +59,31 @@ public enum HttpCode {
 	 */
     public String getMessage() { return message; }
 	
+	/**
+	 * Gets the http code with a number.
+	 * 
+	 * @param code number of the code
+	 * @return the http code, null if it is not supported
+	 */
+	public static HttpCode fromCode(int code) {
+		for (HttpCode c : values())
+			if (c.code == code)
+				return c;
+		return null;
+	}
+	
 	/**
 	 * Gets the code, name and message formatted to an html message.
 	 * 
 	 * @return code formatted to html
 	 */
-	public String getHtmlFormat() {
-		return "<html><body>"
-				+ "<p><h1> Error " + getCode() + "</h1></p>"
-                + "<p><h3> " + name() + "</h3></p>"
-                + "<p><h5> " + getMessage() + "</h5></p>"
-				+ "</body></html>";
-	}
+	public String getHtmlFormat() { return html; }
+	
+	/**
+	 * Gets the html message encoded as UTF-8. The array is shared, so it
+	 * must not be modified.
+	 * 
+	 * @return code formatted to html, encoded
+	 */
+	byte[] getHtmlBytes() { return htmlBytes; }
 }
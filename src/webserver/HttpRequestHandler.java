@@ -1,15 +1,27 @@
 package webserver;
 
 import java.io.BufferedOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
 
 /**
  * Processes an http message.
@@ -19,12 +31,26 @@ import java.util.Map;
 public class HttpRequestHandler {
 	
 	private final String SERVER = "Apache/2.4.29";
-    private final String DEFAULT_DIR;	// path to the resources directory
-    private final String DEFAULT_FILE;	// default file
-	private final boolean ALLOW;		// allow flag
+	private final HostTable hosts;
+	private final ServletExecutor servlets;
+	private final Router<Route> ROUTER;  // servlets and files by path
+	private final long SERVLET_TIMEOUT;		// ms a servlet has to respond
+	private final long MAX_BODY_SIZE;		// max length of a POST body
+	private final int BODY_BUFFER_SIZE;		// body bytes kept in memory
+	private final boolean ALLOW_PUT;		// allow uploads
+	private final long MAX_UPLOAD_SIZE;		// max length of a PUT body
+	private final long TRANSFER_SIZE = 1 << 20;  // bytes per transfer of an upload
+	private final int OUT_BUFFER_SIZE = 65536;	// header and body bytes sent in a single write
+	private final int FILE_BUFFER_SIZE = 32768;	// file bytes read at once
+	private final long THROTTLED_TRANSFER = 65536;	// file bytes encrypted at once when throttled
+	private final TraceSettings TRACE;		// timing sent and logged
 	
     private final OutputStream sOut;
-    private final PrintWriter out;
+	private final InputStream sIn;
+	private Map<String, String> headers;	// request headers by lower-case name
+	private HostContext host;				// site requested
+	private InputStream body;				// request body, null if not read
+    private final OutputStream out;  // buffers the header with the start of the body
     
     private boolean sendBody=true;
     
@@ -33,22 +59,49 @@ public class HttpRequestHandler {
 	private String requestLine;
 	private Date date;
     private File file;
+	private PathResolver.Entry entry;  // resolved file metadata
 	private String messageOut;
+	private byte[] htmlOut;  // html message encoded as UTF-8
+	private byte[] dynamicOut;  // servlet response encoded as UTF-8
+	private CompletableFuture<byte[]> pending;  // servlet response being computed
+	private ResponseWriter stream;  // servlet response sent as it is written
+	private boolean streamed;  // part of the response was already sent by the servlet
+	private boolean cut;  // the file was shorter than the length sent
+	private boolean dispatched;  // the servlet owns the request parameters and body
+	private final RequestTrace trace;  // time of each phase of the request
+	private final Throttle throttle;  // bandwidth of the connection
+	private BandwidthScheduler.Traffic traffic;  // class of the response body
     
 	/**
 	 * Creates a new HttpRequestHandler.
 	 * 
 	 * @param sOut stream to send the response to the client
-	 * @param resources default resource directory path
-	 * @param defaultFile default resource file
-	 * @param allow allow value
+	 * @param sIn stream positioned at the start of the request body
+	 * @param config server configuration snapshot
+	 * @param hosts sites served, chosen by the Host header
+	 * @param servlets runs the servlets out of the connection thread
+	 * @param trace times the phases of the request, started when it arrived
+	 * @param throttle limits the bandwidth of the body
 	 */
-    public HttpRequestHandler(OutputStream sOut, String resources, String defaultFile, boolean allow) {
+    public HttpRequestHandler(OutputStream sOut, InputStream sIn, ServerConfig config, HostTable hosts,
+			ServletExecutor servlets, RequestTrace trace, Throttle throttle) {
         this.sOut = sOut;
-        out = new PrintWriter(sOut, true);
-		DEFAULT_DIR = resources;
-		DEFAULT_FILE = defaultFile;
-		ALLOW = allow;
+		this.sIn = sIn;
+		// An encrypted stream or an HTTP/2 stream already keeps the data until 
+		// it fills a record or a frame
+        out = sOut instanceof TlsConnection.Output || sOut instanceof Http2Stream.Output ? sOut 
+				: new BufferedOutputStream(sOut, OUT_BUFFER_SIZE);
+		this.hosts = hosts;
+		this.servlets = servlets;
+		ROUTER = config.getRouter();
+		SERVLET_TIMEOUT = config.getServletTimeout();
+		MAX_BODY_SIZE = config.getMaxBodySize();
+		BODY_BUFFER_SIZE = config.getBodyBufferSize();
+		ALLOW_PUT = config.isAllowPut();
+		MAX_UPLOAD_SIZE = config.getMaxUploadSize();
+		TRACE = config.getTraceSettings();
+		this.trace = trace;
+		this.throttle = throttle;
     }
     
 	/**
@@ -69,6 +122,12 @@ public class HttpRequestHandler {
 	 */
 	public Date getDate() { return date; }
 	
+	/**
+	 * Gets the site requested.
+	 * @return the host of the request, the default one if it did not match any
+	 */
+	public HostContext getHost() { return host; }
+	
 	/**
 	 * Gets the file sent as response.
 	 * @return the file sent as response. If a message was sent, the file is null.
@@ -81,44 +140,138 @@ public class HttpRequestHandler {
 	 */
 	public String getMessage() { return messageOut; }
 	
+	/**
+	 * Gets the length of the body of the response.
+	 * @return the length in bytes, 0 if there is no body
+	 */
+	public long getLength() {
+		if (streamed)
+			return stream.length();
+		if (file != null)
+			return entry.getLength();
+		if (dynamicOut != null)
+			return dynamicOut.length;
+		if (htmlOut != null)
+			return htmlOut.length;
+		return 0;
+	}
+	
+	/**
+	 * Writes the exit status of the request into the logs of its host and, if 
+	 * it took longer than the threshold, into the slow requests log with the
+	 * time of each phase. The trace is finished.
+	 * 
+	 * @param ip client ip
+	 * @throws IOException If the log handler is closed
+	 */
+	public void log(InetAddress ip) throws IOException {
+		LogHandler log = host.getLogHandler();
+		
+		// Queue the record, its duration does not include the logging
+		trace.begin(RequestTrace.Phase.LOG);
+		log.addLog(requestLine, ip, date, code, getLength(), 
+				TRACE.isLogDuration() ? trace.getDuration() / 1000 : -1);
+		trace.end(RequestTrace.Phase.LOG);
+		trace.finish();
+		
+		// Slow request
+		long threshold = TRACE.getSlowThreshold();
+		if (threshold > 0 && trace.getDuration() >= threshold * 1000000) {
+			StringBuilder phases = new StringBuilder(128);
+			trace.appendTo(phases);
+			log.addSlow(requestLine, ip, date, code, trace.getDuration() / 1000, phases.toString());
+		}
+	}
+	
 	/**
 	 * Splits the message following the http request structure, process it and
-	 * returns an http response.
+	 * returns an http response. A servlet response is sent from a responder 
+	 * thread once the servlet finishes, so the calling thread is not blocked.
 	 * 
 	 * @param message request message
-	 * @return http code indicating the exit status of the request
+	 * @return http code indicating the exit status of the request, completed
+	 * when the response is sent
 	 */
-    public HttpCode processMessage(String message) {   
+    public CompletableFuture<HttpCode> processMessage(String message) {   
 
 		// Get current time
 		date = new Date();
 		
-        // Process the request line
+		// Split the header lines, the body may depend on them
 		int i = message.indexOf("\n");
-        if ((code = processRequestLine(message.substring(0, i))) != HttpCode.OK)
-			messageOut = code.getHtmlFormat();  // error message
+		headers = ServerUtils.parseHeaders(message.substring(i + 1));
+		
+		// Find the site requested
+		host = hosts.get(headers.get("host"));
+		
+        // Process the request line
+        code = processRequestLine(message.substring(0, i));
+		
+		// Respond when the servlet finishes, out of the servlet and timer threads
+		if (pending != null) {
+			if (pending.isDone())
+				return pending.handle((body, e) -> {
+					trace.end(RequestTrace.Phase.SERVLET);
+					code = getServletCode(body, e);
+					return respond();
+				});
+			return pending.handleAsync((body, e) -> {
+				trace.end(RequestTrace.Phase.SERVLET);
+				code = getServletCode(body, e);
+				return respond();
+			}, servlets.getResponders());
+		}
+		
+		return CompletableFuture.completedFuture(respond());
+    }
+	
+	/**
+	 * Sends the response to the request processed.
+	 * 
+	 * @return http code indicating the exit status of the request
+	 */
+	private HttpCode respond() {
+		trace.begin(RequestTrace.Phase.SEND);
+		
+		// The servlet already sent the header and body, or part of it
+		if (streamed) {
+			close();
+			trace.end(RequestTrace.Phase.SEND);
+			return code;
+		}
+		
+		if (code.getCode() >= 400) {
+			messageOut = code.getHtmlFormat();  // error message, encoded once
+			htmlOut = code.getHtmlBytes();
+		}
 
 		// Process the header lines
-		else 
-			code = processHeader(message.substring(i, message.length()));
+		else if (code == HttpCode.OK)
+			code = processHeader();
 			// OK or NOT_MODIFIED -> there is no message to send
 		
 		// Send the request info response
 		sendResponseHeader();
+		traffic = throttle.classify(getLength());
 		
-		// Send the file request or an html message
+		// Send the file request or an html message, in the same write as the header
 		if (sendBody) {
-			if (code != HttpCode.OK)
-				sendMessage(code.getHtmlFormat());
-			else if (sendBody && file != null)
+			if (file != null)
 				sendFile(file);
-			else  // dynamic response
-				sendMessage(messageOut);
+			else if (dynamicOut != null)  // dynamic response
+				sendMessage(dynamicOut);
+			else if (htmlOut != null)  // error message or directory index
+				sendMessage(htmlOut);
 			
 		}
 				
-		// Close the steam
-        out.close();     
+		// Send what is buffered and close the steam. An HTTP/2 stream with the
+		// body cut is reset, the client would take it as whole
+		if (cut && out instanceof Http2Stream.Output)
+			reset();
+		else
+			close();
+		trace.end(RequestTrace.Phase.SEND);
 		
 		return code;
     }
@@ -144,10 +297,7 @@ public class HttpRequestHandler {
         // Check the method	
 		String method = tokens[0];
 		
-		if (method.equals("POST") || method.equals("PUT"))
-			return HttpCode.NOT_IMPLEMENTED;
-		
-		if (!method.equals("GET")) {
+		if (!method.equals("GET") && !method.equals("POST") && !method.equals("PUT")) {
 			if (!method.equals("HEAD"))
 				return HttpCode.BAD_REQUEST;  // unkown method
 			sendBody = false;
@@ -156,11 +306,14 @@ public class HttpRequestHandler {
 		// Check the version
 		String version = tokens[2];
 		
-        if (!version.equals("HTTP/1.0") && !version.equals("HTTP/1.1"))
+        if (!version.equals("HTTP/1.0") && !version.equals("HTTP/1.1")
+				&& !(version.equals("HTTP/2.0") && sIn instanceof Http2Stream.Input))
             return HttpCode.HTTP_VERSION_NOT_SUPPORTED;
 		
 		// Check the file
 		String filename = tokens[1];
+		if (method.equals("PUT"))
+			return manageUpload(filename);
         return manageFileRequest(filename);
     }
     
@@ -174,34 +327,50 @@ public class HttpRequestHandler {
 	 */
 	private HttpCode manageFileRequest(String f) {	
 		
-		// Process a dynamic request
-		if (f.contains(".do"))
-			return manageDynRequest(f);
+		// Process a dynamic request, the path must match a servlet route
+		Router.Match match = Router.Match.acquire();
+		try {
+			Route route = ROUTER.match(f, match);
+			if (route != null && route.getKind() != Route.Kind.FILES) {
+				int q = f.indexOf('?');
+				return manageDynRequest(route.getName(), route.getHandler(), match, 
+						q == -1 ? null : f.substring(q + 1));
+			}
+		} finally {
+			Router.Match.release(match);
+		}
+		
+		// Only the servlets accept a body
+		if (requestLine.startsWith("POST "))
+			return HttpCode.NOT_IMPLEMENTED;
 		
 		// Find what file is requested
-		file = ServerUtils.getFile(DEFAULT_DIR, f);
-
-		// File not found
-		if (file == null)
-			return HttpCode.NOT_FOUND;
+		trace.begin(RequestTrace.Phase.RESOLVE);
+		try {
+			entry = host.getResolver().resolve(f);
+		} catch (IllegalArgumentException e) {
+			return HttpCode.BAD_REQUEST;  // malformed or outside the resources directory
+		} finally {
+			trace.end(RequestTrace.Phase.RESOLVE);
+		}
 
-		// Directory requested
-		if (file.isDirectory()) {
+		switch (entry.getKind()) {
 			
-			// Try to get the default file into the dir
-			String relativePath = f + DEFAULT_FILE;	
-			file = ServerUtils.getFile(DEFAULT_DIR, relativePath);
-					
-			// Default file not found
-			if (file == null) {
+			// File not found
+			case NOT_FOUND:
+				return HttpCode.NOT_FOUND;
 
-				// Show recursively the content of the dir
-				if (ALLOW)
-					messageOut = ServerUtils.getHtmlIndex(DEFAULT_DIR, f.substring(1));
-				else
+			// Directory requested without default file, show its content
+			case LISTING:
+				if (!host.getHost().isAllow())
 					return HttpCode.FORBIDDEN;
-			}
-				
+				messageOut = entry.getListing(host.getHost().getDir());  // cached until the directory changes
+				htmlOut = messageOut.getBytes(StandardCharsets.UTF_8);
+				break;
+
+			// File or default file of the directory requested
+			default:
+				file = entry.getFile();
 		}
 		
 		return HttpCode.OK;
@@ -210,47 +379,301 @@ public class HttpRequestHandler {
 	/**
 	 * Gets dynamic content from a java class file.
 	 * 
-	 * @param f the path to the java class file
-	 * @return NOT_FOUND if the class does not exist, OK otherwise
+	 * @param className name of the servlet class, or route of a servlet instance
+	 * @param handler servlet registered for the route, null if it is given by its class
+	 * @param match parameters of the path
+	 * @param query query string of the request, null if there is none
+	 * @return NOT_FOUND if the class does not exist, BAD_REQUEST if the query
+	 * is malformed, OK if the servlet was started
 	 */
-	private HttpCode manageDynRequest(String f) {
-
-		// Get the path to the file without the extension
-		String doFile = f.substring(0, f.indexOf(".do"));
-
-		// Get the .do filename
-		doFile = doFile.substring(doFile.lastIndexOf('/')+1);
+	private HttpCode manageDynRequest(String className, MiniServlet handler, Router.Match match, String query) {
+		ParameterMap param = ParameterMap.acquire();
+		SpillBuffer buffer = null;
 		
 		try {			
-			// Get the parameters
-			String args = f.substring(f.indexOf('?')+1);
+			// Get the parameters, the ones of the path first
+			for (int i = 0; i < match.getCount(); i++)
+				param.add(match.getName(i), ServerUtils.decode(match.getValue(i), false));
+			if (query != null)
+				QueryParser.parse(query, param);
 			
-			// Encapsulate each parameter
-			Map<String,String> param = new HashMap<>();
-			
-			for (String p : args.split("&")) {
-				String[] split = p.split("=");
+			// Read the body of a POST, and the fields if it is a form
+			if (requestLine.startsWith("POST ")) {
+				HttpCode c = openBody(MAX_BODY_SIZE);
+				if (c != HttpCode.OK)
+					return c;
 				
-				String key = split[0];
-				String value = (split.length == 1 ? "" : split[1]);
+				trace.begin(RequestTrace.Phase.BODY);
+				buffer = new SpillBuffer(BODY_BUFFER_SIZE, MAX_BODY_SIZE);
+				buffer.readFrom(body);
+				trace.end(RequestTrace.Phase.BODY);
 				
-				param.put(key, value);
+				String type = headers.get("content-type");
+				if (type != null && type.startsWith("application/x-www-form-urlencoded")) {
+					if (buffer.length() > BODY_BUFFER_SIZE)
+						return HttpCode.PAYLOAD_TOO_LARGE;  // forms are parsed in memory
+					QueryParser.parse(buffer.toString(StandardCharsets.ISO_8859_1), param);
+				}
 			}
 			
-			// Dynamic responses that need to know the root path
-			if (doFile.equals("MiServletSearch"))
-				param.put("root", DEFAULT_DIR);
+			// The servlets get the root path of the host
+			param.put(MiniServlet.ROOT, host.getHost().getDir());
+			
+			// Create and call the class function in the servlet pool, the GET responses may be cached
+			trace.begin(RequestTrace.Phase.SERVLET);
+			SpillBuffer b = buffer;
+			Runnable cleanup = () -> {
+				ParameterMap.release(param);
+				if (b != null)
+					b.close();
+			};
 			
-			// Create and call the class function
-			messageOut = ServerUtils.processDynRequest("es.udc.redes.webserver." + doFile, param);
+			if (b == null)
+				pending = host.getCache().get(className, handler, param, () -> {
+					dispatched = true;
+					
+					// Send the response as the servlet writes it
+					if (sendBody && isStreaming(className, handler)) {
+						stream = new ResponseWriter(out, this::sendStreamHeader);
+						return servlets.submit(className, handler, SERVLET_TIMEOUT, () -> {
+							ServerUtils.processDynRequest(ServerUtils.getServlet(className, handler), param, stream);
+							return stream.toByteArray();
+						}, cleanup);
+					}
+					
+					return servlets.submit(className, handler, SERVLET_TIMEOUT, 
+							() -> ServerUtils.processDynRequest(ServerUtils.getServlet(className, handler), param, 
+									(InputStream) null).getBytes(StandardCharsets.UTF_8), 
+							cleanup);
+				});
+			else {
+				InputStream in = b.getInputStream();
+				dispatched = true;
+				pending = servlets.submit(className, handler, SERVLET_TIMEOUT, 
+						() -> ServerUtils.processDynRequest(ServerUtils.getServlet(className, handler), param, in)
+								.getBytes(StandardCharsets.UTF_8), 
+						cleanup);
+			}
 			
+		} catch (IllegalArgumentException e) {
+			return HttpCode.BAD_REQUEST;
+		} catch (SpillBuffer.TooLargeException e) {
+			return HttpCode.PAYLOAD_TOO_LARGE;
+		} catch (IOException e) {
+			System.out.println("Error reading the request body: " + e.getMessage());
+			return HttpCode.BAD_REQUEST;
 		} catch (ClassNotFoundException e) {
 			System.out.println("Error: class not found");
 			e.printStackTrace();
 			return HttpCode.NOT_FOUND;
-		} catch (Exception e) {
+		} catch (ReflectiveOperationException e) {
 			System.out.println("Error getting the dynamic message: " + e.getMessage());
 			e.printStackTrace();
+			return HttpCode.INTERNAL_SERVER_ERROR;
+		} finally {
+			if (!dispatched) {
+				ParameterMap.release(param);
+				if (buffer != null)
+					buffer.close();
+			}
+		}
+		
+		return HttpCode.OK;
+	}
+	
+	/**
+	 * Gets the exit status of a servlet call, saving its response.
+	 * 
+	 * @param body response of the servlet, null if it failed
+	 * @param e error of the servlet call, null if it succeeded
+	 * @return OK, GATEWAY_TIMEOUT if the servlet did not finish in time, 
+	 * SERVICE_UNAVAILABLE if it had too many requests, BAD_REQUEST if it 
+	 * rejected the parameters, an error code otherwise
+	 */
+	private HttpCode getServletCode(byte[] body, Throwable e) {
+		
+		// A streamed response cannot change its code once started
+		if (stream != null) {
+			if (stream.stop()) {
+				streamed = true;
+				if (e != null)
+					System.out.println("Error: streamed response cut: " + e.getMessage());
+				return HttpCode.OK;
+			}
+			stream = null;  // nothing sent yet, it is answered as usual
+		}
+		
+		if (e == null) {
+			dynamicOut = body;
+			return HttpCode.OK;
+		}
+		
+		if (e instanceof CompletionException && e.getCause() != null)
+			e = e.getCause();
+		
+		if (e instanceof TimeoutException) {
+			System.out.println("Error: " + e.getMessage());
+			return HttpCode.GATEWAY_TIMEOUT;
+		}
+		if (e instanceof RejectedExecutionException) {
+			System.out.println("Error: " + e.getMessage());
+			return HttpCode.SERVICE_UNAVAILABLE;
+		}
+		if (e instanceof ClassNotFoundException) {
+			System.out.println("Error: class not found");
+			return HttpCode.NOT_FOUND;
+		}
+		if (e instanceof IllegalArgumentException) {
+			System.out.println("Error: " + e.getMessage());
+			return HttpCode.BAD_REQUEST;
+		}
+		
+		System.out.println("Error getting the dynamic message: " + e.getMessage());
+		e.printStackTrace();
+		return HttpCode.INTERNAL_SERVER_ERROR;
+	}
+	
+	/**
+	 * Checks if a servlet writes its response as it creates it.
+	 * 
+	 * @param className name of the servlet class
+	 * @param handler servlet registered for the route, null if it is given by its class
+	 * @return true if the servlet implements StreamingServlet
+	 */
+	private static boolean isStreaming(String className, MiniServlet handler) {
+		if (handler != null)
+			return handler instanceof StreamingServlet;
+		
+		try {
+			return StreamingServlet.class.isAssignableFrom(Class.forName(className));
+		} catch (ClassNotFoundException e) {
+			return false;  // reported when the servlet is run
+		}
+	}
+	
+	/**
+	 * Stores the body of a PUT into a file under the resources directory. The
+	 * body is streamed into a temporary file next to the target, which then
+	 * replaces the target, so a failed upload leaves the old file untouched.
+	 * 
+	 * @param f filepath relative to the resources directory
+	 * @return CREATED if the file is new, NO_CONTENT if it was replaced, an 
+	 * error code otherwise
+	 */
+	private HttpCode manageUpload(String f) {
+		if (!ALLOW_PUT)
+			return HttpCode.FORBIDDEN;
+		
+		// Find where the file goes
+		Path target;
+		trace.begin(RequestTrace.Phase.RESOLVE);
+		try {
+			target = host.getResolver().resolveTarget(f);
+		} catch (IllegalArgumentException e) {
+			return HttpCode.BAD_REQUEST;
+		} finally {
+			trace.end(RequestTrace.Phase.RESOLVE);
+		}
+		
+		if (!Files.isDirectory(target.getParent()))
+			return HttpCode.NOT_FOUND;
+		if (Files.isDirectory(target))
+			return HttpCode.FORBIDDEN;
+		
+		HttpCode c = openBody(MAX_UPLOAD_SIZE);
+		if (c != HttpCode.OK)
+			return c;
+		
+		boolean exists = Files.exists(target);
+		Path tmp = null;
+		
+		trace.begin(RequestTrace.Phase.BODY);
+		try {
+			tmp = Files.createTempFile(target.getParent(), ".upload-", ".tmp");
+			
+			// Copy the body without going through the heap in big pieces
+			try (FileChannel file = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+				ReadableByteChannel src = Channels.newChannel(body);
+				long position = 0, n;
+				
+				while ((n = file.transferFrom(src, position, 
+						Math.min(TRANSFER_SIZE, MAX_UPLOAD_SIZE - position + 1))) > 0) {
+					position += n;
+					if (position > MAX_UPLOAD_SIZE)
+						return HttpCode.PAYLOAD_TOO_LARGE;
+				}
+			}
+			
+			Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			
+		} catch (IOException e) {
+			System.out.println("Error storing the upload: " + e.getMessage());
+			return HttpCode.INTERNAL_SERVER_ERROR;
+			
+		} finally {
+			trace.end(RequestTrace.Phase.BODY);
+			try {
+				if (tmp != null)
+					Files.deleteIfExists(tmp);
+			} catch (IOException e) {
+				System.out.println("Error deleting the upload: " + e.getMessage());
+			}
+		}
+		
+		return exists ? HttpCode.NO_CONTENT : HttpCode.CREATED;
+	}
+	
+	/**
+	 * Prepares the stream of the request body from its Content-Length or its 
+	 * chunked transfer encoding. If the client waits for it, a 100 Continue is
+	 * sent first, unless the length sent is already too large.
+	 * 
+	 * @param max max length of the body
+	 * @return OK if the body can be read, LENGTH_REQUIRED if its length is 
+	 * unknown, PAYLOAD_TOO_LARGE if its length is over the max, an error code
+	 * otherwise
+	 */
+	private HttpCode openBody(long max) {
+		String encoding = headers.get("transfer-encoding");
+		String length = headers.get("content-length");
+		
+		// A length sent is checked before reading anything
+		long n = -1;
+		if (length != null && encoding == null) {
+			try {
+				n = Long.parseLong(length);
+			} catch (NumberFormatException e) {
+				return HttpCode.BAD_REQUEST;
+			}
+			if (n < 0)
+				return HttpCode.BAD_REQUEST;
+			if (n > max)
+				return HttpCode.PAYLOAD_TOO_LARGE;
+		}
+		
+		// The body of an HTTP/2 request ends with its stream
+		if (sIn instanceof Http2Stream.Input)
+			body = sIn;
+		
+		else if (encoding != null) {
+			if (!encoding.equalsIgnoreCase("chunked"))
+				return HttpCode.NOT_IMPLEMENTED;
+			body = new ChunkedInputStream(sIn);
+			
+		} else if (n >= 0)
+			body = new BoundedInputStream(sIn, n);
+			
+		else
+			return HttpCode.LENGTH_REQUIRED;
+		
+		// The client waits before sending the body
+		if ("100-continue".equalsIgnoreCase(headers.get("expect"))) {
+			try {
+				sOut.write("HTTP/1.0 100 Continue\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+				sOut.flush();
+			} catch (IOException e) {
+				System.out.println("Error: " + e.getMessage());
+			}
 		}
 		
 		return HttpCode.OK;
@@ -259,23 +682,19 @@ public class HttpRequestHandler {
 	/**
 	 * Checks for a If-Modified-Since header.
 	 * 
-	 * @param header header request lines
 	 * @return NOT_MODIFIED if the file requested was not modified,
 	 * OK otherwise
 	 */
-    private HttpCode processHeader(String header) {
+    private HttpCode processHeader() {
 
 		// dynamic message will be sent, i.e. request a dir and no default file exists
 		if (file == null)
 			return HttpCode.OK;
 		
 		// Search for If-Modified-Since line
-		for (String line : header.split("\n")) {
-			String[] tokens = line.split(": ");
-			
-			if (tokens[0].equals("If-Modified-Since"))
-				return checkIfModSince(tokens);
-		}
+		String since = headers.get("if-modified-since");
+		if (since != null)
+			return checkIfModSince(since);
 
         return HttpCode.OK;
     }
@@ -283,17 +702,17 @@ public class HttpRequestHandler {
 	/**
 	 * Checks if the file was modified after the since date.
 	 * 
-	 * @param line If-Modified-Since line
+	 * @param value If-Modified-Since value
 	 * @return NOT_MODIFIED if the file requested was not modified,
 	 * OK otherwise
 	 */
-	private HttpCode checkIfModSince(String[] line) {
+	private HttpCode checkIfModSince(String value) {
 		
 		// Get the last modified date
-		Date last = new Date(file.lastModified());
+		Date last = new Date(entry.getLastModified());
 		
 		// Get the since date to compare
-		Date since = ServerUtils.getDate(line[1], null);
+		Date since = ServerUtils.getDate(value, null);
 
 		// Check if the resource was modified after that date
 		if (since == null || !since.before(last)) {
@@ -307,105 +726,169 @@ public class HttpRequestHandler {
 	
 	
 	/**
-	 * Sends the header of the http response to the client.
+	 * Writes the header of the http response, with CRLF line ends, into the 
+	 * output buffer. It is sent with the start of the body.
 	 */
 	private void sendResponseHeader() {
+		StringBuilder header = new StringBuilder(256);
 		
-		// Print and send the necessary fields
-		System.out.println("");
-		System.out.println("HTTP/1.0 " + code.getCode() + " " + code.name());
-		System.out.println("Date: " + ServerUtils.formatDate(date, ServerUtils.DATE_FORMAT));
-		System.out.println("Server: " + SERVER);
-        out.println("HTTP/1.0 " + code.getCode() + " " + code.name());
-		out.println("Date: " + ServerUtils.formatDate(date, ServerUtils.DATE_FORMAT));
-		out.println("Server: " + SERVER);
+		// Add the necessary fields
+		appendField(header, null, "HTTP/1.0 " + code.getCode() + " " + code.name());
+		appendField(header, "Date", ServerUtils.formatDate(date, ServerUtils.DATE_FORMAT));
+		appendField(header, "Server", SERVER);
 		
-		try {
-			if (file != null) {  // a file is sent
-				
-				// Get the last modified date
-				Date d = new Date(file.lastModified());
-				String lastMod = ServerUtils.formatDate(d, ServerUtils.DATE_FORMAT);
-				
-				// Get the MIME type
-				String type = Files.probeContentType(file.toPath());
-				
-				System.out.println("Last-Modified: " + lastMod);
-				System.out.println("Content-Type: " + type);
-				System.out.println("Content-Length: " + (int) file.length());
-				out.println("Last-Modified: " + lastMod);
-				out.println("Content-Type: " + type);
-				out.println("Content-Length: " + (int) file.length());
+		if (file != null) {  // a file is sent
+			
+			// Get the last modified date
+			Date d = new Date(entry.getLastModified());
+			String lastMod = ServerUtils.formatDate(d, ServerUtils.DATE_FORMAT);
+			
+			// Get the MIME type
+			String type = entry.getType();
+			
+			appendField(header, "Last-Modified", lastMod);
+			appendField(header, "Content-Type", type);
+			appendField(header, "Content-Length", String.valueOf(entry.getLength()));
 
-			} else if (messageOut != null) {  // html message
-				System.out.println("Content-Length: " + messageOut.length());
-				System.out.println("Content-Type: " + "text/html");
-				out.println("Content-Type: " + "text/html");
-				out.println("Content-Length: " + messageOut.length());
-			}
+		} else if (dynamicOut != null) {  // servlet message
+			appendField(header, "Content-Type", "text/html; charset=UTF-8");
+			appendField(header, "Content-Length", String.valueOf(dynamicOut.length));
+			
+		} else if (stream != null) {  // streamed servlet message, ends with the connection or stream
+			appendField(header, "Content-Type", "text/html; charset=UTF-8");
 			
+		} else if (htmlOut != null) {  // html message
+			appendField(header, "Content-Type", "text/html; charset=UTF-8");
+			appendField(header, "Content-Length", String.valueOf(htmlOut.length));
+		}
+		
+		// Time spent until the response starts
+		if (TRACE.isServerTiming()) {
+			StringBuilder timing = new StringBuilder(128);
+			trace.appendTo(timing);
+			appendField(header, "Server-Timing", timing.toString());
+		}
+		
+		header.append("\r\n");
+		
+		// Print and buffer it
+		System.out.println("");
+		System.out.print(header.toString().replace("\r\n", "\n"));
+		try {
+			out.write(header.toString().getBytes(StandardCharsets.ISO_8859_1));
 		} catch (IOException e) {
 			System.out.println("Error: " + e.getMessage());
 			e.printStackTrace();
-			
-		} finally {
-			System.out.println("");
-			out.println();
 		}
     }
 	
 	/**
-	 * Sends the file requested to the client.
+	 * Appends a header line.
+	 * 
+	 * @param header header being created
+	 * @param name name of the field, null for the status line
+	 * @param value value of the field
+	 */
+	private static void appendField(StringBuilder header, String name, String value) {
+		if (name != null)
+			header.append(name).append(": ");
+		header.append(value).append("\r\n");
+	}
+	
+	/**
+	 * Sends the header of a streamed servlet response, without its length.
+	 */
+	private void sendStreamHeader() {
+		code = HttpCode.OK;
+		sendResponseHeader();
+	}
+	
+	/**
+	 * Sends the file requested to the client. Its first bytes go in the same
+	 * write as the header. Exactly the length sent in the header is sent, 
+	 * even if the file changed since it was resolved.
 	 * 
 	 * @param f file requested
 	 */
     private void sendFile(File f) {
-        FileInputStream inputStream = null;
-        BufferedOutputStream outputStream = null;
-
-        try {
+		long length = entry.getLength();
+		
+		try (FileInputStream inputStream = new FileInputStream(f)) {
 			
-            // Create input and output byte streams
-            inputStream = new FileInputStream(f);
-            outputStream = new BufferedOutputStream(sOut);
-
+			// Encrypt it from direct buffers, without copying it to the heap, 
+			// in pieces if the bandwidth is limited
+			if (out instanceof TlsConnection.Output) {
+				long piece = throttle.isLimited() ? THROTTLED_TRANSFER : length;
+				for (long position = 0; position < length; position += piece) {
+					long n = Math.min(piece, length - position);
+					throttle.acquire(traffic, n);
+					((TlsConnection.Output) out).transferFrom(inputStream.getChannel(), position, n);
+				}
+				
             // Copy input into output
-			int c;
-            while ((c = inputStream.read()) != -1)
-                outputStream.write(c);
-            outputStream.flush();
+			} else {
+				byte[] buffer = new byte[FILE_BUFFER_SIZE];
+				for (long remaining = length; remaining > 0; ) {
+					int n = inputStream.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+					if (n == -1)
+						throw new EOFException("File shorter than expected");
+					throttle.acquire(traffic, n);
+					out.write(buffer, 0, n);
+					remaining -= n;
+				}
+			}
 			
 			System.out.println("sending file: " + f.getName());
 
+		} catch (EOFException e) {
+			// The connection or stream ends with the body cut
+			System.out.println("Error sending " + f.getName() + ": " + e.getMessage());
+			cut = true;
+			
 		} catch (IOException e) {
 			System.out.println("Error: " + e.getMessage());
 			e.printStackTrace();
-			
-        } finally {
-			try {
-				if (inputStream != null)
-					inputStream.close();
-				if (outputStream != null)
-					outputStream.close();
-			} catch (IOException e) {
-				System.out.println("Error while closing stream(s): " + e.getMessage());
-				e.printStackTrace();
-			}
         }
     }
 	
 	/**
-	 * Sends a html message to the client.
+	 * Sends an encoded html message to the client. A message that fits in the
+	 * output buffer goes in the same write as the header.
 	 * 
 	 * @param message message to send
 	 */
-	private void sendMessage(String message) {
-		final int maxLength = 80;  // maximum amount of characters to print into the console
-		
-		if (message.length() > maxLength)
-			System.out.println(message.substring(0, maxLength-5) + ".....");
-		else
-			System.out.println(message);
-		out.println(message);
+	private void sendMessage(byte[] message) {
+		try {
+			throttle.acquire(traffic, message.length);
+			out.write(message);
+			
+			System.out.println("sending message: " + message.length + " bytes");
+			
+		} catch (IOException e) {
+			System.out.println("Error: " + e.getMessage());
+			e.printStackTrace();
+		}
     }
+	
+	/**
+	 * Resets the HTTP/2 stream instead of ending it.
+	 */
+	private void reset() {
+		try {
+			((Http2Stream.Output) out).reset();
+		} catch (IOException e) {
+			System.out.println("Error while resetting stream: " + e.getMessage());
+		}
+	}
+	
+	/**
+	 * Sends what is buffered and closes the stream.
+	 */
+	private void close() {
+		try {
+			out.close();
+		} catch (IOException e) {
+			System.out.println("Error while closing stream(s): " + e.getMessage());
+		}
+	}
 }
@@ -0,0 +1,85 @@
+package webserver;
+
+/**
+ * HyperLogLog: estimates the number of distinct items added with a fixed 
+ * amount of memory, 2^precision bytes. The standard error is about 
+ * 1.04 / sqrt(2^precision). The items are given by a well mixed 64 bit hash.
+ *
+ * @author Ángel Miguélez Millos
+ */
+public class HyperLogLog {
+
+	private final int precision;
+	private final byte[] registers;
+
+	/**
+	 * Creates a new HyperLogLog.
+	 *
+	 * @param precision bits of the hash that choose the register, from 4 to 18
+	 * @throws IllegalArgumentException If the precision is out of range
+	 */
+	public HyperLogLog(int precision) {
+		if (precision < 4 || precision > 18)
+			throw new IllegalArgumentException("Invalid precision");
+
+		this.precision = precision;
+		registers = new byte[1 << precision];
+	}
+
+	/**
+	 * Adds an item.
+	 *
+	 * @param hash hash of the item
+	 */
+	public void add(long hash) {
+		int i = (int) (hash >>> (64 - precision));
+
+		// Position of the first 1 bit of the rest of the hash
+		long w = (hash << precision) | (1L << (precision - 1));
+		byte rank = (byte) (Long.numberOfLeadingZeros(w) + 1);
+
+		if (rank > registers[i])
+			registers[i] = rank;
+	}
+
+	/**
+	 * Estimates the number of distinct items added.
+	 *
+	 * @return the estimated cardinality
+	 */
+	public long estimate() {
+		int m = registers.length;
+		double sum = 0;
+		int zeros = 0;
+
+		for (byte r : registers) {
+			sum += 1.0 / (1L << r);
+			if (r == 0)
+				zeros++;
+		}
+
+		double alpha = 0.7213 / (1 + 1.079 / m);
+		double e = alpha * m * m / sum;
+
+		// Few items, linear counting is more accurate
+		if (e <= 2.5 * m && zeros > 0)
+			e = m * Math.log((double) m / zeros);
+
+		return Math.round(e);
+	}
+
+	/**
+	 * Adds the items of another HyperLogLog with the same precision.
+	 *
+	 * @param other HyperLogLog to add
+	 * @throws IllegalArgumentException If the precision is not the same
+	 */
+	public void merge(HyperLogLog other) {
+		if (other.precision != precision)
+			throw new IllegalArgumentException("Different precision");
+
+		for (int i = 0; i < registers.length; i++)
+			if (other.registers[i] > registers[i])
+				registers[i] = other.registers[i];
+	}
+}
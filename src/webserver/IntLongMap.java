@@ -0,0 +1,145 @@
+package webserver;
+
+/**
+ * Hash map from int keys to long counters, with open addressing and no 
+ * boxing.
+ *
+ * @author Ángel Miguélez Millos
+ */
+public class IntLongMap {
+
+	private int[] keys;
+	private long[] values;
+	private boolean[] used;
+	private int size;
+
+	/**
+	 * Interface to visit the entries of the map.
+	 */
+	public interface Visitor {
+
+		/**
+		 * Visits an entry.
+		 *
+		 * @param key key of the entry
+		 * @param value value of the entry
+		 */
+		void visit(int key, long value);
+	}
+
+	/**
+	 * Creates a new empty IntLongMap.
+	 */
+	public IntLongMap() {
+		keys = new int[1024];
+		values = new long[1024];
+		used = new boolean[1024];
+	}
+
+	/**
+	 * Adds to the counter of a key, creating it if it does not exist.
+	 *
+	 * @param key key of the counter
+	 * @param delta amount to add
+	 */
+	public void add(int key, long delta) {
+		int i = slot(keys, used, key);
+		if (!used[i]) {
+			keys[i] = key;
+			used[i] = true;
+			size++;
+		}
+		values[i] += delta;
+
+		// Keep the load factor under 1/2
+		if (size * 2 > keys.length)
+			resize();
+	}
+
+	/**
+	 * Gets the counter of a key.
+	 *
+	 * @param key key of the counter
+	 * @return the counter, 0 if it does not exist
+	 */
+	public long get(int key) {
+		return values[slot(keys, used, key)];
+	}
+
+	/**
+	 * Checks if a key has a counter.
+	 *
+	 * @param key key of the counter
+	 * @return true if the key exists
+	 */
+	public boolean contains(int key) {
+		return used[slot(keys, used, key)];
+	}
+
+	/**
+	 * Gets the number of keys.
+	 *
+	 * @return the number of keys
+	 */
+	public int size() { return size; }
+
+	/**
+	 * Adds the counters of another map.
+	 *
+	 * @param other map to add
+	 */
+	public void merge(IntLongMap other) {
+		other.forEach(this::add);
+	}
+
+	/**
+	 * Visits all the entries, in no particular order.
+	 *
+	 * @param visitor visitor of the entries
+	 */
+	public void forEach(Visitor visitor) {
+		for (int i = 0; i < keys.length; i++)
+			if (used[i])
+				visitor.visit(keys[i], values[i]);
+	}
+
+	/**
+	 * Finds the slot of a key, or the empty slot where it goes.
+	 *
+	 * @param keys keys of the table
+	 * @param used slots of the table in use
+	 * @param key key to find
+	 * @return the position of the slot
+	 */
+	private static int slot(int[] keys, boolean[] used, int key) {
+		int mask = keys.length - 1;
+		int i = (key * 0x9E3779B9) >>> 7 & mask;
+
+		while (used[i] && keys[i] != key)
+			i = (i + 1) & mask;
+
+		return i;
+	}
+
+	/**
+	 * Doubles the table, moving the entries.
+	 */
+	private void resize() {
+		int[] k = new int[keys.length * 2];
+		long[] v = new long[values.length * 2];
+		boolean[] u = new boolean[used.length * 2];
+
+		for (int i = 0; i < keys.length; i++) {
+			if (used[i]) {
+				int j = slot(k, u, keys[i]);
+				k[j] = keys[i];
+				v[j] = values[i];
+				u[j] = true;
+			}
+		}
+
+		keys = k;
+		values = v;
+		used = u;
+	}
+}
@@ -0,0 +1,615 @@
+package webserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Analyzes text log files: number of records and bytes served, breakdown by
+ * http code, the most requested URLs and the clients with more requests. The
+ * files are memory mapped and split in chunks parsed in parallel, each thread
+ * aggregates its chunks with fixed size sketches and primitive maps that are
+ * merged at the end, so the memory used does not grow with the size of the
+ * logs. The URL counts and the number of distinct URLs and clients are
+ * estimates; the counts per IPv4 client are exact.
+ *
+ * Binary logs are converted to text with LogReader before analyzing them.
+ *
+ * Usage: java webserver.LogAnalyzer [options] file...
+ * <ul>
+ * <li>-top N: number of URLs and clients listed, 10 by default</li>
+ * <li>-threads N: number of threads parsing, the processors by default</li>
+ * </ul>
+ *
+ * @author Ángel Miguélez Millos
+ */
+public class LogAnalyzer {
+
+	private final static int CHUNK_SIZE = 64 << 20;
+	private final static int OVERLAP = ServerUtils.MAX_HEADER + 4096;  // longest record past a chunk end
+	private final static int SKETCH_DEPTH = 4, SKETCH_WIDTH = 1 << 16;
+	private final static int HLL_PRECISION = 14;
+	private final static int MAX_CLIENTS = 1 << 20;  // counted per thread, the rest are grouped
+
+	private final static byte[] REQUEST = bytes("Request="), IP = bytes("IP="), CODE = bytes("Code="),
+			SIZE = bytes("Size="), ERROR = bytes("Error=");
+
+	// error message -> code, the error log has no codes
+	private final static Map<String, Integer> ERRORS = new HashMap<>();
+	static {
+		for (HttpCode c : HttpCode.values())
+			if (c.getCode() >= 400)
+				ERRORS.put(c.getMessage(), c.getCode());
+	}
+
+	private final int top;
+	private final int candidates;  // URLs tracked per thread
+
+	/**
+	 * Part of a log file parsed by a thread. It has the records that start
+	 * inside it.
+	 */
+	private static class Chunk {
+		private final FileChannel channel;
+		private final long start, end, fileSize;
+
+		private Chunk(FileChannel channel, long start, long end, long fileSize) {
+			this.channel = channel;
+			this.start = start;
+			this.end = end;
+			this.fileSize = fileSize;
+		}
+	}
+
+	/**
+	 * Aggregates of the records parsed by a thread.
+	 */
+	private class Stats {
+		private long records, bytes;
+		private final long[] codes = new long[1000];
+
+		private final CountMinSketch urls = new CountMinSketch(SKETCH_DEPTH, SKETCH_WIDTH);
+		private final HyperLogLog distinctUrls = new HyperLogLog(HLL_PRECISION);
+		private final Map<Long, String> topUrls = new HashMap<>();  // hash -> url, candidates to the top
+		private long threshold;  // count a URL needs to become a candidate
+
+		private final HyperLogLog distinctClients = new HyperLogLog(HLL_PRECISION);
+		private final IntLongMap ipv4Requests = new IntLongMap();
+		private final IntLongMap ipv4Bytes = new IntLongMap();
+		private final Map<String, long[]> otherClients = new HashMap<>();  // ip -> requests, bytes
+		private long groupedRequests, groupedBytes;  // clients over the max
+
+		/**
+		 * Counts a URL, keeping it as candidate if it is among the most requested.
+		 *
+		 * @param b mapped log
+		 * @param from start of the URL
+		 * @param to end of the URL
+		 */
+		private void addUrl(MappedByteBuffer b, int from, int to) {
+			long h = hash(b, from, to);
+			distinctUrls.add(h);
+
+			long count = urls.add(h);
+			if (count <= threshold || topUrls.containsKey(h))
+				return;
+			topUrls.put(h, string(b, from, to));
+
+			// Too many candidates, keep the most requested ones
+			if (topUrls.size() > 2 * candidates) {
+				List<long[]> counts = new ArrayList<>(topUrls.size());
+				for (long k : topUrls.keySet())
+					counts.add(new long[] { urls.estimate(k), k });
+				counts.sort((x, y) -> Long.compare(y[0], x[0]));
+
+				for (long[] c : counts.subList(candidates, counts.size()))
+					topUrls.remove(c[1]);
+				threshold = counts.get(candidates - 1)[0];
+			}
+		}
+
+		/**
+		 * Counts a request of a client.
+		 *
+		 * @param b mapped log
+		 * @param from start of the ip
+		 * @param to end of the ip
+		 * @param size bytes served
+		 */
+		private void addClient(MappedByteBuffer b, int from, int to, long size) {
+			distinctClients.add(hash(b, from, to));
+
+			// IPv4, primitive key
+			long ip = parseIpv4(b, from, to);
+			if (ip >= 0) {
+				int key = (int) ip;
+				if (ipv4Requests.contains(key) || ipv4Requests.size() < MAX_CLIENTS) {
+					ipv4Requests.add(key, 1);
+					ipv4Bytes.add(key, size);
+					return;
+				}
+
+			// IPv6, rare
+			} else {
+				String address = string(b, from, to);
+				long[] c = otherClients.get(address);
+				if (c == null && otherClients.size() < MAX_CLIENTS)
+					otherClients.put(address, c = new long[2]);
+				if (c != null) {
+					c[0]++;
+					c[1] += size;
+					return;
+				}
+			}
+
+			groupedRequests++;
+			groupedBytes += size;
+		}
+
+		/**
+		 * Adds the aggregates of another thread.
+		 *
+		 * @param other aggregates to add
+		 */
+		private void merge(Stats other) {
+			records += other.records;
+			bytes += other.bytes;
+			for (int i = 0; i < codes.length; i++)
+				codes[i] += other.codes[i];
+
+			urls.merge(other.urls);
+			distinctUrls.merge(other.distinctUrls);
+			topUrls.putAll(other.topUrls);
+
+			distinctClients.merge(other.distinctClients);
+			ipv4Requests.merge(other.ipv4Requests);
+			ipv4Bytes.merge(other.ipv4Bytes);
+			for (Map.Entry<String, long[]> e : other.otherClients.entrySet()) {
+				long[] c = otherClients.computeIfAbsent(e.getKey(), k -> new long[2]);
+				c[0] += e.getValue()[0];
+				c[1] += e.getValue()[1];
+			}
+			groupedRequests += other.groupedRequests;
+			groupedBytes += other.groupedBytes;
+		}
+	}
+
+	/**
+	 * Creates a new LogAnalyzer.
+	 *
+	 * @param top number of URLs and clients listed
+	 */
+	public LogAnalyzer(int top) {
+		this.top = top;
+		candidates = Math.max(1000, 10 * top);
+	}
+
+	/**
+	 * Analyzes text log files and prints the report.
+	 *
+	 * @param files text log files
+	 * @param threads number of threads parsing
+	 * @throws IOException If a file cannot be read
+	 * @throws InterruptedException If interrupted while waiting for the threads
+	 */
+	public void analyze(List<String> files, int threads) throws IOException, InterruptedException {
+		long time = System.nanoTime();
+		List<RandomAccessFile> opened = new ArrayList<>();
+		List<Chunk> chunks = new ArrayList<>();
+		long total = 0;
+
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			// Split the files
+			for (String f : files) {
+				RandomAccessFile raf = new RandomAccessFile(f, "r");
+				opened.add(raf);
+
+				long size = raf.length();
+				for (long start = 0; start < size; start += CHUNK_SIZE)
+					chunks.add(new Chunk(raf.getChannel(), start, Math.min(size, start + CHUNK_SIZE), size));
+				total += size;
+			}
+
+			// Each thread takes the next chunk until none is left
+			AtomicInteger next = new AtomicInteger();
+			List<Future<Stats>> results = new ArrayList<>();
+			for (int i = 0; i < threads; i++) {
+				results.add(pool.submit(() -> {
+					Stats s = new Stats();
+					int n;
+					while ((n = next.getAndIncrement()) < chunks.size())
+						parse(chunks.get(n), s);
+					return s;
+				}));
+			}
+
+			Stats stats = null;
+			for (Future<Stats> r : results) {
+				if (stats == null)
+					stats = r.get();
+				else
+					stats.merge(r.get());
+			}
+
+			print(stats, total, System.nanoTime() - time);
+
+		} catch (ExecutionException e) {
+			throw e.getCause() instanceof IOException ? (IOException) e.getCause()
+					: new IOException(e.getCause());
+		} finally {
+			pool.shutdownNow();
+			for (RandomAccessFile raf : opened)
+				raf.close();
+		}
+	}
+
+	/**
+	 * Parses the records that start inside a chunk. The chunk is mapped with
+	 * the bytes before it, to find where its first record starts, and after
+	 * it, to end its last record.
+	 *
+	 * @param chunk chunk to parse
+	 * @param s aggregates of the thread
+	 * @throws IOException If the chunk cannot be mapped
+	 */
+	private void parse(Chunk chunk, Stats s) throws IOException {
+		long mapStart = Math.max(0, chunk.start - 2);
+		long mapEnd = Math.min(chunk.fileSize, chunk.end + OVERLAP);
+		MappedByteBuffer b = chunk.channel.map(FileChannel.MapMode.READ_ONLY, mapStart, mapEnd - mapStart);
+		int limit = b.limit();
+		int end = (int) (chunk.end - mapStart);
+
+		// A record starts after a blank line
+		int p = (int) (chunk.start - mapStart);
+		if (chunk.start > 0)
+			while (p < limit && (b.get(p - 1) != '\n' || b.get(p - 2) != '\n'))
+				p++;
+		if (p >= end)
+			return;
+
+		// Fields of the current record, -1 if not found
+		int urlStart = -1, urlEnd = -1, ipStart = -1, ipEnd = -1, code = 0;
+		long size = 0;
+		boolean record = false;
+
+		while (p < limit) {
+			int eol = p;
+			while (eol < limit && b.get(eol) != '\n')
+				eol++;
+
+			// Blank line, end of the record
+			if (eol == p) {
+				if (record) {
+					add(s, b, urlStart, urlEnd, ipStart, ipEnd, code, size);
+					urlStart = urlEnd = ipStart = ipEnd = -1;
+					code = 0;
+					size = 0;
+					record = false;
+				}
+
+				p++;
+				if (p >= end)
+					return;  // next record is of the next chunk
+				continue;
+			}
+
+			record = true;
+
+			// Request line, the URL is its target without query
+			if (startsWith(b, p, eol, REQUEST)) {
+				int i = p + REQUEST.length;
+				while (i < eol && b.get(i) != ' ')
+					i++;
+				urlStart = Math.min(i + 1, eol);
+				urlEnd = urlStart;
+				while (urlEnd < eol && b.get(urlEnd) != ' ' && b.get(urlEnd) != '?')
+					urlEnd++;
+
+			} else if (startsWith(b, p, eol, IP)) {
+				ipStart = p + IP.length;
+				ipEnd = eol;
+			} else if (startsWith(b, p, eol, CODE))
+				code = (int) parseLong(b, p + CODE.length, eol);
+			else if (startsWith(b, p, eol, SIZE))
+				size = parseLong(b, p + SIZE.length, eol);
+			else if (startsWith(b, p, eol, ERROR)) {
+				String message = string(b, p + ERROR.length, eol);
+				Integer c = ERRORS.get(message);
+				code = c != null ? c : (int) parseLong(b, p + ERROR.length, eol);
+			}
+
+			p = eol + 1;
+		}
+
+		// Last record of the file, without blank line
+		if (record && mapEnd == chunk.fileSize)
+			add(s, b, urlStart, urlEnd, ipStart, ipEnd, code, size);
+	}
+
+	/**
+	 * Adds a record to the aggregates.
+	 *
+	 * @param s aggregates of the thread
+	 * @param b mapped log
+	 * @param urlStart start of the URL, -1 if there is none
+	 * @param urlEnd end of the URL
+	 * @param ipStart start of the ip, -1 if there is none
+	 * @param ipEnd end of the ip
+	 * @param code http code, 0 if unknown
+	 * @param size bytes served
+	 */
+	private static void add(Stats s, MappedByteBuffer b, int urlStart, int urlEnd, int ipStart, int ipEnd,
+			int code, long size) {
+		s.records++;
+		s.bytes += size;
+		s.codes[code >= 0 && code < s.codes.length ? code : 0]++;
+
+		if (urlStart >= 0)
+			s.addUrl(b, urlStart, urlEnd);
+		if (ipStart >= 0)
+			s.addClient(b, ipStart, ipEnd, size);
+	}
+
+	/**
+	 * Prints the report.
+	 *
+	 * @param s aggregates of all the records
+	 * @param total bytes of the files
+	 * @param time nanoseconds of the analysis
+	 */
+	private void print(Stats s, long total, long time) {
+		System.out.println("Records: " + s.records);
+		System.out.println("Bytes served: " + s.bytes);
+		System.out.println("Distinct URLs (estimated): " + s.distinctUrls.estimate());
+		System.out.println("Distinct clients (estimated): " + s.distinctClients.estimate());
+
+		// Codes
+		System.out.println();
+		System.out.println("Code     Requests        %");
+		for (int c = 0; c < s.codes.length; c++)
+			if (s.codes[c] > 0)
+				System.out.println(String.format("%-4s %12d %8.2f", c == 0 ? "?" : String.valueOf(c),
+						s.codes[c], 100.0 * s.codes[c] / s.records));
+
+		// URLs, by their counts in all the threads
+		List<long[]> urls = new ArrayList<>();
+		for (long h : s.topUrls.keySet())
+			urls.add(new long[] { s.urls.estimate(h), h });
+		urls.sort((x, y) -> Long.compare(y[0], x[0]));
+
+		System.out.println();
+		System.out.println("Top URLs  Requests (estimated)");
+		for (long[] u : urls.subList(0, Math.min(top, urls.size())))
+			System.out.println(String.format("%12d  %s", u[0], s.topUrls.get(u[1])));
+
+		// Clients
+		PriorityQueue<Object[]> clients = new PriorityQueue<>(
+				(x, y) -> Long.compare(((long[]) x[1])[0], ((long[]) y[1])[0]));
+		s.ipv4Requests.forEach((ip, requests) -> offer(clients, String.format("%d.%d.%d.%d",
+				ip >>> 24, ip >>> 16 & 0xFF, ip >>> 8 & 0xFF, ip & 0xFF),
+				new long[] { requests, s.ipv4Bytes.get(ip) }));
+		for (Map.Entry<String, long[]> e : s.otherClients.entrySet())
+			offer(clients, e.getKey(), e.getValue());
+		if (s.groupedRequests > 0)
+			offer(clients, "(other)", new long[] { s.groupedRequests, s.groupedBytes });
+
+		List<Object[]> sorted = new ArrayList<>(clients);
+		sorted.sort((x, y) -> Long.compare(((long[]) y[1])[0], ((long[]) x[1])[0]));
+
+		System.out.println();
+		System.out.println("Top clients  Requests            Bytes");
+		for (Object[] c : sorted)
+			System.out.println(String.format("%-16s %12d %16d", c[0], ((long[]) c[1])[0], ((long[]) c[1])[1]));
+
+		System.out.println();
+		System.out.println(String.format("Analyzed %d MB in %d ms", total >> 20, time / 1000000));
+	}
+
+	/**
+	 * Offers a client to the top, removing the one with less requests if it is full.
+	 *
+	 * @param clients top clients, the one with less requests first
+	 * @param ip ip of the client
+	 * @param counts requests and bytes of the client
+	 */
+	private void offer(PriorityQueue<Object[]> clients, String ip, long[] counts) {
+		clients.add(new Object[] { ip, counts });
+		if (clients.size() > top)
+			clients.poll();
+	}
+
+	/**
+	 * Checks if a line starts with a key.
+	 *
+	 * @param b mapped log
+	 * @param p start of the line
+	 * @param eol end of the line
+	 * @param key key to check
+	 * @return true if it starts with the key
+	 */
+	private static boolean startsWith(MappedByteBuffer b, int p, int eol, byte[] key) {
+		if (eol - p < key.length)
+			return false;
+
+		for (int i = 0; i < key.length; i++)
+			if (b.get(p + i) != key[i])
+				return false;
+		return true;
+	}
+
+	/**
+	 * Parses a non negative decimal number.
+	 *
+	 * @param b mapped log
+	 * @param from start of the number
+	 * @param to end of the number
+	 * @return the number, 0 if it is not valid
+	 */
+	private static long parseLong(MappedByteBuffer b, int from, int to) {
+		long n = 0;
+		for (int i = from; i < to; i++) {
+			int d = b.get(i) - '0';
+			if (d < 0 || d > 9 || n > Long.MAX_VALUE / 10)
+				return 0;
+			n = n * 10 + d;
+		}
+		return n;
+	}
+
+	/**
+	 * Parses a dotted IPv4 address.
+	 *
+	 * @param b mapped log
+	 * @param from start of the address
+	 * @param to end of the address
+	 * @return the address as an unsigned int, -1 if it is not IPv4
+	 */
+	private static long parseIpv4(MappedByteBuffer b, int from, int to) {
+		long ip = 0;
+		int part = 0, digits = 0, parts = 0;
+
+		for (int i = from; i <= to; i++) {
+			byte c = i < to ? b.get(i) : (byte) '.';
+			if (c == '.') {
+				if (digits == 0 || part > 255 || ++parts > 4)
+					return -1;
+				ip = ip << 8 | part;
+				part = 0;
+				digits = 0;
+			} else if (c >= '0' && c <= '9' && digits < 3) {
+				part = part * 10 + c - '0';
+				digits++;
+			} else
+				return -1;
+		}
+
+		return parts == 4 ? ip : -1;
+	}
+
+	/**
+	 * Hashes bytes with FNV-1a and mixes the result, so all its bits are
+	 * usable by the sketches.
+	 *
+	 * @param b mapped log
+	 * @param from start of the bytes
+	 * @param to end of the bytes
+	 * @return the hash
+	 */
+	private static long hash(MappedByteBuffer b, int from, int to) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = from; i < to; i++) {
+			h ^= b.get(i);
+			h *= 0x100000001b3L;
+		}
+
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	/**
+	 * Decodes bytes as ISO-8859-1, the charset of the logs.
+	 *
+	 * @param b mapped log
+	 * @param from start of the bytes
+	 * @param to end of the bytes
+	 * @return the string
+	 */
+	private static String string(MappedByteBuffer b, int from, int to) {
+		byte[] s = new byte[to - from];
+		for (int i = 0; i < s.length; i++)
+			s[i] = b.get(from + i);
+		return new String(s, StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * Encodes a key as ISO-8859-1.
+	 *
+	 * @param s key
+	 * @return the bytes of the key
+	 */
+	private static byte[] bytes(String s) {
+		return s.getBytes(StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * Prints how to use the analyzer and exits.
+	 */
+	private static void usage() {
+		System.out.println("Usage: java webserver.LogAnalyzer [-top N] [-threads N] file...");
+		System.out.println("The files are text logs, binary ones are converted with LogReader");
+		System.exit(1);
+	}
+
+	/**
+	 * Main method.
+	 *
+	 * @param args options and text log files
+	 */
+	public static void main(String[] args) {
+		int top = 10, threads = Runtime.getRuntime().availableProcessors();
+		List<String> files = new ArrayList<>();
+
+		// Parse the arguments
+		try {
+			for (int i = 0; i < args.length; i++) {
+				String a = args[i];
+				if (!a.startsWith("-")) {
+					files.add(a);
+					continue;
+				}
+				if (i + 1 == args.length)
+					usage();
+
+				int value = Integer.parseInt(args[++i]);
+				if (value <= 0)
+					usage();
+				if (a.equals("-top"))
+					top = value;
+				else if (a.equals("-threads"))
+					threads = value;
+				else
+					usage();
+			}
+		} catch (NumberFormatException e) {
+			System.out.println("Error: invalid option: " + e.getMessage());
+			usage();
+		}
+
+		if (files.isEmpty())
+			usage();
+
+		for (String f : files) {
+			if (!new File(f).isFile()) {
+				System.out.println("Error: " + f + " not found");
+				System.exit(1);
+			}
+		}
+
+		try {
+			new LogAnalyzer(top).analyze(files, threads);
+		} catch (IOException e) {
+			System.out.println("Error reading the logs: " + e.getMessage());
+			System.exit(1);
+		} catch (InterruptedException e) {
+			System.exit(1);
+		}
+	}
+}
@@ -3,88 +3,355 @@ package webserver;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 /**
- * Writes the connections exit information into log files.
- * 
+ * Writes the connections exit information into log files. The records are
+ * queued by the connection threads and a single writer thread appends them 
+ * to the files, which are kept open, so a request never waits for the disk.
+ * The files are written as text or, to save space and time, as binary 
+ * records that LogReader converts to text. They are rotated by size and age.
+ * The slow requests go, with the time of each phase, to a third text file
+ * opened when the first one arrives. The accesses and errors are also told
+ * to the log sinks.
+ *
  * @author Ángel Miguélez Millos
  */
 public class LogHandler {
-		
-	private final String dateFormat = "dd/MM/yyyy HH:mm:ss zzz";
-	private final File accesses, errors;
-	
+
+	private final static int QUEUE_SIZE = 10000;
+	final static String DATE_FORMAT = "dd/MM/yyyy HH:mm:ss zzz";
+
+	private final RotatingLog accesses, errors;
+	private final File slowFile;
+	private final LogSettings settings;
+	private RotatingLog slow;  // null until a slow request is logged
+	private final BinaryLogEncoder accessEncoder, errorEncoder;  // null for text
+	private final ExecutorService compressor;
+	private final List<LogSink> sinks;
+
+	private final BlockingQueue<Record> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+	private final Thread writer;
+	private volatile boolean closed;
+
+	/**
+	 * Exit status of a connection waiting to be written.
+	 */
+	private static class Record {
+		private final boolean access;  // accesses or errors log
+		private final String requestLine;
+		private final InetAddress ip;
+		private final long date;
+		private final HttpCode code;
+		private final long size;
+		private final long duration;	// microseconds, -1 if not logged
+		private final String phases;	// time of each phase of a slow request, null for the other logs
+
+		private Record(boolean access, String requestLine, InetAddress ip, long date, HttpCode code,
+				long size, long duration, String phases) {
+			this.access = access;
+			this.requestLine = requestLine;
+			this.ip = ip;
+			this.date = date;
+			this.code = code;
+			this.size = size;
+			this.duration = duration;
+			this.phases = phases;
+		}
+	}
+
 	/**
-	 * Creates a new LogHandler.
-	 * 
+	 * Creates a new LogHandler and starts its writer thread. The log files are
+	 * created if they do not exist.
+	 *
 	 * @param path directory where log files are
 	 * @param accesses successful requests log filename
 	 * @param errors fail requests log filename
-	 * @throws FileNotFoundException If any of the log files does not exist
+	 * @param slow slow requests log filename, always text
+	 * @param settings format and rotation of the files
+	 * @param sinks told of each access and error after it is written
+	 * @throws FileNotFoundException If the log directory does not exist
+	 * @throws IOException If the log files cannot be opened
 	 */
-	public LogHandler(String path, String accesses, String errors) throws FileNotFoundException {
-		this.accesses = ServerUtils.getFile(path, accesses);
-		this.errors = ServerUtils.getFile(path, errors);
+	public LogHandler(String path, String accesses, String errors, String slow, LogSettings settings,
+			List<LogSink> sinks) throws IOException {
+		if (!new File(path).isDirectory())
+			throw new FileNotFoundException(path);
+
+		// Compress the rotated files in the background
+		compressor = Executors.newSingleThreadExecutor(r -> {
+			Thread t = new Thread(r, "log-compressor");
+			t.setDaemon(true);
+			return t;
+		});
 
-		if (this.accesses == null || this.errors == null)
-			throw new FileNotFoundException();
+		this.accesses = new RotatingLog(new File(path, accesses), settings, compressor);
+		this.errors = new RotatingLog(new File(path, errors), settings, compressor);
+		this.slowFile = new File(path, slow);
+		this.settings = settings;
+		this.sinks = sinks;
+
+		// A binary file starts with a header, also when a run appends to it
+		if (settings.isBinary()) {
+			accessEncoder = new BinaryLogEncoder();
+			errorEncoder = new BinaryLogEncoder();
+			accessEncoder.start(this.accesses);
+			errorEncoder.start(this.errors);
+		} else {
+			accessEncoder = null;
+			errorEncoder = null;
+		}
+
+		writer = new Thread(this::write, "log-writer");
+		writer.start();
 	}
-	
+
 	/**
-	 * Writes the exit status of a connection into a log file.
-	 * 
+	 * Queues the exit status of a connection to be written into a log file.
+	 *
 	 * @param requestLine client request line
 	 * @param ip client ip
 	 * @param date date of response
 	 * @param codeHttp code exit value
-	 * @param f file sent
-	 * @param message message sent
-	 * @throws IOException If an I/O error occurs when opening or writing into
-	 * the log files.
+	 * @param size length of the body sent
+	 * @param duration microseconds taken by the request, -1 to not log it
+	 * @throws IOException If the log handler is closed
 	 */
 	public void addLog(String requestLine, InetAddress ip, Date date,
-			HttpCode codeHttp, File f, String message) throws IOException {
-		
-		File logFile;
+			HttpCode codeHttp, long size, long duration) throws IOException {
+
 		int code = codeHttp.getCode();
-		
-		// Choose the log file to update
-		if (code >= 200 && code < 400)
-			logFile = accesses;
-		else
-			logFile = errors;
-		
-		// Seek to the end of the file
-		RandomAccessFile fw = new RandomAccessFile(logFile, "rwd");
-		fw.seek(logFile.length());
-		
+
+		// No body sent
+		if (requestLine.startsWith("HEAD ") || code == 304)
+			size = 0;
+
+		put(new Record(code >= 200 && code < 400, requestLine, ip, date.getTime(), codeHttp, size, 
+				duration, null));
+	}
+
+	/**
+	 * Queues a slow request to be written into the slow requests log.
+	 *
+	 * @param requestLine client request line
+	 * @param ip client ip
+	 * @param date date of response
+	 * @param codeHttp code exit value
+	 * @param duration microseconds taken by the request
+	 * @param phases time of each phase, as in the Server-Timing header
+	 * @throws IOException If the log handler is closed
+	 */
+	public void addSlow(String requestLine, InetAddress ip, Date date, HttpCode codeHttp, 
+			long duration, String phases) throws IOException {
+		put(new Record(false, requestLine, ip, date.getTime(), codeHttp, 0, duration, phases));
+	}
+
+	/**
+	 * Queues a record, waiting if the writer is behind. The queue bounds the
+	 * memory used.
+	 *
+	 * @param r record to queue
+	 * @throws IOException If the log handler is closed
+	 */
+	private void put(Record r) throws IOException {
+		if (closed)
+			throw new IOException("Log handler closed");
+
+		try {
+			queue.put(r);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while queuing the log record");
+		}
+	}
+
+	/**
+	 * Gets the number of records waiting to be written.
+	 *
+	 * @return the number of queued records
+	 */
+	public int getQueueSize() { return queue.size(); }
+
+	/**
+	 * Stops accepting records, writes the queued ones, closes the files and 
+	 * waits for the compression of the rotated ones.
+	 *
+	 * @throws InterruptedException If interrupted while waiting for the writer
+	 */
+	public void close() throws InterruptedException {
+		closed = true;
+		writer.interrupt();
+		writer.join();
+
+		compressor.shutdown();
+		compressor.awaitTermination(10, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Formats the exit status of a connection as text.
+	 *
+	 * @param fw text where the record is appended
+	 * @param requestLine client request line
+	 * @param ip client ip
+	 * @param date date of response, formatted
+	 * @param code code exit value
+	 * @param size length of the body sent
+	 * @param duration microseconds taken by the request, -1 if not logged
+	 */
+	static void formatText(StringBuilder fw, String requestLine, String ip, String date, int code,
+			long size, long duration) {
+
 		// Write the general info
-		fw.writeBytes("Request=" + requestLine + '\n');
-		fw.writeBytes("IP=" + ip.toString().split("/")[1] + '\n');
-		fw.writeBytes("Date=" + ServerUtils.formatDate(date, dateFormat) + '\n');
-		
+		fw.append("Request=").append(requestLine).append('\n');
+		fw.append("IP=").append(ip).append('\n');
+		fw.append("Date=").append(date).append('\n');
+
 		// Write into the acceses log file
 		if (code >= 200 && code < 400) {
-			fw.writeBytes("Code=" + code + '\n');
-			fw.writeBytes("Size=");
-			
-			String method = requestLine.split(" ")[0];
-			if (method.equals("HEAD") || code == 304)  // no body sent
-				fw.writeBytes("0" + '\n');
-			else if (f != null)  // file sent
-				fw.writeBytes(String.valueOf(f.length()) + '\n');
-			else if (message != null)  // html message
-				fw.writeBytes(String.valueOf(message.length()) + '\n');
-			
+			fw.append("Code=").append(code).append('\n');
+			fw.append("Size=").append(size).append('\n');
+
 		// Write into the error file
-		} else if (code >= 400)
-			fw.writeBytes("Error=" + codeHttp.getMessage() + '\n');
-		
-		fw.writeBytes("\n");
-		fw.close();
+		} else if (code >= 400) {
+			HttpCode c = HttpCode.fromCode(code);
+			fw.append("Error=").append(c == null ? String.valueOf(code) : c.getMessage()).append('\n');
+		}
+
+		// Milliseconds of the request
+		if (duration >= 0) {
+			fw.append("Duration=");
+			RequestTrace.appendMillis(fw, duration * 1000);
+			fw.append('\n');
+		}
+
+		fw.append("\n");
+	}
+
+	/**
+	 * Appends the queued records to their log files, flushing each time the
+	 * queue gets empty.
+	 */
+	private void write() {
+		SimpleDateFormat format = new SimpleDateFormat(DATE_FORMAT);
+		format.setTimeZone(TimeZone.getTimeZone("GMT"));
+		StringBuilder fw = new StringBuilder();
+
+		while (true) {
+			try {
+				Record r = queue.poll();
+
+				// Nothing to write, flush and wait for more records
+				if (r == null) {
+					accesses.flush();
+					errors.flush();
+					if (slow != null)
+						slow.flush();
+
+					if (closed)
+						break;
+
+					try {
+						r = queue.take();
+					} catch (InterruptedException e) {
+						continue;  // closed, write the remaining records
+					}
+				}
+
+				// Slow request, with its phases
+				if (r.phases != null) {
+					writeSlow(r, format, fw);
+					continue;
+				}
+
+				RotatingLog log = r.access ? accesses : errors;
+				BinaryLogEncoder encoder = r.access ? accessEncoder : errorEncoder;
+
+				// Start a new file when the current one is too big or old
+				if (log.rotateIfNeeded() && encoder != null)
+					encoder.start(log);
+
+				if (encoder != null)
+					encoder.encode(log, r.access, r.requestLine, r.ip.getAddress(), r.date,
+							r.code.getCode(), r.size, r.duration);
+				else {
+					fw.setLength(0);
+					formatText(fw, r.requestLine, r.ip.getHostAddress(), format.format(new Date(r.date)),
+							r.code.getCode(), r.size, r.duration);
+					byte[] b = fw.toString().getBytes(StandardCharsets.ISO_8859_1);
+					log.write(b, 0, b.length);
+				}
+
+				tell(r);
+
+			} catch (IOException | RuntimeException e) {
+				// Keep writing the next records, this is the only writer and
+				// the requests wait for it when the queue is full
+				System.out.println("Error writing the logs: " + e.getMessage());
+				e.printStackTrace();
+			}
+		}
+
+		try {
+			accesses.close();
+			errors.close();
+			if (slow != null)
+				slow.close();
+		} catch (IOException e) {
+			System.out.println("Error closing the logs: " + e.getMessage());
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Tells a record to the sinks. A failing sink does not stop the others.
+	 *
+	 * @param r access or error record
+	 */
+	private void tell(Record r) {
+		for (LogSink s : sinks) {
+			try {
+				s.log(r.requestLine, r.ip, new Date(r.date), r.code, r.size, r.duration);
+			} catch (RuntimeException e) {
+				System.out.println("Error: log sink failed: " + e.getMessage());
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Appends a slow request to its log, opening the file the first time.
+	 *
+	 * @param r slow request
+	 * @param format formats the date of the record
+	 * @param fw text of the record
+	 * @throws IOException If an I/O error occurs
+	 */
+	private void writeSlow(Record r, SimpleDateFormat format, StringBuilder fw) throws IOException {
+		if (slow == null)
+			slow = new RotatingLog(slowFile, settings, compressor);
+		slow.rotateIfNeeded();
+
+		fw.setLength(0);
+		fw.append("Request=").append(r.requestLine).append('\n');
+		fw.append("IP=").append(r.ip.getHostAddress()).append('\n');
+		fw.append("Date=").append(format.format(new Date(r.date))).append('\n');
+		fw.append("Code=").append(r.code.getCode()).append('\n');
+		fw.append("Duration=");
+		RequestTrace.appendMillis(fw, r.duration * 1000);
+		fw.append('\n');
+		fw.append("Phases=").append(r.phases).append("\n\n");
+
+		byte[] b = fw.toString().getBytes(StandardCharsets.ISO_8859_1);
+		slow.write(b, 0, b.length);
 	}
-	
 }
@@ -0,0 +1,287 @@
+package webserver;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reads binary log files and writes their records as text, the same as the 
+ * text log files, or counts them. The records can be filtered, the ones that
+ * do not match are skipped without formatting them. Gzipped files (.gz) are
+ * read too.
+ * 
+ * Usage: java webserver.LogReader [options] file...
+ * <ul>
+ * <li>-code N: records with the http code N</li>
+ * <li>-ip ADDRESS: records of a client</li>
+ * <li>-request TEXT: records whose request line contains the text</li>
+ * <li>-from DATE, -to DATE: records in [from, to), "dd/MM/yyyy HH:mm:ss" GMT</li>
+ * <li>-count: prints only the number of records</li>
+ * </ul>
+ *
+ * @author Ángel Miguélez Millos
+ */
+public class LogReader {
+
+	private final static String FILTER_DATE = "dd/MM/yyyy HH:mm:ss";
+	private final static int BUFFER_SIZE = 65536;
+
+	// filters, null or the extremes if not used
+	private Integer code;
+	private byte[] ip;
+	private String request;
+	private long from = Long.MIN_VALUE, to = Long.MAX_VALUE;
+
+	private boolean count;  // only count the records
+	private long matched;	// records that passed the filters
+
+	private final SimpleDateFormat format = new SimpleDateFormat(LogHandler.DATE_FORMAT);
+	private final StringBuilder fw = new StringBuilder();
+
+	/**
+	 * Creates a new LogReader without filters.
+	 */
+	public LogReader() {
+		format.setTimeZone(TimeZone.getTimeZone("GMT"));
+	}
+
+	/**
+	 * Reads the records of a binary log and writes the ones that pass the
+	 * filters as text. A header in the middle of the stream starts a new file,
+	 * so concatenated files can be read.
+	 * 
+	 * @param input binary log
+	 * @param out writer of the text records, not used when counting
+	 * @throws IOException If the log is corrupted or an I/O error occurs
+	 */
+	public void read(InputStream input, Writer out) throws IOException {
+		DataInputStream in = new DataInputStream(input);
+		List<String> requests = new ArrayList<>();	// request lines by id
+		BitSet requestMatch = new BitSet();			// ids whose request line passes the filter
+		long date = 0;
+		int type;
+
+		while ((type = in.read()) != -1) {
+			
+			// Header of a file
+			if (type == BinaryLogEncoder.MAGIC[0]) {
+				byte[] magic = new byte[BinaryLogEncoder.MAGIC.length];
+				magic[0] = (byte) type;
+				in.readFully(magic, 1, magic.length - 1);
+				if (!Arrays.equals(magic, BinaryLogEncoder.MAGIC))
+					throw new IOException("Unknown log format");
+
+				requests.clear();
+				requestMatch.clear();
+				date = 0;
+				continue;
+			}
+			
+			if (type < BinaryLogEncoder.ACCESS || type > BinaryLogEncoder.ERROR_TIMED)
+				throw new IOException("Corrupted log, unknown record type " + type);
+			boolean access = type == BinaryLogEncoder.ACCESS || type == BinaryLogEncoder.ACCESS_TIMED;
+			boolean timed = type == BinaryLogEncoder.ACCESS_TIMED || type == BinaryLogEncoder.ERROR_TIMED;
+
+			// Decode the record
+			long delta = readVarint(in);
+			date += (delta >>> 1) ^ -(delta & 1);
+
+			String requestLine;
+			boolean requestOk;
+			int ref = (int) readVarint(in);
+			if (ref == BinaryLogEncoder.NEW || ref == BinaryLogEncoder.LITERAL) {
+				requestLine = readString(in);
+				requestOk = request == null || requestLine.contains(request);
+				if (ref == BinaryLogEncoder.NEW) {
+					requestMatch.set(requests.size(), requestOk);
+					requests.add(requestLine);
+				}
+			} else {
+				int id = ref - BinaryLogEncoder.FIRST_ID;
+				if (id >= requests.size())
+					throw new IOException("Corrupted log, unknown request id " + id);
+				requestLine = requests.get(id);
+				requestOk = requestMatch.get(id);
+			}
+
+			byte[] address = new byte[in.readUnsignedByte()];
+			in.readFully(address);
+
+			int c = (int) readVarint(in);
+			long size = access ? readVarint(in) : 0;
+			long duration = timed ? readVarint(in) : -1;
+
+			// Filter it
+			if (!requestOk || (code != null && c != code) || (ip != null && !Arrays.equals(ip, address))
+					|| date < from || date >= to)
+				continue;
+
+			matched++;
+			if (count)
+				continue;
+
+			fw.setLength(0);
+			LogHandler.formatText(fw, requestLine, InetAddress.getByAddress(address).getHostAddress(),
+					format.format(new Date(date)), c, size, duration);
+			out.write(fw.toString());
+		}
+	}
+
+	/**
+	 * Gets the number of records that passed the filters.
+	 * 
+	 * @return the number of records
+	 */
+	public long getMatched() { return matched; }
+
+	/**
+	 * Reads an unsigned varint.
+	 * 
+	 * @param in stream to read from
+	 * @return the value
+	 * @throws IOException If the stream ends or an I/O error occurs
+	 */
+	private static long readVarint(InputStream in) throws IOException {
+		long v = 0;
+		
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = in.read();
+			if (b == -1)
+				throw new EOFException("Truncated record");
+
+			v |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return v;
+		}
+
+		throw new IOException("Corrupted log, varint too long");
+	}
+
+	/**
+	 * Reads a string, its length and ISO-8859-1 bytes.
+	 * 
+	 * @param in stream to read from
+	 * @return the string
+	 * @throws IOException If the stream ends or an I/O error occurs
+	 */
+	private static String readString(DataInputStream in) throws IOException {
+		long n = readVarint(in);
+		if (n > ServerUtils.MAX_HEADER)
+			throw new IOException("Corrupted log, string too long");
+
+		byte[] b = new byte[(int) n];
+		in.readFully(b);
+		return new String(b, StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * Prints how to use the reader and exits.
+	 */
+	private static void usage() {
+		System.out.println("Usage: java webserver.LogReader [-code N] [-ip ADDRESS] [-request TEXT] "
+				+ "[-from DATE] [-to DATE] [-count] file...");
+		System.out.println("DATE is \"" + FILTER_DATE + "\" GMT, the files can be gzipped (.gz)");
+		System.exit(1);
+	}
+
+	/**
+	 * Parses a date of a filter.
+	 * 
+	 * @param s date
+	 * @return the milliseconds of the date
+	 */
+	private static long parseDate(String s) {
+		Date d = ServerUtils.getDate(s, FILTER_DATE);
+		if (d == null)
+			usage();
+		return d.getTime();
+	}
+
+	/**
+	 * Main method.
+	 * 
+	 * @param args filters and binary log files
+	 */
+	public static void main(String[] args) {
+		LogReader reader = new LogReader();
+		List<String> files = new ArrayList<>();
+
+		// Parse the arguments
+		try {
+			for (int i = 0; i < args.length; i++) {
+				String a = args[i];
+				if (!a.startsWith("-")) {
+					files.add(a);
+					continue;
+				}
+				if (a.equals("-count")) {
+					reader.count = true;
+					continue;
+				}
+				if (i + 1 == args.length)
+					usage();
+				
+				String value = args[++i];
+				if (a.equals("-code"))
+					reader.code = Integer.parseInt(value);
+				else if (a.equals("-ip"))
+					reader.ip = InetAddress.getByName(value).getAddress();
+				else if (a.equals("-request"))
+					reader.request = value;
+				else if (a.equals("-from"))
+					reader.from = parseDate(value);
+				else if (a.equals("-to"))
+					reader.to = parseDate(value);
+				else
+					usage();
+			}
+		} catch (IOException | NumberFormatException e) {
+			System.out.println("Error: invalid filter: " + e.getMessage());
+			usage();
+		}
+
+		if (files.isEmpty())
+			usage();
+
+		// Read the files in order
+		Writer out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.ISO_8859_1), 
+				BUFFER_SIZE);
+		try {
+			for (String f : files) {
+				InputStream in = new BufferedInputStream(new FileInputStream(f), BUFFER_SIZE);
+				if (f.endsWith(".gz"))
+					in = new GZIPInputStream(in, BUFFER_SIZE);
+
+				try {
+					reader.read(in, out);
+				} finally {
+					in.close();
+				}
+			}
+
+			if (reader.count)
+				out.write(reader.getMatched() + "\n");
+			out.flush();
+
+		} catch (IOException e) {
+			System.out.println("Error reading the logs: " + e.getMessage());
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,66 @@
+package webserver;
+
+/**
+ * Format and rotation of the log files.
+ * 
+ * @author Ángel Miguélez Millos
+ */
+public class LogSettings {
+
+	private final boolean binary;	// binary records instead of text
+	private final long maxSize;		// bytes of a file before rotating it, 0 disables it
+	private final long interval;	// ms of a file before rotating it, 0 disables it
+	private final int keep;			// rotated files kept, 0 keeps all of them
+	private final boolean compress;	// gzip the rotated files
+
+	/**
+	 * Creates a new LogSettings.
+	 * 
+	 * @param binary true to write binary records, false to write text
+	 * @param maxSize bytes of a file before rotating it, 0 to disable it
+	 * @param interval milliseconds of a file before rotating it, 0 to disable it
+	 * @param keep rotated files kept of each log, 0 to keep all of them
+	 * @param compress true to gzip the rotated files
+	 * @throws IllegalArgumentException If any of the values is negative
+	 */
+	public LogSettings(boolean binary, long maxSize, long interval, int keep, boolean compress) {
+		if (maxSize < 0 || interval < 0 || keep < 0)
+			throw new IllegalArgumentException("Invalid log settings");
+
+		this.binary = binary;
+		this.maxSize = maxSize;
+		this.interval = interval;
+		this.keep = keep;
+		this.compress = compress;
+	}
+
+	/**
+	 * Gets if the records are binary.
+	 * @return true if binary, false if text
+	 */
+	public boolean isBinary() { return binary; }
+
+	/**
+	 * Gets the size of a file before rotating it.
+	 * @return the max size in bytes, 0 if disabled
+	 */
+	public long getMaxSize() { return maxSize; }
+
+	/**
+	 * Gets the age of a file before rotating it.
+	 * @return the interval in milliseconds, 0 if disabled
+	 */
+	public long getInterval() { return interval; }
+
+	/**
+	 * Gets the number of rotated files kept of each log.
+	 * @return the rotated files kept, 0 if all of them
+	 */
+	public int getKeep() { return keep; }
+
+	/**
+	 * Gets if the rotated files are compressed.
+	 * @return true if they are gzipped
+	 */
+	public boolean isCompress() { return compress; }
+}
@@ -0,0 +1,27 @@
+package webserver;
+
+import java.net.InetAddress;
+import java.util.Date;
+
+/**
+ * Receives the exit status of the requests besides the log files, i.e. to
+ * collect them in memory when the server is embedded. It is called by the
+ * writer thread of the log handler, so a slow sink delays the logs but never
+ * a request.
+ *
+ * @author Ángel Miguélez Millos
+ */
+public interface LogSink {
+
+	/**
+	 * Tells the exit status of a request.
+	 *
+	 * @param requestLine client request line
+	 * @param ip client ip
+	 * @param date date of response
+	 * @param code code exit value
+	 * @param size length of the body sent
+	 * @param duration microseconds taken by the request, -1 if not logged
+	 */
+	void log(String requestLine, InetAddress ip, Date date, HttpCode code, long size, long duration);
+}
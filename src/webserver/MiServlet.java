@@ -2,7 +2,7 @@ package webserver;
 
 import java.util.Map;
 
-public class MiServlet implements MiniServlet {
+public class MiServlet implements CacheableServlet {
 	
 	/* Para el correcto funcionamiento es necesario un constructor 
 	 * sin parámetros y público */
@@ -18,6 +18,16 @@ public class MiServlet implements MiniServlet {
 		
 		return printHeader() + printBody(nombreCompleto) + printEnd();
 	}	
+	
+	/**
+	 * Gets how long a greeting stays cached. It only depends on the parameters.
+	 *
+	 * @return the time to live in milliseconds
+	 */
+	@Override
+	public long getCacheTtl() {
+		return 60000;
+	}
 
 	private String printHeader() {
 		return "<html><head> <title>Greetings</title> </head> ";
@@ -1,48 +1,233 @@
 package webserver;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
+import java.nio.file.PathMatcher;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Implements MiniServlet creating an html message containing all the entries under
- * a directory with a specific name and extension.
- * 
+ * a directory with a specific name and extension, or matching a glob or regex
+ * pattern. The directories are searched in parallel and the entries are sent
+ * as they are found.
+ *
+ * The parameters are: nombre and extension, or patron ("glob:*.png",
+ * "regex:.*[.]png", a glob without prefix); max, the max number of results;
+ * depth, the max depth under the root; timeout, milliseconds the search can run.
+ *
  * @author Ángel Miguélez Millos
  */
-public class MiServletSearch implements MiniServlet {
-	
-	private String nombre, extension, raiz;
-	
+public class MiServletSearch implements CacheableServlet, StreamingServlet {
+
+	private final static int DEFAULT_RESULTS = 1000;
+	private final static int MAX_RESULTS = 10000;
+	private final static int SEARCH_TIMEOUT = 25000;  // ms, below the servlet timeout
+
+	// Shared by all the searches, its threads are daemon
+	private final static ForkJoinPool POOL = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+	/**
+	 * State of a search, shared by the tasks walking its directories. The
+	 * servlet keeps nothing of a request, so an instance can serve several
+	 * at the same time.
+	 */
+	private static class Search {
+		private final Path root;			// directory searched
+		private final String exact;			// name and extension searched
+		private final String name;			// name searched, with any extension
+		private final PathMatcher matcher;	// pattern searched, null to search by name
+		private final int maxResults, maxDepth;
+
+		private final BlockingQueue<Path> found = new LinkedBlockingQueue<>();
+		private final Queue<Path> sameName = new ConcurrentLinkedQueue<>();
+		private final AtomicInteger foundCount = new AtomicInteger();
+		private final AtomicInteger sameNameCount = new AtomicInteger();
+		private volatile boolean stopped;
+
+		private Search(Path root, String exact, String name, PathMatcher matcher, int maxResults, int maxDepth) {
+			this.root = root;
+			this.exact = exact;
+			this.name = name;
+			this.matcher = matcher;
+			this.maxResults = maxResults;
+			this.maxDepth = maxDepth;
+		}
+
+		/**
+		 * Checks an entry, stopping the search when the max results are found.
+		 *
+		 * @param p path of the entry
+		 */
+		private void match(Path p) {
+			Path filename = p.getFileName();
+			String s = filename.toString();
+
+			// Entry found
+			if (matcher != null ? matcher.matches(filename) : s.equals(exact)) {
+				int n = foundCount.incrementAndGet();
+				if (n <= maxResults)
+					found.add(p);
+				if (n >= maxResults)
+					stopped = true;
+
+			// Entry with the same name, only needed if none is found
+			} else if (matcher == null && foundCount.get() == 0) {
+				int dot = s.lastIndexOf('.');
+				if (dot >= 0 && dot < s.length() - 1)
+					s = s.substring(0, dot);
+
+				if (s.equals(name) && sameNameCount.incrementAndGet() <= maxResults)
+					sameName.add(p);
+			}
+		}
+	}
+
+	/**
+	 * Searches a directory, forking a task for each subdirectory.
+	 */
+	private static class DirectoryTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final Search search;
+		private final Path dir;
+		private final int depth;  // depth of the directory under the root
+
+		private DirectoryTask(Search search, Path dir, int depth) {
+			this.search = search;
+			this.dir = dir;
+			this.depth = depth;
+		}
+
+		@Override
+		protected void compute() {
+			List<DirectoryTask> subtasks = new ArrayList<>();
+
+			try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+				for (Path p : entries) {
+					if (search.stopped)
+						break;
+
+					search.match(p);
+
+					// Links are not followed, so there are no loops
+					if (depth + 1 < search.maxDepth && Files.isDirectory(p, LinkOption.NOFOLLOW_LINKS)) {
+						DirectoryTask t = new DirectoryTask(search, p, depth + 1);
+						t.fork();
+						subtasks.add(t);
+					}
+				}
+
+			} catch (IOException | DirectoryIteratorException e) {
+				System.out.println("Error searching " + dir + ": " + e.getMessage());  // skip it
+			}
+
+			for (DirectoryTask t : subtasks)
+				t.join();
+		}
+	}
+
 	/**
 	 * Creates a new MiServletSearch.
 	 */
 	public MiServletSearch() {
-		
+
 	}
-	
+
 	/**
-	 * Gets the html message.
-	 * 
+	 * Writes the html message as the entries are found.
+	 *
 	 * @param parameters dynamic arguments
-	 * @return the html dynamic message
+	 * @param out writer of the html dynamic message
+	 * @throws IllegalArgumentException If a parameter is not valid
+	 * @throws InterruptedException If the request expires
+	 * @throws IOException If the message cannot be sent
 	 */
 	@Override
-	public String doGet (Map<String, String> parameters){
-		nombre = parameters.get("nombre");
-		extension = parameters.get("extension");
-		raiz = parameters.get("root");
+	public void doGet(Map<String, String> parameters, Writer out) throws InterruptedException, IOException {
+		String nombre = parameters.get("nombre");
+		String extension = parameters.get("extension") == null ? "" : parameters.get("extension");
 
-		return printHeader() + printBody() + printEnd();
-	}	
+		// Check the parameters before sending anything
+		PathMatcher matcher = null;
+		String patron = parameters.get("patron");
+		if (patron != null && !patron.isEmpty())
+			matcher = FileSystems.getDefault().getPathMatcher(patron.contains(":") ? patron : "glob:" + patron);
+		else if (nombre == null || nombre.isEmpty())
+			throw new IllegalArgumentException("Missing nombre or patron");
+
+		Search search = new Search(Paths.get(parameters.get(ROOT)), nombre + extension, nombre, matcher,
+				getInt(parameters, "max", DEFAULT_RESULTS, MAX_RESULTS),
+				getInt(parameters, "depth", Integer.MAX_VALUE, Integer.MAX_VALUE));
+		long timeout = getInt(parameters, "timeout", SEARCH_TIMEOUT, SEARCH_TIMEOUT);
+
+		out.write(printHeader());
+		out.write("<body>");
+		boolean timedOut = printFound(search, timeout, out);
+
+		// Files with the same name found
+		if (search.foundCount.get() == 0 && !search.sameName.isEmpty()) {
+			out.write("<h1> Archivos encontrados con el mismo nombre:</h1><ul>");
+			for (Path p : search.sameName)
+				out.write(createLink(search.root, p));
+			out.write("</ul>");
+
+		// File not found
+		} else if (search.foundCount.get() == 0)
+			out.write("<h1> Archivo no encontrado</h1>");
+
+		// Search cut
+		if (timedOut)
+			out.write("<p> Busqueda interrumpida tras " + timeout + " ms</p>");
+		else if (search.foundCount.get() >= search.maxResults)
+			out.write("<p> Mostrando los primeros " + search.maxResults + " resultados</p>");
+
+		out.write("</body>");
+		out.write(printEnd());
+	}
+
+	/**
+	 * Gets how long a search stays cached. It is short since the files can change.
+	 *
+	 * @return the time to live in milliseconds
+	 */
+	@Override
+	public long getCacheTtl() {
+		return 5000;
+	}
+
+	/**
+	 * Gets how long a search can run. It is longer than the default since a
+	 * big resources directory takes a while to walk.
+	 *
+	 * @return the timeout in milliseconds
+	 */
+	@Override
+	public long getTimeout() {
+		return 30000;
+	}
 
 	/**
 	 * Gets the html header.
-	 * 
+	 *
 	 * @return html header
 	 */
 	private String printHeader() {
@@ -50,85 +235,112 @@ public class MiServletSearch implements MiniServlet {
 	}
 
 	/**
-	 * Goes all under a path finding files with a name and extension and creates
-	 * an unordered list. If none matched, gets the files only with the same name.
-	 * 
-	 * @return html message with the filename and the relative path
+	 * Walks all under the root in the pool and writes a list with the entries
+	 * found, as they are found. The list is flushed each time the search has
+	 * no new entries.
+	 *
+	 * @param search search to run
+	 * @param timeout milliseconds the search can run
+	 * @param out writer of the html dynamic message
+	 * @return true if the search was cut by the timeout
+	 * @throws InterruptedException If the request expires
+	 * @throws IOException If the message cannot be sent
 	 */
-	private String printBody() {
-		StringBuilder out = new StringBuilder("<body>");
-		List<Path> found = new ArrayList<>();
-		List<Path> sameName = new ArrayList<>();
-		
+	private boolean printFound(Search search, long timeout, Writer out) throws InterruptedException, IOException {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+		ForkJoinTask<Void> task = POOL.submit(new DirectoryTask(search, search.root, 0));
+		boolean timedOut = false, written = false;
+
 		try {
-			// Walk recursively down the dirs searching for the file requested
-			Files.walk(Paths.get(raiz))
-				.filter(p -> p.getFileName().toString().equals(nombre+extension))
-				.forEach(found::add);
-			
-			// Walk recursively down the dirs searching for the file with the same name
-			if (found.isEmpty()) {
-				Files.walk(Paths.get(raiz))
-					.filter(p -> p.getFileName().toString().replaceFirst("[.][^.]+$", "").equals(nombre))
-					.forEach(sameName::add);
+			while (true) {
+				Path p = search.found.poll(50, TimeUnit.MILLISECONDS);
+
+				// Entry found
+				if (p != null) {
+					if (!written)
+						out.write("<h1> Archivos encontrados:</h1><ul>");
+					out.write(createLink(search.root, p));
+					written = true;
+					continue;
+				}
+
+				// No new entries, send the ones written
+				out.flush();
+
+				if (task.isDone() && search.found.isEmpty())
+					break;
+				if (System.nanoTime() > deadline) {
+					timedOut = true;
+					break;
+				}
 			}
-				
-		} catch (IOException e) {
-			System.out.println("Error: " + e.getMessage());
-			e.printStackTrace();
-			return "";
+
+		} finally {
+			search.stopped = true;
+			task.cancel(false);
 		}
-		
-		// File found
-		if (!found.isEmpty()) {
-			out.append("<h1> Archivos encontrados:</h1>");
-			out.append(createLinks(found));
-		
-		// Files with the same name found
-		} else if (sameName.size() > 0) {
-			out.append("<h1> Archivos encontrados con el mismo nombre:</h1>");
-			out.append(createLinks(sameName));
-		
-		// File not found
-		} else
-			out.append("<h1> Archivo no encontrado</h1>");			
-		
-		out.append("</body>");
-		
-		return out.toString();
+
+		// Entries found before stopping
+		Path p;
+		while ((p = search.found.poll()) != null) {
+			if (!written)
+				out.write("<h1> Archivos encontrados:</h1><ul>");
+			out.write(createLink(search.root, p));
+			written = true;
+		}
+
+		if (written)
+			out.write("</ul>");
+
+		return timedOut;
 	}
 
 	/**
 	 * Closes the html message.
-	 * 
+	 *
 	 * @return html message close
 	 */
 	private String printEnd() {
 		return "</html>";
 	}
-	
+
+	/**
+	 * Gets the relative path of an entry and creates an html list item with a
+	 * link to it.
+	 *
+	 * @param root directory searched
+	 * @param entry path to the entry
+	 * @return html list item linking the entry
+	 */
+	private String createLink(Path root, Path entry) {
+
+		// Get the relative path
+		String relativePath = root.relativize(entry).toString().replace(File.separatorChar, '/');
+		relativePath = relativePath.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;")
+				.replace("\"", "&quot;");
+
+		// Link the file
+		return "<li><a href=\"" + relativePath + "\">" + relativePath + "</a></li>";
+	}
+
 	/**
-	 * Gets the relative path of the entries and creates an html list with a link
-	 * to each one.
-	 * 
-	 * @param paths paths to the entries
-	 * @return html list of links to the entries
+	 * Gets a positive integer parameter.
+	 *
+	 * @param parameters dynamic arguments
+	 * @param name name of the parameter
+	 * @param def value if the parameter is missing
+	 * @param max max value, a bigger one is lowered to it
+	 * @return the value
+	 * @throws IllegalArgumentException If the value is not a positive integer
 	 */
-	private String createLinks(List<Path> paths) {
-		StringBuilder out = new StringBuilder();
-	
-		out.append("<ul>");
-		for (Path entry : paths) {
-				
-			// Get the relative path
-			String relativePath = entry.toString().split(raiz)[1];
-				
-			// Link the file
-			out.append("<li><a href=\"").append(relativePath).append("\">")
-				.append(relativePath).append("</a></li>");
-		}
-		out.append("</ul>");
-		
-		return out.toString();
+	private static int getInt(Map<String, String> parameters, String name, int def, int max) {
+		String value = parameters.get(name);
+		if (value == null || value.isEmpty())
+			return def;
+
+		int n = Integer.parseInt(value);
+		if (n <= 0)
+			throw new IllegalArgumentException("Invalid " + name + ": " + value);
+		return Math.min(n, max);
 	}
 }
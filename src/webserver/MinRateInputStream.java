@@ -0,0 +1,73 @@
+package webserver;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+
+/**
+ * Input stream that fails when the client sends data slower than a minimum rate,
+ * protecting the server from clients that trickle a request byte by byte.
+ * 
+ * @author Ángel Miguélez Millos
+ */
+public class MinRateInputStream extends FilterInputStream {
+
+	private final static long GRACE = 1000;  // ms before the rate is checked
+
+	private final int minRate;  // bytes per second
+	private final long start;
+	private long count;
+	private boolean disabled;
+	
+	/**
+	 * Creates a new MinRateInputStream.
+	 * 
+	 * @param in stream to read from
+	 * @param minRate min bytes per second, 0 disables the check
+	 */
+	public MinRateInputStream(InputStream in, int minRate) {
+		super(in);
+		this.minRate = minRate;
+		this.start = System.currentTimeMillis();
+	}
+	
+	@Override
+	public int read() throws IOException {
+		int b = super.read();
+		if (b != -1) update(1);
+		return b;
+	}
+	
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		int n = super.read(b, off, len);
+		if (n > 0) update(n);
+		return n;
+	}
+
+	/**
+	 * Stops checking the rate, i.e. for a connection that stays open between 
+	 * requests.
+	 */
+	public void disable() {
+		disabled = true;
+	}
+	
+	/**
+	 * Counts the bytes read and checks the rate once the grace period is over.
+	 * 
+	 * @param n bytes read
+	 * @throws SocketTimeoutException If the rate is under the minimum
+	 */
+	private void update(int n) throws SocketTimeoutException {
+		count += n;
+		
+		if (minRate == 0 || disabled)
+			return;
+		
+		long elapsed = System.currentTimeMillis() - start;
+		if (elapsed > GRACE && count * 1000 / elapsed < minRate)
+			throw new SocketTimeoutException("Client data rate under " + minRate + " bytes/s");
+	}
+}
@@ -1,10 +1,40 @@
 package webserver;
 
+import java.io.InputStream;
 import java.util.Map;
 
 
 public interface MiniServlet {
 	
+	/**
+	 * Parameter with the resources directory of the host, set by the server 
+	 * on every request in place of any value sent by the client.
+	 */
+	public final static String ROOT = "root";
+	
 	public String doGet (Map<String, String> parameters) throws Exception;
+	
+	/**
+	 * Gets the response to a POST. The parameters contain the query string and,
+	 * if the body is a url-encoded form, its fields. By default it answers as doGet.
+	 * 
+	 * @param parameters query and form parameters
+	 * @param body stream of the request body, already read from the client
+	 * @return the html dynamic message
+	 * @throws Exception If the response cannot be created
+	 */
+	public default String doPost (Map<String, String> parameters, InputStream body) throws Exception {
+		return doGet(parameters);
+	}
+	
+	/**
+	 * Gets how long a request can run before it is answered with a timeout. The
+	 * servlet is interrupted then, so a long loop should check it.
+	 * 
+	 * @return the timeout in milliseconds, 0 to use the server SERVLET_TIMEOUT
+	 */
+	public default long getTimeout() {
+		return 0;
+	}
 
 }
@@ -0,0 +1,171 @@
+package webserver;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Map of request parameters backed by two arrays. A request has only a few
+ * parameters, so a linear search is faster than hashing, and the maps are
+ * pooled to avoid creating one per request. Repeated keys are kept in order:
+ * get returns the first value and getAll all of them.
+ *
+ * A map must not be used after being released, so servlets must not keep it.
+ *
+ * @author Ángel Miguélez Millos
+ */
+public class ParameterMap extends AbstractMap<String, String> {
+
+	private final static int POOL_SIZE = 256;
+	private final static Queue<ParameterMap> POOL = new ConcurrentLinkedQueue<>();
+	private final static AtomicInteger POOLED = new AtomicInteger();
+
+	private String[] keys = new String[8];
+	private String[] values = new String[8];
+	private int size;
+
+	/**
+	 * Gets an empty map from the pool, or a new one if the pool is empty.
+	 *
+	 * @return an empty map
+	 */
+	public static ParameterMap acquire() {
+		ParameterMap m = POOL.poll();
+		if (m == null)
+			return new ParameterMap();
+
+		POOLED.decrementAndGet();
+		return m;
+	}
+
+	/**
+	 * Clears a map and returns it to the pool.
+	 *
+	 * @param m map to release
+	 */
+	public static void release(ParameterMap m) {
+		m.clear();
+		if (POOLED.incrementAndGet() <= POOL_SIZE)
+			POOL.offer(m);
+		else
+			POOLED.decrementAndGet();
+	}
+
+	/**
+	 * Appends a value to a key, keeping the previous values.
+	 *
+	 * @param key parameter name
+	 * @param value parameter value
+	 */
+	public void add(String key, String value) {
+		if (size == keys.length) {
+			keys = Arrays.copyOf(keys, size * 2);
+			values = Arrays.copyOf(values, size * 2);
+		}
+
+		keys[size] = key;
+		values[size] = value;
+		size++;
+	}
+
+	/**
+	 * Gets all the values of a key, in the order they were added.
+	 *
+	 * @param key parameter name
+	 * @return the values, empty if the key does not exist
+	 */
+	public List<String> getAll(String key) {
+		List<String> out = new ArrayList<>(1);
+		for (int i = 0; i < size; i++)
+			if (keys[i].equals(key))
+				out.add(values[i]);
+		return out;
+	}
+
+	@Override
+	public String get(Object key) {
+		int i = indexOf(key);
+		return i == -1 ? null : values[i];
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return indexOf(key) != -1;
+	}
+
+	/**
+	 * Replaces the first value of a key, or adds it if it does not exist.
+	 */
+	@Override
+	public String put(String key, String value) {
+		int i = indexOf(key);
+		if (i == -1) {
+			add(key, value);
+			return null;
+		}
+
+		String old = values[i];
+		values[i] = value;
+		return old;
+	}
+
+	@Override
+	public int size() { return size; }
+
+	@Override
+	public void clear() {
+		Arrays.fill(keys, 0, size, null);
+		Arrays.fill(values, 0, size, null);
+		size = 0;
+	}
+
+	@Override
+	public Set<Map.Entry<String, String>> entrySet() {
+		return new AbstractSet<Map.Entry<String, String>>() {
+
+			@Override
+			public Iterator<Map.Entry<String, String>> iterator() {
+				return new Iterator<Map.Entry<String, String>>() {
+					private int i;
+
+					@Override
+					public boolean hasNext() { return i < size; }
+
+					@Override
+					public Map.Entry<String, String> next() {
+						if (i >= size)
+							throw new NoSuchElementException();
+						Map.Entry<String, String> e = new SimpleImmutableEntry<>(keys[i], values[i]);
+						i++;
+						return e;
+					}
+				};
+			}
+
+			@Override
+			public int size() { return size; }
+		};
+	}
+
+	/**
+	 * Finds the first position of a key.
+	 *
+	 * @param key parameter name
+	 * @return the position or -1 if it does not exist
+	 */
+	private int indexOf(Object key) {
+		for (int i = 0; i < size; i++)
+			if (keys[i].equals(key))
+				return i;
+		return -1;
+	}
+}
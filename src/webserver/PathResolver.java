@@ -0,0 +1,376 @@
+package webserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Resolves request URIs to entries under the resources directory. The URI is
+ * percent-decoded and normalized once, confined to the root and the result,
+ * found or not, is cached until the watcher of the root reports a change
+ * under it. The listing of a directory is cached with its entry.
+ *
+ * @author Ángel Miguélez Millos
+ */
+public class PathResolver implements FileWatcher.Listener {
+
+	private final Path root;
+	private final Path realRoot;	// root with the symbolic links resolved
+	private final String index;	// default file of the directories
+	private final int maxEntries;
+
+	private final Map<String, Entry> cache = new ConcurrentHashMap<>();
+	private final AtomicLong generation = new AtomicLong();  // incremented on every change, avoids caching stale lookups
+	private final FileWatcher watcher;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * Kind of resource a URI resolves to.
+	 */
+	public enum Kind {
+		FILE,		// regular file
+		INDEX,		// directory with a default file
+		LISTING,	// directory without a default file
+		NOT_FOUND
+	}
+
+	/**
+	 * Resolved URI with the metadata of its file, read once when resolved.
+	 */
+	public static class Entry {
+
+		private final Kind kind;
+		private final Path path;			// resolved path, the directory if it is an index
+		private final String relative;		// decoded path relative to the root
+		private final File file;			// file to send, null for a listing or not found
+		private final long lastModified;
+		private final long length;
+		private final String type;			// MIME type
+		private volatile String listing;	// html index of a directory, created when first sent
+
+		private Entry(Kind kind, Path path, String relative, File file) {
+			this.kind = kind;
+			this.path = path;
+			this.relative = relative;
+			this.file = file;
+
+			if (file != null) {
+				lastModified = file.lastModified();
+				length = file.length();
+				type = probeType(file);
+			} else {
+				lastModified = 0;
+				length = 0;
+				type = null;
+			}
+		}
+
+		/**
+		 * Gets the kind of resource.
+		 * @return the kind of resource
+		 */
+		public Kind getKind() { return kind; }
+
+		/**
+		 * Gets the decoded path relative to the root, without the leading '/'.
+		 * @return the relative path
+		 */
+		public String getRelativePath() { return relative; }
+
+		/**
+		 * Gets the file to send.
+		 * @return the file or the default file of the directory, null if there is none
+		 */
+		public File getFile() { return file; }
+
+		/**
+		 * Gets the last modification date of the file.
+		 * @return milliseconds since the epoch
+		 */
+		public long getLastModified() { return lastModified; }
+
+		/**
+		 * Gets the length of the file.
+		 * @return the length in bytes
+		 */
+		public long getLength() { return length; }
+
+		/**
+		 * Gets the MIME type of the file.
+		 * @return the MIME type, null if unknown
+		 */
+		public String getType() { return type; }
+
+		/**
+		 * Gets the html index of the directory, created the first time.
+		 *
+		 * @param root root of the server resource directory
+		 * @return the listing of the directory
+		 */
+		public String getListing(String root) {
+			String l = listing;
+			if (l == null)
+				listing = l = ServerUtils.getHtmlIndex(root, relative);
+			return l;
+		}
+	}
+
+	/**
+	 * Creates a new PathResolver and subscribes it to the changes of the root.
+	 *
+	 * @param root path to the resources directory
+	 * @param index default file of the directories
+	 * @param maxEntries max number of cached URIs
+	 * @param watcher watcher of the root
+	 * @throws IOException If the root does not exist
+	 */
+	public PathResolver(String root, String index, int maxEntries, FileWatcher watcher) throws IOException {
+		this.root = Paths.get(root).toAbsolutePath().normalize();
+		this.realRoot = this.root.toRealPath();
+		this.index = index;
+		this.maxEntries = maxEntries;
+		this.watcher = watcher;
+
+		watcher.subscribe(this);
+	}
+
+	/**
+	 * Resolves a request URI. The query string, if any, is ignored, and the 
+	 * URIs naming the same path share the cached entry.
+	 *
+	 * @param uri request URI, starting with '/'
+	 * @return the entry the URI resolves to
+	 * @throws IllegalArgumentException If the URI is malformed or goes outside the root
+	 */
+	public Entry resolve(String uri) {
+		String relative = normalize(uri);
+		Entry e = cache.get(relative);
+		if (e != null) {
+			hits.incrementAndGet();
+			return e;
+		}
+
+		misses.incrementAndGet();
+		long gen = generation.get();
+		e = lookup(relative);
+
+		// Make room evicting some entries, the order of the map is arbitrary
+		if (cache.size() >= maxEntries) {
+			Iterator<String> it = cache.keySet().iterator();
+			for (int i = 0; i < maxEntries / 8 + 1 && it.hasNext(); i++) {
+				it.next();
+				it.remove();
+			}
+		}
+
+		// Something changed while looking up or before the entry was in the
+		// map, so the invalidation might have missed it
+		cache.put(relative, e);
+		if (gen != generation.get())
+			cache.remove(relative, e);
+		return e;
+	}
+
+	/**
+	 * Resolves the target file of an upload. It is not cached.
+	 *
+	 * @param uri request URI, starting with '/'
+	 * @return the path of the file, under the root
+	 * @throws IllegalArgumentException If the URI is malformed, names a directory
+	 * or goes outside the root
+	 */
+	public Path resolveTarget(String uri) {
+		String relative = normalize(uri);
+		if (relative.isEmpty() || relative.endsWith("/"))
+			throw new IllegalArgumentException("Not a file: " + uri);
+
+		// The parent must exist under the root
+		Path path = root.resolve(relative);
+		if (Files.isDirectory(path.getParent()) && !insideRoot(path.getParent()))
+			throw new IllegalArgumentException("URI outside the root: " + uri);
+
+		return path;
+	}
+
+	/**
+	 * Removes all the cached entries.
+	 */
+	public void clear() {
+		generation.incrementAndGet();
+		cache.clear();
+	}
+
+	/**
+	 * Drops the entries of the changed paths, of anything under them and the
+	 * listing or default file of their directories.
+	 *
+	 * @param paths absolute paths changed
+	 */
+	@Override
+	public void changed(Set<Path> paths) {
+		Set<Path> dirs = new HashSet<>();
+		for (Path p : paths)
+			dirs.add(p.getParent());
+
+		generation.incrementAndGet();
+		cache.values().removeIf(e -> dirs.contains(e.path) || under(e.path, paths));
+	}
+
+	/**
+	 * Removes all the cached entries, the changes are unknown.
+	 */
+	@Override
+	public void invalidateAll() {
+		clear();
+	}
+
+	/**
+	 * Gets the number of cached entries.
+	 *
+	 * @return the number of cached URIs
+	 */
+	public int size() { return cache.size(); }
+
+	/**
+	 * Gets the number of URIs resolved from the cache.
+	 *
+	 * @return the number of hits
+	 */
+	public long getHits() { return hits.get(); }
+
+	/**
+	 * Gets the number of URIs looked up in the file system.
+	 *
+	 * @return the number of misses
+	 */
+	public long getMisses() { return misses.get(); }
+
+	/**
+	 * Stops listening to the changes of the root.
+	 */
+	public void close() {
+		watcher.unsubscribe(this);
+	}
+
+	/**
+	 * Checks if a path or any of its parents under the root is in a set.
+	 *
+	 * @param path path under the root
+	 * @param paths set of paths
+	 * @return true if the path is under any of them
+	 */
+	private boolean under(Path path, Set<Path> paths) {
+		for (Path p = path; p != null && p.startsWith(root); p = p.getParent())
+			if (paths.contains(p))
+				return true;
+		return false;
+	}
+
+	/**
+	 * Checks a normalized path in the file system.
+	 *
+	 * @param relative decoded path relative to the root, as normalize() returns it
+	 * @return the entry the path resolves to
+	 */
+	private Entry lookup(String relative) {
+		boolean asDir = relative.isEmpty() || relative.endsWith("/");
+
+		Path path = root.resolve(relative);
+		File file = path.toFile();
+
+		// Not found, or a directory requested as a file
+		if (!file.exists() || (!asDir && file.isDirectory()) || !insideRoot(path))
+			return new Entry(Kind.NOT_FOUND, path, relative, null);
+
+		if (!file.isDirectory())
+			return new Entry(Kind.FILE, path, relative, file);
+
+		// Directory, send the default file if exists
+		File def = new File(file, index);
+		if (def.isFile())
+			return new Entry(Kind.INDEX, path, relative, def);
+
+		return new Entry(Kind.LISTING, path, relative, null);
+	}
+
+	/**
+	 * Checks that a path, once its symbolic links are resolved, is still under the root.
+	 *
+	 * @param path existing path
+	 * @return true if the path is under the root
+	 */
+	private boolean insideRoot(Path path) {
+		try {
+			return path.toRealPath().startsWith(realRoot);
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Percent-decodes the path of a URI and removes the '.' and '..' segments.
+	 *
+	 * @param uri request URI
+	 * @return the path relative to the root, ending with '/' if the URI does
+	 * @throws IllegalArgumentException If the URI is malformed or goes outside the root
+	 */
+	private static String normalize(String uri) {
+
+		// Drop the query string
+		int q = uri.indexOf('?');
+		String path = ServerUtils.decode(q == -1 ? uri : uri.substring(0, q), false);
+
+		if (!path.startsWith("/") || path.indexOf('\0') != -1 || path.indexOf('\\') != -1)
+			throw new IllegalArgumentException("Invalid URI: " + uri);
+
+		Deque<String> segments = new ArrayDeque<>();
+		for (String s : path.split("/")) {
+			if (s.isEmpty() || s.equals("."))
+				continue;
+
+			if (s.equals("..")) {
+				if (segments.isEmpty())
+					throw new IllegalArgumentException("URI outside the root: " + uri);
+				segments.removeLast();
+			} else
+				segments.addLast(s);
+		}
+
+		StringBuilder out = new StringBuilder();
+		for (String s : segments)
+			out.append(s).append('/');
+
+		// Keep the trailing '/' only if requested
+		boolean asDir = path.endsWith("/") || path.endsWith("/.") || path.endsWith("/..");
+		if (!asDir && out.length() > 0)
+			out.setLength(out.length() - 1);
+
+		return out.toString();
+	}
+
+	/**
+	 * Gets the MIME type of a file.
+	 *
+	 * @param f file
+	 * @return the MIME type, null if unknown
+	 */
+	private static String probeType(File f) {
+		try {
+			return Files.probeContentType(f.toPath());
+		} catch (IOException e) {
+			return null;
+		}
+	}
+}
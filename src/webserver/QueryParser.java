@@ -0,0 +1,48 @@
+package webserver;
+
+/**
+ * Parses query strings and url-encoded forms in a single pass.
+ *
+ * @author Ángel Miguélez Millos
+ */
+public class QueryParser {
+
+	private QueryParser() {
+
+	}
+
+	/**
+	 * Splits a query string into its parameters, percent-decoding the names and
+	 * values. Empty pairs are skipped and a name without '=' gets an empty value.
+	 *
+	 * @param query query string, without the '?'
+	 * @param out map where the parameters are added
+	 * @throws IllegalArgumentException If an escape sequence is malformed
+	 */
+	public static void parse(String query, ParameterMap out) {
+		int start = 0, eq = -1;
+		int n = query.length();
+
+		for (int i = 0; i <= n; i++) {
+			char c = (i == n ? '&' : query.charAt(i));
+
+			if (c == '=' && eq == -1)
+				eq = i;
+
+			else if (c == '&') {
+
+				// Skip empty pairs, i.e. "a=1&&b=2"
+				if (i > start) {
+					if (eq == -1)
+						out.add(ServerUtils.decode(query.substring(start, i), true), "");
+					else
+						out.add(ServerUtils.decode(query.substring(start, eq), true),
+								ServerUtils.decode(query.substring(eq + 1, i), true));
+				}
+
+				start = i + 1;
+				eq = -1;
+			}
+		}
+	}
+}
@@ -0,0 +1,167 @@
+package webserver;
+
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Time spent by a request in each phase of its processing, taken with
+ * System.nanoTime. A phase can be timed several times and its spans are
+ * added. The traces are pooled to avoid creating one per request.
+ *
+ * A trace is used by one thread at a time: the connection thread, the servlet
+ * completion and the responder hand it over through the response future.
+ *
+ * @author Ángel Miguélez Millos
+ */
+public class RequestTrace {
+
+	/**
+	 * Phases of a request, named as in the Server-Timing header.
+	 */
+	public enum Phase {
+		READ,		// header read from the client
+		RESOLVE,	// path, metadata and type of the file
+		BODY,		// request body read
+		SERVLET,	// servlet run, with its wait in the queue
+		SEND,		// response written
+		LOG;		// record queued into the log
+
+		private final String label = name().toLowerCase(Locale.ROOT);
+	}
+
+	private final static Phase[] PHASES = Phase.values();
+	private final static int POOL_SIZE = 256;
+	private final static Queue<RequestTrace> POOL = new ConcurrentLinkedQueue<>();
+	private final static AtomicInteger POOLED = new AtomicInteger();
+
+	private final long[] began = new long[PHASES.length];	// start of the span being timed
+	private final long[] spans = new long[PHASES.length];	// ns of each phase, -1 if not timed
+	private long start, end;	// ns of the request, end is 0 until finished
+
+	/**
+	 * Gets a trace from the pool, or a new one if the pool is empty, started now.
+	 *
+	 * @return a started trace
+	 */
+	public static RequestTrace acquire() {
+		RequestTrace t = POOL.poll();
+		if (t == null)
+			t = new RequestTrace();
+		else
+			POOLED.decrementAndGet();
+
+		t.reset(System.nanoTime());
+		return t;
+	}
+
+	/**
+	 * Returns a trace to the pool.
+	 *
+	 * @param t trace to release
+	 */
+	public static void release(RequestTrace t) {
+		if (POOLED.incrementAndGet() <= POOL_SIZE)
+			POOL.offer(t);
+		else
+			POOLED.decrementAndGet();
+	}
+
+	/**
+	 * Starts timing a phase.
+	 *
+	 * @param p phase
+	 */
+	public void begin(Phase p) {
+		began[p.ordinal()] = System.nanoTime();
+	}
+
+	/**
+	 * Stops timing a phase, adding the span since it began.
+	 *
+	 * @param p phase
+	 */
+	public void end(Phase p) {
+		int i = p.ordinal();
+		spans[i] = Math.max(spans[i], 0) + System.nanoTime() - began[i];
+	}
+
+	/**
+	 * Stops the trace, its duration does not grow anymore.
+	 */
+	public void finish() {
+		if (end == 0)
+			end = System.nanoTime();
+	}
+
+	/**
+	 * Gets the time of the request, until now if it did not finish.
+	 *
+	 * @return the duration in nanoseconds
+	 */
+	public long getDuration() {
+		return (end == 0 ? System.nanoTime() : end) - start;
+	}
+
+	/**
+	 * Gets the time spent in a phase.
+	 *
+	 * @param p phase
+	 * @return the time in nanoseconds, -1 if it was not timed
+	 */
+	public long getSpan(Phase p) {
+		return spans[p.ordinal()];
+	}
+
+	/**
+	 * Appends the timed phases and the duration so far in the format of the
+	 * Server-Timing header, i.e. read;dur=0.120, resolve;dur=0.045, total;dur=0.310
+	 *
+	 * @param sb text where the phases are appended
+	 */
+	public void appendTo(StringBuilder sb) {
+		for (Phase p : PHASES) {
+			long span = spans[p.ordinal()];
+			if (span < 0)
+				continue;
+
+			sb.append(p.label).append(";dur=");
+			appendMillis(sb, span);
+			sb.append(", ");
+		}
+
+		sb.append("total;dur=");
+		appendMillis(sb, getDuration());
+	}
+
+	/**
+	 * Appends nanoseconds as milliseconds with 3 decimals.
+	 *
+	 * @param sb text where the time is appended
+	 * @param nanos time in nanoseconds, not negative
+	 */
+	static void appendMillis(StringBuilder sb, long nanos) {
+		long micros = nanos / 1000;
+		long frac = micros % 1000;
+
+		sb.append(micros / 1000).append('.');
+		if (frac < 100)
+			sb.append('0');
+		if (frac < 10)
+			sb.append('0');
+		sb.append(frac);
+	}
+
+	/**
+	 * Clears the phases and starts the trace again.
+	 *
+	 * @param now start of the request, System.nanoTime
+	 */
+	private void reset(long now) {
+		for (int i = 0; i < spans.length; i++)
+			spans[i] = -1;
+		start = now;
+		end = 0;
+	}
+}
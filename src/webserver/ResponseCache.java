@@ -0,0 +1,244 @@
+package webserver;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Caches the encoded GET responses of the servlets that implement
+ * CacheableServlet. The entries are keyed by servlet and sorted parameters,
+ * expire after the servlet TTL and the least recently used ones are evicted.
+ * Concurrent misses of the same key run the servlet only once, the other
+ * requests wait for its response. The responses may depend on the files of 
+ * the host, as the searches, so any change under its root clears the cache.
+ *
+ * @author Ángel Miguélez Millos
+ */
+public class ResponseCache implements FileWatcher.Listener {
+
+	private final int maxEntries;
+
+	private final Map<String, Cached> entries;
+	private final Map<String, CompletableFuture<byte[]>> inFlight = new ConcurrentHashMap<>();
+	private final Map<String, Long> ttls = new ConcurrentHashMap<>();  // servlet class or route -> ttl
+	private long generation;  // incremented on every clear, guarded by entries
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong coalesced = new AtomicLong();
+
+	/**
+	 * Cached response.
+	 */
+	private static class Cached {
+		private final byte[] body;
+		private final long expires;  // currentTimeMillis of expiration
+
+		private Cached(byte[] body, long expires) {
+			this.body = body;
+			this.expires = expires;
+		}
+	}
+
+	/**
+	 * Creates a new ResponseCache.
+	 *
+	 * @param maxEntries max number of cached responses
+	 */
+	public ResponseCache(int maxEntries) {
+		this.maxEntries = maxEntries;
+
+		// Access ordered, so the eldest entry is the least recently used
+		entries = new LinkedHashMap<String, Cached>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Cached> eldest) {
+				return size() > ResponseCache.this.maxEntries;
+			}
+		};
+	}
+
+	/**
+	 * Gets the response of a servlet from the cache, or computes and caches it.
+	 * The response of a servlet that is not cacheable is computed every time.
+	 *
+	 * @param className name of the servlet class, or route of a servlet instance
+	 * @param instance servlet registered for the route, null if it is given by its class
+	 * @param parameters request parameters, part of the key
+	 * @param servlet starts computing the response on a miss
+	 * @return the response encoded as UTF-8, completed when it is available
+	 * @throws ReflectiveOperationException If the servlet class cannot be located or instantiated
+	 */
+	public CompletableFuture<byte[]> get(String className, MiniServlet instance, Map<String, String> parameters,
+			Supplier<CompletableFuture<byte[]>> servlet) throws ReflectiveOperationException {
+
+		long ttl = getTtl(className, instance);
+		if (ttl <= 0)
+			return servlet.get();
+
+		String key = key(className, parameters);
+
+		// Cached and not expired
+		Cached e;
+		synchronized (entries) {
+			e = entries.get(key);
+		}
+		if (e != null && e.expires > System.currentTimeMillis()) {
+			hits.incrementAndGet();
+			return CompletableFuture.completedFuture(e.body);
+		}
+
+		// Another request is computing it, wait for its response
+		CompletableFuture<byte[]> flight = new CompletableFuture<>();
+		CompletableFuture<byte[]> other = inFlight.putIfAbsent(key, flight);
+		if (other != null) {
+			coalesced.incrementAndGet();
+			return other;
+		}
+
+		// Compute it, a response started before a clear might be stale
+		misses.incrementAndGet();
+		long gen;
+		synchronized (entries) {
+			gen = generation;
+		}
+		servlet.get().whenComplete((body, ex) -> {
+			if (ex == null) {
+				synchronized (entries) {
+					if (gen == generation)
+						entries.put(key, new Cached(body, System.currentTimeMillis() + ttl));
+				}
+			}
+			inFlight.remove(key, flight);
+
+			if (ex == null)
+				flight.complete(body);
+			else
+				flight.completeExceptionally(ex);
+		});
+
+		return flight;
+	}
+
+	/**
+	 * Removes all the cached responses.
+	 */
+	public void clear() {
+		synchronized (entries) {
+			generation++;
+			entries.clear();
+		}
+	}
+
+	/**
+	 * Clears the cache when a file of the host changes.
+	 *
+	 * @param paths absolute paths changed
+	 */
+	@Override
+	public void changed(Set<Path> paths) {
+		clear();
+	}
+
+	/**
+	 * Clears the cache, the changes are unknown.
+	 */
+	@Override
+	public void invalidateAll() {
+		clear();
+	}
+
+	/**
+	 * Gets the number of cached responses.
+	 *
+	 * @return the number of entries
+	 */
+	public int size() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+
+	/**
+	 * Gets the number of requests served from the cache.
+	 *
+	 * @return the number of hits
+	 */
+	public long getHits() { return hits.get(); }
+
+	/**
+	 * Gets the number of requests that ran the servlet.
+	 *
+	 * @return the number of misses
+	 */
+	public long getMisses() { return misses.get(); }
+
+	/**
+	 * Gets the number of requests that waited for the response of another one.
+	 *
+	 * @return the number of coalesced requests
+	 */
+	public long getCoalesced() { return coalesced.get(); }
+
+	/**
+	 * Gets the time to live of the responses of a servlet, asking an instance
+	 * of it the first time.
+	 *
+	 * @param className name of the servlet class, or route of a servlet instance
+	 * @param instance servlet registered for the route, null if it is given by its class
+	 * @return the time to live in milliseconds, 0 if it is not cacheable
+	 * @throws ReflectiveOperationException If the class cannot be located or instantiated
+	 */
+	private long getTtl(String className, MiniServlet instance) throws ReflectiveOperationException {
+		Long ttl = ttls.get(className);
+		if (ttl != null)
+			return ttl;
+
+		MiniServlet servlet = ServerUtils.getServlet(className, instance);
+		ttl = servlet instanceof CacheableServlet ? ((CacheableServlet) servlet).getCacheTtl() : 0;
+		ttls.put(className, ttl);
+
+		return ttl;
+	}
+
+	/**
+	 * Creates the key of a response from the servlet and its parameters sorted,
+	 * so the same query in any order hits the same entry.
+	 *
+	 * @param className name of the servlet class
+	 * @param parameters request parameters
+	 * @return the key
+	 */
+	private static String key(String className, Map<String, String> parameters) {
+		List<String[]> pairs = new ArrayList<>(parameters.size());
+		for (Map.Entry<String, String> p : parameters.entrySet())
+			pairs.add(new String[] { escape(p.getKey()), escape(p.getValue()) });
+
+		// Stable sort by name, the values of a repeated name keep their order
+		pairs.sort((a, b) -> a[0].compareTo(b[0]));
+
+		StringBuilder key = new StringBuilder(className).append('?');
+		for (String[] p : pairs)
+			key.append(p[0]).append('=').append(p[1]).append('&');
+
+		return key.toString();
+	}
+
+	/**
+	 * Escapes the separators of the key inside a parameter name or value.
+	 *
+	 * @param s name or value
+	 * @return the escaped string
+	 */
+	private static String escape(String s) {
+		return s.replace("%", "%25").replace("&", "%26").replace("=", "%3D");
+	}
+}
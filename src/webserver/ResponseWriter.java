@@ -0,0 +1,127 @@
+package webserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writer of a streamed servlet response. The text is encoded as UTF-8 and sent
+ * to the client on each flush, after the response header, which is sent 
+ * without a length since the end of the body is the end of the connection.
+ * A copy of the body is kept so the response can be cached.
+ *
+ * @author Ángel Miguélez Millos
+ */
+public class ResponseWriter extends Writer {
+
+	private final static int BUFFER_SIZE = 8192;  // chars written before a flush
+
+	private final OutputStream out;
+	private final Runnable header;	// sends the response header
+	private final StringBuilder buffer = new StringBuilder();
+	private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+	private boolean started;	// the header was sent
+	private boolean stopped;	// the response is finished by the server
+
+	/**
+	 * Creates a new ResponseWriter.
+	 *
+	 * @param out stream to send the response to the client
+	 * @param header sends the response header, called before the first bytes of the body
+	 */
+	public ResponseWriter(OutputStream out, Runnable header) {
+		this.out = out;
+		this.header = header;
+	}
+
+	@Override
+	public synchronized void write(char[] cbuf, int off, int len) throws IOException {
+		if (stopped)
+			throw new IOException("Response already finished");
+
+		buffer.append(cbuf, off, len);
+		if (buffer.length() >= BUFFER_SIZE)
+			flush();
+	}
+
+	@Override
+	public synchronized void write(String str, int off, int len) throws IOException {
+		if (stopped)
+			throw new IOException("Response already finished");
+
+		buffer.append(str, off, off + len);
+		if (buffer.length() >= BUFFER_SIZE)
+			flush();
+	}
+
+	/**
+	 * Sends the text written so far. A high surrogate at the end waits for
+	 * the next write, so a character is never split.
+	 *
+	 * @throws IOException If the response is finished or an I/O error occurs
+	 */
+	@Override
+	public synchronized void flush() throws IOException {
+		if (stopped)
+			throw new IOException("Response already finished");
+
+		int n = buffer.length();
+		if (n > 0 && Character.isHighSurrogate(buffer.charAt(n - 1)))
+			n--;
+		if (n == 0)
+			return;
+
+		byte[] bytes = buffer.substring(0, n).getBytes(StandardCharsets.UTF_8);
+		buffer.delete(0, n);
+
+		if (!started) {
+			header.run();
+			started = true;
+		}
+		out.write(bytes);
+		out.flush();
+		body.write(bytes);
+	}
+
+	/**
+	 * Sends the rest of the text.
+	 *
+	 * @throws IOException If the response is finished or an I/O error occurs
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if (!stopped)
+			flush();
+	}
+
+	/**
+	 * Stops the servlet from writing more, since the server finishes the response.
+	 *
+	 * @return true if part of the response was already sent
+	 */
+	public synchronized boolean stop() {
+		stopped = true;
+		return started;
+	}
+
+	/**
+	 * Gets the body sent so far.
+	 *
+	 * @return the body encoded as UTF-8
+	 */
+	public synchronized byte[] toByteArray() {
+		return body.toByteArray();
+	}
+
+	/**
+	 * Gets the length of the body sent so far.
+	 *
+	 * @return the length in bytes
+	 */
+	public synchronized int length() {
+		return body.size();
+	}
+}
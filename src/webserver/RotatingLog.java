@@ -0,0 +1,221 @@
+package webserver;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Log file rotated when it gets too big or too old. The rotated file gets the
+ * date in its name, i.e. "accesslogs-20200131-235959.txt", then it is gzipped 
+ * in the background and the oldest rotated files are deleted. It must be 
+ * written by a single thread, through a preallocated buffer.
+ *
+ * @author Ángel Miguélez Millos
+ */
+public class RotatingLog implements Closeable {
+
+	private final static int BUFFER_SIZE = 65536;
+	private final static String DATE_FORMAT = "yyyyMMdd-HHmmss";
+
+	private final File file;
+	private final String stem, extension;	// name of the file split at the extension
+	private final LogSettings settings;
+	private final Executor compressor;
+	private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+	private FileOutputStream out;  // not interruptible, unlike a FileChannel
+	private long size;		// bytes of the current file, buffered included
+	private long opened;	// currentTimeMillis when the current file was opened
+
+	/**
+	 * Creates a new RotatingLog and opens its file, creating it if it does not exist.
+	 *
+	 * @param file current log file, the rotated ones are created next to it
+	 * @param settings rotation of the file
+	 * @param compressor runs the compression and deletion of the rotated files
+	 * @throws IOException If the file cannot be opened
+	 */
+	public RotatingLog(File file, LogSettings settings, Executor compressor) throws IOException {
+		this.file = file;
+		this.settings = settings;
+		this.compressor = compressor;
+
+		String name = file.getName();
+		int dot = name.lastIndexOf('.');
+		stem = dot > 0 ? name.substring(0, dot) : name;
+		extension = dot > 0 ? name.substring(dot) : "";
+
+		open();
+	}
+
+	/**
+	 * Rotates the file if it is bigger or older than the settings allow. An
+	 * empty file is never rotated.
+	 *
+	 * @return true if a new file was started
+	 * @throws IOException If the file cannot be rotated
+	 */
+	public boolean rotateIfNeeded() throws IOException {
+		if (size == 0)
+			return false;
+
+		boolean full = settings.getMaxSize() > 0 && size >= settings.getMaxSize();
+		boolean old = settings.getInterval() > 0 && System.currentTimeMillis() - opened >= settings.getInterval();
+		if (!full && !old)
+			return false;
+
+		rotate();
+		return true;
+	}
+
+	/**
+	 * Appends bytes to the file.
+	 *
+	 * @param b bytes to write
+	 * @param off position of the first byte
+	 * @param len number of bytes
+	 * @throws IOException If an I/O error occurs
+	 */
+	public void write(byte[] b, int off, int len) throws IOException {
+		size += len;
+
+		while (len > 0) {
+			if (!buffer.hasRemaining())
+				flush();
+
+			int n = Math.min(len, buffer.remaining());
+			buffer.put(b, off, n);
+			off += n;
+			len -= n;
+		}
+	}
+
+	/**
+	 * Gets the length of the current file.
+	 *
+	 * @return the length in bytes, buffered included
+	 */
+	public long size() { return size; }
+
+	/**
+	 * Writes the buffered bytes into the file.
+	 *
+	 * @throws IOException If an I/O error occurs
+	 */
+	public void flush() throws IOException {
+		out.write(buffer.array(), 0, buffer.position());
+		buffer.clear();
+	}
+
+	/**
+	 * Writes the buffered bytes and closes the file.
+	 *
+	 * @throws IOException If an I/O error occurs
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			flush();
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Opens the current file in append mode.
+	 *
+	 * @throws IOException If the file cannot be opened
+	 */
+	private void open() throws IOException {
+		out = new FileOutputStream(file, true);
+		size = file.length();
+		opened = System.currentTimeMillis();
+	}
+
+	/**
+	 * Renames the current file with the date and starts a new one.
+	 *
+	 * @throws IOException If the file cannot be renamed or the new one opened
+	 */
+	private void rotate() throws IOException {
+		close();
+
+		// Name the rotated file with the date, without replacing another one
+		String date = ServerUtils.formatDate(new Date(), DATE_FORMAT);
+		File rotated = new File(file.getParentFile(), stem + "-" + date + extension);
+		for (int i = 1; rotated.exists() || new File(rotated.getPath() + ".gz").exists(); i++)
+			rotated = new File(file.getParentFile(), stem + "-" + date + "-" + i + extension);
+
+		Files.move(file.toPath(), rotated.toPath());
+		open();
+
+		// Compress it and delete the oldest ones out of the writer thread
+		File done = rotated;
+		compressor.execute(() -> {
+			if (settings.isCompress())
+				gzip(done);
+			prune();
+		});
+	}
+
+	/**
+	 * Replaces a rotated file by its gzipped copy.
+	 *
+	 * @param f rotated file
+	 */
+	private static void gzip(File f) {
+		File tmp = new File(f.getPath() + ".gz.tmp");
+
+		try {
+			try (InputStream in = new FileInputStream(f);
+					OutputStream out = new GZIPOutputStream(new FileOutputStream(tmp), BUFFER_SIZE)) {
+				byte[] b = new byte[BUFFER_SIZE];
+				int n;
+				while ((n = in.read(b)) != -1)
+					out.write(b, 0, n);
+			}
+
+			Files.move(tmp.toPath(), new File(f.getPath() + ".gz").toPath(), StandardCopyOption.ATOMIC_MOVE);
+			Files.delete(f.toPath());
+
+		} catch (IOException e) {
+			System.out.println("Error compressing the log " + f + ": " + e.getMessage());
+			tmp.delete();
+		}
+	}
+
+	/**
+	 * Deletes the oldest rotated files over the number kept.
+	 */
+	private void prune() {
+		if (settings.getKeep() == 0)
+			return;
+
+		File[] files = file.getParentFile().listFiles((dir, name) -> name.startsWith(stem + "-")
+				&& (name.endsWith(extension) || name.endsWith(extension + ".gz")));
+		if (files == null || files.length <= settings.getKeep())
+			return;
+
+		// Oldest first
+		List<File> rotated = new ArrayList<>();
+		for (File f : files)
+			rotated.add(f);
+		rotated.sort((a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+
+		for (File f : rotated.subList(0, rotated.size() - settings.getKeep()))
+			if (!f.delete())
+				System.out.println("Error deleting the log " + f);
+	}
+}
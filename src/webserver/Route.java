@@ -0,0 +1,81 @@
+package webserver;
+
+/**
+ * What answers the requests of a route: the files of the host, a servlet
+ * class instantiated for each request, or a servlet instance registered by
+ * the code that embeds the server.
+ *
+ * @author Ángel Miguélez Millos
+ */
+public class Route {
+
+	/**
+	 * Kind of the route.
+	 */
+	public enum Kind {
+		FILES,		// resources directory of the host
+		SERVLET,	// servlet class
+		HANDLER		// servlet instance
+	}
+
+	private final static Route FILES = new Route(Kind.FILES, null, null);
+
+	private final Kind kind;
+	private final String name;			// servlet class, or pattern of a servlet instance
+	private final MiniServlet handler;	// null if it is not an instance
+
+	private Route(Kind kind, String name, MiniServlet handler) {
+		this.kind = kind;
+		this.name = name;
+		this.handler = handler;
+	}
+
+	/**
+	 * Gets the route of the files of the host.
+	 *
+	 * @return the route
+	 */
+	public static Route files() {
+		return FILES;
+	}
+
+	/**
+	 * Creates the route of a servlet class.
+	 *
+	 * @param className name of the servlet class
+	 * @return the route
+	 */
+	public static Route servlet(String className) {
+		return new Route(Kind.SERVLET, className, null);
+	}
+
+	/**
+	 * Creates the route of a servlet instance.
+	 *
+	 * @param pattern pattern of the route, it names the servlet in its bulkhead
+	 * and cache
+	 * @param servlet servlet answering the requests
+	 * @return the route
+	 */
+	public static Route handler(String pattern, MiniServlet servlet) {
+		return new Route(Kind.HANDLER, pattern, servlet);
+	}
+
+	/**
+	 * Gets the kind of the route.
+	 * @return the kind
+	 */
+	public Kind getKind() { return kind; }
+
+	/**
+	 * Gets the name of the servlet.
+	 * @return the class name, the pattern of an instance, null for the files
+	 */
+	public String getName() { return name; }
+
+	/**
+	 * Gets the servlet instance.
+	 * @return the servlet registered by code, null if it is not an instance
+	 */
+	public MiniServlet getHandler() { return handler; }
+}
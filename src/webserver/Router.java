@@ -0,0 +1,419 @@
+package webserver;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compiled table of routes: exact paths ("/hello"), prefixes ("/files/*"),
+ * extensions ("*.do") and paths with parameters ("/users/{id}/posts"). The
+ * paths are kept in a radix trie whose edges are the parts the routes have in
+ * common, and a lookup walks it over the characters of the request URI in
+ * place, so it allocates nothing and costs the length of the path, not the
+ * number of routes.
+ *
+ * When several routes match, the whole path wins over a prefix and a prefix
+ * over an extension. A literal segment wins over a parameter at the same
+ * place, falling back to the parameter if the rest does not match, and the
+ * longest prefix wins. A router is filled once and then only read, so it can
+ * be shared by any number of threads.
+ *
+ * @param <T> value of a route
+ *
+ * @author Ángel Miguélez Millos
+ */
+public class Router<T> {
+
+	private final static int MAX_PARAMS = 16;	// parameters of a route
+
+	private final Node<T> root = new Node<>("");
+	private final Node<T> extensions = new Node<>("");	// trie of the extensions, without the dot
+	private int size;
+
+	/**
+	 * Node of the trie, reached through the characters of its label.
+	 */
+	private static class Node<T> {
+		private String label;
+		private char[] firsts = new char[0];		// first character of the children, sorted
+		private final List<Node<T>> children = new ArrayList<>(2);
+		private Node<T> param;		// child matching a whole segment
+		private String name;		// name of the parameter, if this is a parameter node
+		private T value;			// route of the paths ending here
+		private T prefix;			// route of the paths under here
+
+		private Node(String label) {
+			this.label = label;
+		}
+	}
+
+	/**
+	 * Result of a lookup: the parameters of the route matched, as positions
+	 * in the URI. Matches are pooled, so a lookup does not allocate; a match
+	 * must not be used after being released.
+	 */
+	public static class Match {
+
+		private final static int POOL_SIZE = 256;
+		private final static Queue<Match> POOL = new ConcurrentLinkedQueue<>();
+		private final static AtomicInteger POOLED = new AtomicInteger();
+
+		private final String[] names = new String[MAX_PARAMS];
+		private final int[] starts = new int[MAX_PARAMS], ends = new int[MAX_PARAMS];
+		private int count;
+
+		// parameters of the longest prefix seen, kept while backtracking
+		private Object prefix;
+		private int prefixLength;
+		private final String[] prefixNames = new String[MAX_PARAMS];
+		private final int[] prefixStarts = new int[MAX_PARAMS], prefixEnds = new int[MAX_PARAMS];
+		private int prefixCount;
+
+		private String uri;
+
+		/**
+		 * Gets a match from the pool, or a new one if the pool is empty.
+		 *
+		 * @return an empty match
+		 */
+		public static Match acquire() {
+			Match m = POOL.poll();
+			if (m == null)
+				return new Match();
+
+			POOLED.decrementAndGet();
+			return m;
+		}
+
+		/**
+		 * Clears a match and returns it to the pool.
+		 *
+		 * @param m match to release
+		 */
+		public static void release(Match m) {
+			m.reset(null);
+			if (POOLED.incrementAndGet() <= POOL_SIZE)
+				POOL.offer(m);
+			else
+				POOLED.decrementAndGet();
+		}
+
+		/**
+		 * Gets the number of parameters of the route matched.
+		 * @return the number of parameters
+		 */
+		public int getCount() { return count; }
+
+		/**
+		 * Gets the name of a parameter.
+		 *
+		 * @param i index of the parameter, in the order of the route
+		 * @return the name, as between the braces of the route
+		 */
+		public String getName(int i) { return names[i]; }
+
+		/**
+		 * Gets the value of a parameter, as it is in the URI.
+		 *
+		 * @param i index of the parameter, in the order of the route
+		 * @return the segment of the URI, not decoded
+		 */
+		public String getValue(int i) { return uri.substring(starts[i], ends[i]); }
+
+		/**
+		 * Clears the parameters for a new lookup.
+		 *
+		 * @param uri URI looked up
+		 */
+		private void reset(String uri) {
+			this.uri = uri;
+			count = 0;
+			prefix = null;
+			prefixLength = -1;
+			prefixCount = 0;
+		}
+
+		/**
+		 * Keeps the parameters up to a prefix, if it is the longest one.
+		 *
+		 * @param value route of the prefix
+		 * @param length characters of the URI the prefix covers
+		 */
+		private void savePrefix(Object value, int length) {
+			if (length <= prefixLength)
+				return;
+			prefix = value;
+			prefixLength = length;
+			prefixCount = count;
+			System.arraycopy(names, 0, prefixNames, 0, count);
+			System.arraycopy(starts, 0, prefixStarts, 0, count);
+			System.arraycopy(ends, 0, prefixEnds, 0, count);
+		}
+
+		/**
+		 * Takes back the parameters of the longest prefix.
+		 */
+		private void restorePrefix() {
+			count = prefixCount;
+			System.arraycopy(prefixNames, 0, names, 0, count);
+			System.arraycopy(prefixStarts, 0, starts, 0, count);
+			System.arraycopy(prefixEnds, 0, ends, 0, count);
+		}
+	}
+
+	/**
+	 * Adds a route, replacing the one with the same pattern.
+	 *
+	 * @param pattern "/exact/path", "/prefix/*", "*.extension" or a path with
+	 * whole segments as parameters, i.e. "/users/{id}" or "/users/{id}/*"
+	 * @param value value of the route
+	 * @return the value replaced, null if the route is new
+	 * @throws IllegalArgumentException If the pattern is not valid
+	 */
+	public T add(String pattern, T value) {
+		if (value == null)
+			throw new IllegalArgumentException("No value for the route " + pattern);
+		T old;
+
+		// Extension
+		if (pattern.startsWith("*.")) {
+			String ext = pattern.substring(2);
+			if (ext.isEmpty() || ext.startsWith(".") || ext.indexOf('/') >= 0 || ext.indexOf('*') >= 0
+					|| ext.indexOf('{') >= 0)
+				throw new IllegalArgumentException("Invalid route: " + pattern);
+			Node<T> n = insert(extensions, ext);
+			old = n.value;
+			n.value = value;
+
+		// Path, with parameters and maybe a prefix
+		} else {
+			boolean prefix = pattern.endsWith("/*");
+			String path = prefix ? pattern.substring(0, pattern.length() - 1) : pattern;
+			if (!path.startsWith("/") || path.indexOf('*') >= 0)
+				throw new IllegalArgumentException("Invalid route: " + pattern);
+			Node<T> n = root;
+			int params = 0;
+
+			// Literal parts and whole segments as parameters
+			int i = 0;
+			while (i < path.length()) {
+				int open = path.indexOf('{', i);
+				if (open < 0) {
+					n = insert(n, path.substring(i));
+					break;
+				}
+
+				int close = path.indexOf('}', open);
+				if (close < 0 || path.charAt(open - 1) != '/' || close == open + 1
+						|| (close + 1 < path.length() && path.charAt(close + 1) != '/') || ++params > MAX_PARAMS)
+					throw new IllegalArgumentException("Invalid route: " + pattern);
+
+				n = insert(n, path.substring(i, open));
+				String name = path.substring(open + 1, close);
+				if (n.param == null) {
+					n.param = new Node<>("");
+					n.param.name = name;
+				} else if (!n.param.name.equals(name))
+					throw new IllegalArgumentException("Parameter {" + name + "} of " + pattern
+							+ " is {" + n.param.name + "} in another route");
+				n = n.param;
+				i = close + 1;
+			}
+
+			if (path.indexOf('}', i) > path.indexOf('{', i))
+				throw new IllegalArgumentException("Invalid route: " + pattern);
+
+			if (prefix) {
+				old = n.prefix;
+				n.prefix = value;
+			} else {
+				old = n.value;
+				n.value = value;
+			}
+		}
+
+		if (old == null)
+			size++;
+		return old;
+	}
+
+	/**
+	 * Gets the number of routes.
+	 *
+	 * @return the number of patterns added
+	 */
+	public int size() { return size; }
+
+	/**
+	 * Finds the route of a request URI.
+	 *
+	 * @param uri request URI, the query string is ignored
+	 * @param m where the parameters of the route are set
+	 * @return the value of the route, null if none matches
+	 */
+	public T match(String uri, Match m) {
+		int q = uri.indexOf('?');
+		int end = q == -1 ? uri.length() : q;
+		m.reset(uri);
+
+		// The whole path, a literal edge goes before a parameter
+		T v = find(root, uri, 0, end, m);
+		if (v != null)
+			return v;
+
+		// The longest prefix
+		if (m.prefix != null) {
+			m.restorePrefix();
+			@SuppressWarnings("unchecked")
+			T p = (T) m.prefix;
+			return p;
+		}
+
+		// The extension of the last segment, the longest first, i.e. "tar.gz" before "gz"
+		m.count = 0;
+		int segment = uri.lastIndexOf('/', end - 1) + 1;
+		for (int i = segment; i < end; i++) {
+			if (uri.charAt(i) == '.') {
+				v = extension(uri, i + 1, end);
+				if (v != null)
+					return v;
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * Finds the route of an extension.
+	 *
+	 * @param s URI
+	 * @param i start of the extension, after the dot
+	 * @param end end of the path in the URI
+	 * @return the value of the route, null if none matches
+	 */
+	private T extension(String s, int i, int end) {
+		Node<T> n = extensions;
+		while (i < end && n != null) {
+			n = child(n, s, i, end);
+			i += n == null ? 0 : n.label.length();
+		}
+
+		return n == null ? null : n.value;
+	}
+
+	/**
+	 * Walks the trie from a node, backtracking from the literal edges to the
+	 * parameters.
+	 *
+	 * @param n node reached
+	 * @param s URI
+	 * @param i position of the URI after the node
+	 * @param end end of the path in the URI
+	 * @param m parameters found so far
+	 * @return the value of the route of the whole path, null if none matches
+	 */
+	private T find(Node<T> n, String s, int i, int end, Match m) {
+		if (n.prefix != null)
+			m.savePrefix(n.prefix, i);
+		if (i == end)
+			return n.value;
+
+		// The literal edge
+		Node<T> c = child(n, s, i, end);
+		if (c != null) {
+			T v = find(c, s, i + c.label.length(), end, m);
+			if (v != null)
+				return v;
+		}
+
+		// The segment as a parameter
+		if (n.param != null) {
+			int j = i;
+			while (j < end && s.charAt(j) != '/')
+				j++;
+
+			if (j > i) {
+				int k = m.count++;
+				m.names[k] = n.param.name;
+				m.starts[k] = i;
+				m.ends[k] = j;
+				T v = find(n.param, s, j, end, m);
+				if (v != null)
+					return v;
+				m.count--;
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * Gets the child of a node whose label is next in the URI.
+	 *
+	 * @param n parent node
+	 * @param s URI
+	 * @param i position of the URI after the parent
+	 * @param end end of the path in the URI
+	 * @return the child, null if no label matches
+	 */
+	private static <T> Node<T> child(Node<T> n, String s, int i, int end) {
+		int k = Arrays.binarySearch(n.firsts, s.charAt(i));
+		if (k < 0)
+			return null;
+
+		Node<T> c = n.children.get(k);
+		int len = c.label.length();
+		return end - i >= len && s.regionMatches(i, c.label, 0, len) ? c : null;
+	}
+
+	/**
+	 * Adds the path of a literal under a node, splitting the edges that
+	 * share only part of it.
+	 *
+	 * @param n node where the literal starts
+	 * @param s literal
+	 * @return the node where the literal ends
+	 */
+	private static <T> Node<T> insert(Node<T> n, String s) {
+		while (!s.isEmpty()) {
+			int k = Arrays.binarySearch(n.firsts, s.charAt(0));
+
+			// No edge starts like it, a new leaf
+			if (k < 0) {
+				k = -k - 1;
+				Node<T> leaf = new Node<>(s);
+				char[] firsts = new char[n.firsts.length + 1];
+				System.arraycopy(n.firsts, 0, firsts, 0, k);
+				firsts[k] = s.charAt(0);
+				System.arraycopy(n.firsts, k, firsts, k + 1, n.firsts.length - k);
+				n.firsts = firsts;
+				n.children.add(k, leaf);
+				return leaf;
+			}
+
+			// Split the edge where they differ
+			Node<T> c = n.children.get(k);
+			int common = 0;
+			int max = Math.min(c.label.length(), s.length());
+			while (common < max && c.label.charAt(common) == s.charAt(common))
+				common++;
+
+			if (common < c.label.length()) {
+				Node<T> mid = new Node<>(c.label.substring(0, common));
+				c.label = c.label.substring(common);
+				mid.firsts = new char[] { c.label.charAt(0) };
+				mid.children.add(c);
+				n.children.set(k, mid);
+				c = mid;
+			}
+
+			n = c;
+			s = s.substring(common);
+		}
+
+		return n;
+	}
+}
@@ -0,0 +1,498 @@
+package webserver;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Immutable snapshot of the server configuration. A new snapshot is created
+ * every time the configuration file is reloaded and swapped atomically, so
+ * the connections read it without locks and each request sees consistent values.
+ *
+ * @author Ángel Miguélez Millos
+ */
+public class ServerConfig {
+
+	private final int port;
+	private final String dir, dirIndex;	// default resources path and file
+	private final boolean allow;
+	private final VirtualHost defaultHost;		// site of the requests of no other host
+	private final List<VirtualHost> virtualHosts;	// sites by Host header
+	private final String logIndex;		// default log files path
+	private final LogSettings logSettings;
+	private final TlsSettings tlsSettings;
+	private final WarmupSettings warmupSettings;
+	private final Http2Settings http2Settings;
+	private final TraceSettings traceSettings;
+	private final ThrottleSettings throttleSettings;
+	private final ConnectionTimeouts timeouts;
+	private final int drainTimeout;		// ms to wait for the connections on shutdown
+	private final int adminPort;		// port of the admin listener on localhost, 0 if disabled
+	private final int reloadInterval;	// ms between checks of the config file
+	private final int acceptors;		// listening sockets on the port
+	private final int workers;			// threads per acceptor, 0 for one per connection
+	private final int pathCacheSize;	// max number of resolved URIs cached
+	private final Map<String, String> servlets;	// route -> servlet class
+	private final Map<String, MiniServlet> handlers;	// route -> servlet instance, set by code
+	private final Router<Route> router;		// routes of SERVLETS, ROUTES and the instances
+	private final long maxBodySize;		// max bytes of a POST body
+	private final int bodyBufferSize;	// bytes of a body kept in memory before spilling to disk
+	private final boolean allowPut;		// allow uploads with PUT
+	private final long maxUploadSize;	// max bytes of a PUT upload
+	private final int responseCacheSize;	// max number of servlet responses cached
+	private final int servletThreads;	// threads running servlets
+	private final int servletConcurrency;	// requests of a servlet at the same time
+	private final long servletTimeout;	// ms a servlet has to respond
+
+	/**
+	 * Creates a new ServerConfig from the properties of a configuration file.
+	 * The optional properties take their default value when missing.
+	 *
+	 * @param wd working directory, the relative paths are resolved from it
+	 * @param prop properties of the configuration file
+	 * @throws NumberFormatException If a numeric property is not valid
+	 * @throws IllegalArgumentException If a value is out of range
+	 */
+	public ServerConfig(String wd, Properties prop) {
+		this(wd, prop, Collections.<String, MiniServlet>emptyMap());
+	}
+
+	/**
+	 * Creates a new ServerConfig from properties and the servlet instances
+	 * registered by the code that embeds the server.
+	 *
+	 * @param wd working directory, the relative paths are resolved from it
+	 * @param prop properties of the configuration
+	 * @param handlers servlet instances by route, i.e. "/hello", served before
+	 * the SERVLETS ones
+	 * @throws NumberFormatException If a numeric property is not valid
+	 * @throws IllegalArgumentException If a value is out of range
+	 */
+	public ServerConfig(String wd, Properties prop, Map<String, MiniServlet> handlers) {
+		port = Integer.parseInt(prop.getProperty("PORT"));
+		dir = wd + prop.getProperty("DIRECTORY");
+		dirIndex = prop.getProperty("DIRECTORY_INDEX");
+		allow = prop.getProperty("ALLOW").equals("true");
+		defaultHost = new VirtualHost(null, Collections.<String>emptyList(), dir, dirIndex, allow);
+		virtualHosts = Collections.unmodifiableList(virtualHosts(wd, prop));
+		logIndex = wd + prop.getProperty("LOG_INDEX");
+
+		logSettings = new LogSettings(
+				prop.getProperty("LOG_FORMAT", "text").equals("binary"),
+				Long.parseLong(prop.getProperty("LOG_MAX_SIZE", "10485760")),
+				Long.parseLong(prop.getProperty("LOG_ROTATE_INTERVAL", "86400000")),
+				Integer.parseInt(prop.getProperty("LOG_KEEP", "10")),
+				prop.getProperty("LOG_COMPRESS", "true").equals("true"));
+
+		String keystore = prop.getProperty("TLS_KEYSTORE");
+		tlsSettings = new TlsSettings(
+				Integer.parseInt(prop.getProperty("TLS_PORT", "0")),
+				keystore == null ? null : wd + keystore,
+				prop.getProperty("TLS_KEYSTORE_PASSWORD"),
+				prop.getProperty("TLS_KEYSTORE_TYPE", "PKCS12"),
+				prop.getProperty("TLS_PROTOCOLS", "TLSv1.3,TLSv1.2").split("\\s*,\\s*"),
+				Integer.parseInt(prop.getProperty("TLS_SESSION_CACHE_SIZE", "10000")),
+				Integer.parseInt(prop.getProperty("TLS_SESSION_TIMEOUT", "86400")),
+				prop.getProperty("TLS_SESSION_TICKETS", "true").equals("true"));
+
+		warmupSettings = new WarmupSettings(
+				prop.getProperty("WARMUP", "false").equals("true"),
+				Long.parseLong(prop.getProperty("WARMUP_PRELOAD_SIZE", "1048576")),
+				Long.parseLong(prop.getProperty("WARMUP_PRELOAD_TOTAL", "268435456")),
+				Integer.parseInt(prop.getProperty("WARMUP_REQUESTS", "10000")));
+
+		http2Settings = new Http2Settings(
+				prop.getProperty("HTTP2", "false").equals("true"),
+				Integer.parseInt(prop.getProperty("HTTP2_MAX_STREAMS", "100")),
+				Integer.parseInt(prop.getProperty("HTTP2_WINDOW_SIZE", "65535")));
+
+		traceSettings = new TraceSettings(
+				prop.getProperty("SERVER_TIMING", "false").equals("true"),
+				prop.getProperty("LOG_DURATION", "false").equals("true"),
+				Long.parseLong(prop.getProperty("SLOW_REQUEST_THRESHOLD", "0")));
+
+		throttleSettings = new ThrottleSettings(
+				Long.parseLong(prop.getProperty("THROTTLE_RATE", "0")),
+				Long.parseLong(prop.getProperty("THROTTLE_CONNECTION_RATE", "0")),
+				Long.parseLong(prop.getProperty("THROTTLE_SMALL_SIZE", "1048576")),
+				Integer.parseInt(prop.getProperty("THROTTLE_SMALL_WEIGHT", "4")));
+
+		timeouts = new ConnectionTimeouts(
+				Integer.parseInt(prop.getProperty("HEADER_TIMEOUT", "10000")),
+				Integer.parseInt(prop.getProperty("BODY_TIMEOUT", "30000")),
+				Integer.parseInt(prop.getProperty("WRITE_TIMEOUT", "30000")),
+				Integer.parseInt(prop.getProperty("MIN_DATA_RATE", "100")));
+
+		drainTimeout = Integer.parseInt(prop.getProperty("DRAIN_TIMEOUT", "10000"));
+		reloadInterval = Integer.parseInt(prop.getProperty("CONFIG_RELOAD", "2000"));
+		adminPort = Integer.parseInt(prop.getProperty("ADMIN_PORT", "0"));
+		if (adminPort < 0)
+			throw new IllegalArgumentException("Invalid admin port");
+
+		acceptors = Integer.parseInt(prop.getProperty("ACCEPTORS", "1"));
+		workers = Integer.parseInt(prop.getProperty("WORKERS", "0"));
+		if (acceptors < 1 || workers < 0)
+			throw new IllegalArgumentException("Invalid number of acceptors or workers");
+
+		pathCacheSize = Integer.parseInt(prop.getProperty("PATH_CACHE_SIZE", "10000"));
+		if (pathCacheSize < 1)
+			throw new IllegalArgumentException("Invalid path cache size");
+
+		servlets = Collections.unmodifiableMap(
+				servletRoutes(prop.getProperty("SERVLETS", "MiServlet,MiServletSearch")));
+		this.handlers = Collections.unmodifiableMap(new HashMap<>(handlers));
+		router = router(prop.getProperty("ROUTES", ""), servlets, this.handlers);
+
+		maxBodySize = Long.parseLong(prop.getProperty("MAX_BODY_SIZE", "1048576"));
+		bodyBufferSize = Integer.parseInt(prop.getProperty("BODY_BUFFER_SIZE", "65536"));
+		allowPut = prop.getProperty("ALLOW_PUT", "false").equals("true");
+		maxUploadSize = Long.parseLong(prop.getProperty("MAX_UPLOAD_SIZE", "104857600"));
+		if (maxBodySize < 0 || bodyBufferSize < 0 || maxUploadSize < 0)
+			throw new IllegalArgumentException("Invalid body sizes");
+
+		responseCacheSize = Integer.parseInt(prop.getProperty("RESPONSE_CACHE_SIZE", "1000"));
+		if (responseCacheSize < 0)
+			throw new IllegalArgumentException("Invalid response cache size");
+
+		servletThreads = Integer.parseInt(prop.getProperty("SERVLET_THREADS",
+				String.valueOf(Runtime.getRuntime().availableProcessors())));
+		servletConcurrency = Integer.parseInt(prop.getProperty("SERVLET_CONCURRENCY", "16"));
+		servletTimeout = Long.parseLong(prop.getProperty("SERVLET_TIMEOUT", "10000"));
+		if (servletThreads < 1 || servletConcurrency < 1 || servletTimeout < 0)
+			throw new IllegalArgumentException("Invalid servlet threads, concurrency or timeout");
+	}
+
+	/**
+	 * Loads the properties from a configuration file.
+	 *
+	 * @param wd working directory, the relative paths are resolved from it
+	 * @param path path of the configuration file
+	 * @return the configuration loaded
+	 * @throws IOException If a problem occurs while reading the configuration file
+	 * @throws NumberFormatException If a numeric property is not valid
+	 * @throws IllegalArgumentException If a value is out of range
+	 */
+	public static ServerConfig load(String wd, String path) throws IOException {
+		return load(wd, path, new Properties(), Collections.<String, MiniServlet>emptyMap());
+	}
+
+	/**
+	 * Loads the properties from a configuration file, if there is one, and 
+	 * replaces them with the ones set by code.
+	 *
+	 * @param wd working directory, the relative paths are resolved from it
+	 * @param path path of the configuration file, null if there is none
+	 * @param overrides properties that replace the ones of the file, with
+	 * their defaults for the missing ones
+	 * @param handlers servlet instances by route
+	 * @return the configuration loaded
+	 * @throws IOException If a problem occurs while reading the configuration file
+	 * @throws NumberFormatException If a numeric property is not valid
+	 * @throws IllegalArgumentException If a value is out of range
+	 */
+	public static ServerConfig load(String wd, String path, Properties overrides, 
+			Map<String, MiniServlet> handlers) throws IOException {
+		Properties prop = new Properties();
+
+		// Load the properties
+		if (path != null) {
+			try (FileInputStream input = new FileInputStream(path)) {
+				prop.load(input);
+			}
+		}
+
+		// The ones set by code win, the defaults only fill the gaps
+		for (String name : overrides.stringPropertyNames())
+			if (overrides.containsKey(name) || !prop.containsKey(name))
+				prop.setProperty(name, overrides.getProperty(name));
+
+		return new ServerConfig(wd, prop, handlers);
+	}
+
+	/**
+	 * Creates the virtual hosts listed in VIRTUAL_HOSTS from their HOST.name.*
+	 * properties. The ones not set take the value of the default host.
+	 *
+	 * @param wd working directory, the relative paths are resolved from it
+	 * @param prop properties of the configuration file
+	 * @return the virtual hosts
+	 * @throws IllegalArgumentException If a host has no directory or an invalid name
+	 */
+	private List<VirtualHost> virtualHosts(String wd, Properties prop) {
+		List<VirtualHost> hosts = new ArrayList<>();
+
+		for (String name : prop.getProperty("VIRTUAL_HOSTS", "").split(",")) {
+			name = name.trim();
+			if (name.isEmpty())
+				continue;
+
+			String prefix = "HOST." + name + ".";
+			String hostDir = prop.getProperty(prefix + "DIRECTORY");
+			if (hostDir == null)
+				throw new IllegalArgumentException("Missing " + prefix + "DIRECTORY");
+
+			List<String> aliases = new ArrayList<>();
+			for (String alias : prop.getProperty(prefix + "ALIASES", "").split(","))
+				if (!alias.trim().isEmpty())
+					aliases.add(alias.trim());
+
+			hosts.add(new VirtualHost(name, aliases, wd + hostDir,
+					prop.getProperty(prefix + "DIRECTORY_INDEX", dirIndex),
+					prop.getProperty(prefix + "ALLOW", String.valueOf(allow)).equals("true")));
+		}
+
+		return hosts;
+	}
+
+	/**
+	 * Maps each servlet name to the route "/name.do". The names without a
+	 * package belong to the server package.
+	 *
+	 * @param names servlet class names separated by commas
+	 * @return the routes to their class names
+	 */
+	private static Map<String, String> servletRoutes(String names) {
+		Map<String, String> routes = new HashMap<>();
+
+		for (String name : names.split(",")) {
+			name = name.trim();
+			if (name.isEmpty())
+				continue;
+
+			String className = name.contains(".") ? name : ServerConfig.class.getPackage().getName() + "." + name;
+			routes.put("/" + name.substring(name.lastIndexOf('.') + 1) + ".do", className);
+		}
+
+		return routes;
+	}
+
+	/**
+	 * Compiles the routes: the SERVLETS ones, the ROUTES ones, which replace
+	 * them, and the servlet instances, which replace both. A route of ROUTES
+	 * is "pattern=target", the target being a servlet class or "static" for
+	 * the files.
+	 *
+	 * @param routes ROUTES value, routes separated by commas
+	 * @param servlets routes of SERVLETS to their class names
+	 * @param handlers servlet instances by route
+	 * @return the router
+	 * @throws IllegalArgumentException If a route is not valid
+	 */
+	private static Router<Route> router(String routes, Map<String, String> servlets, 
+			Map<String, MiniServlet> handlers) {
+		Router<Route> r = new Router<>();
+
+		for (Map.Entry<String, String> e : servlets.entrySet())
+			r.add(e.getKey(), Route.servlet(e.getValue()));
+
+		for (String route : routes.split(",")) {
+			route = route.trim();
+			if (route.isEmpty())
+				continue;
+
+			int eq = route.indexOf('=');
+			if (eq < 0)
+				throw new IllegalArgumentException("Invalid route: " + route);
+			String pattern = route.substring(0, eq).trim(), target = route.substring(eq + 1).trim();
+			String className = target.contains(".") ? target : ServerConfig.class.getPackage().getName() + "." + target;
+			r.add(pattern, target.equals("static") ? Route.files() : Route.servlet(className));
+		}
+
+		for (Map.Entry<String, MiniServlet> e : handlers.entrySet())
+			r.add(e.getKey(), Route.handler(e.getKey(), e.getValue()));
+
+		return r;
+	}
+
+	/**
+	 * Gets the port to listen.
+	 * @return the port
+	 */
+	public int getPort() { return port; }
+
+	/**
+	 * Gets the path to the resources directory.
+	 * @return the resources directory
+	 */
+	public String getDir() { return dir; }
+
+	/**
+	 * Gets the default file when a directory is requested.
+	 * @return the default filename
+	 */
+	public String getDirIndex() { return dirIndex; }
+
+	/**
+	 * Gets the allow value.
+	 * @return true if the directories can be listed
+	 */
+	public boolean isAllow() { return allow; }
+
+	/**
+	 * Gets the site of the requests that match no virtual host, made of 
+	 * DIRECTORY, DIRECTORY_INDEX and ALLOW.
+	 * @return the default host
+	 */
+	public VirtualHost getDefaultHost() { return defaultHost; }
+
+	/**
+	 * Gets the virtual hosts.
+	 * @return unmodifiable list of the named hosts, without the default one
+	 */
+	public List<VirtualHost> getVirtualHosts() { return virtualHosts; }
+
+	/**
+	 * Gets the path to the log files directory.
+	 * @return the log files directory
+	 */
+	public String getLogIndex() { return logIndex; }
+
+	/**
+	 * Gets the format and rotation of the log files.
+	 * @return the log settings
+	 */
+	public LogSettings getLogSettings() { return logSettings; }
+
+	/**
+	 * Gets the HTTPS listener settings.
+	 * @return the TLS settings
+	 */
+	public TlsSettings getTlsSettings() { return tlsSettings; }
+
+	/**
+	 * Gets the warm-up run on start.
+	 * @return the warm-up settings
+	 */
+	public WarmupSettings getWarmupSettings() { return warmupSettings; }
+
+	/**
+	 * Gets the cleartext HTTP/2 settings.
+	 * @return the HTTP/2 settings
+	 */
+	public Http2Settings getHttp2Settings() { return http2Settings; }
+
+	/**
+	 * Gets the timing of the requests.
+	 * @return the trace settings
+	 */
+	public TraceSettings getTraceSettings() { return traceSettings; }
+
+	/**
+	 * Gets the limits of the bandwidth.
+	 * @return the throttle settings
+	 */
+	public ThrottleSettings getThrottleSettings() { return throttleSettings; }
+
+	/**
+	 * Gets the connection deadlines and limits.
+	 * @return the connection timeouts
+	 */
+	public ConnectionTimeouts getTimeouts() { return timeouts; }
+
+	/**
+	 * Gets the time to wait for the connections on shutdown.
+	 * @return the drain timeout in milliseconds
+	 */
+	public int getDrainTimeout() { return drainTimeout; }
+
+	/**
+	 * Gets the time between checks of the configuration file.
+	 * @return the reload interval in milliseconds, 0 if disabled
+	 */
+	public int getReloadInterval() { return reloadInterval; }
+
+	/**
+	 * Gets the port of the admin listener, bound to localhost.
+	 * @return the admin port, 0 if there is no admin listener
+	 */
+	public int getAdminPort() { return adminPort; }
+
+	/**
+	 * Gets the number of listening sockets on the port.
+	 * @return the number of acceptors
+	 */
+	public int getAcceptors() { return acceptors; }
+
+	/**
+	 * Gets the number of worker threads per acceptor.
+	 * @return the number of workers, 0 if there is one per connection
+	 */
+	public int getWorkers() { return workers; }
+
+	/**
+	 * Gets the max number of resolved URIs cached.
+	 * @return the path cache size
+	 */
+	public int getPathCacheSize() { return pathCacheSize; }
+
+	/**
+	 * Gets the routes of the servlets.
+	 * @return unmodifiable map of the routes, i.e. "/MiServlet.do", to the class names
+	 */
+	public Map<String, String> getServlets() { return servlets; }
+
+	/**
+	 * Gets the servlet instances registered by code.
+	 * @return unmodifiable map of the routes, i.e. "/hello", to the servlets
+	 */
+	public Map<String, MiniServlet> getHandlers() { return handlers; }
+
+	/**
+	 * Gets the routes of the requests, compiled.
+	 * @return the router, shared and read-only
+	 */
+	public Router<Route> getRouter() { return router; }
+
+	/**
+	 * Gets the max length of a POST body.
+	 * @return the max length in bytes
+	 */
+	public long getMaxBodySize() { return maxBodySize; }
+
+	/**
+	 * Gets the bytes of a body kept in memory before spilling it to disk.
+	 * @return the body buffer size in bytes
+	 */
+	public int getBodyBufferSize() { return bodyBufferSize; }
+
+	/**
+	 * Gets if files can be uploaded with PUT.
+	 * @return true if PUT is allowed
+	 */
+	public boolean isAllowPut() { return allowPut; }
+
+	/**
+	 * Gets the max length of a PUT upload.
+	 * @return the max length in bytes
+	 */
+	public long getMaxUploadSize() { return maxUploadSize; }
+
+	/**
+	 * Gets the max number of servlet responses cached.
+	 * @return the response cache size, 0 if disabled
+	 */
+	public int getResponseCacheSize() { return responseCacheSize; }
+
+	/**
+	 * Gets the number of threads running servlets.
+	 * @return the servlet threads
+	 */
+	public int getServletThreads() { return servletThreads; }
+
+	/**
+	 * Gets the max requests of a servlet running or queued at the same time.
+	 * @return the servlet concurrency
+	 */
+	public int getServletConcurrency() { return servletConcurrency; }
+
+	/**
+	 * Gets the time a servlet has to respond, unless it declares its own.
+	 * @return the servlet timeout in milliseconds, 0 if there is none
+	 */
+	public long getServletTimeout() { return servletTimeout; }
+}
@@ -1,14 +1,19 @@
 package webserver;
         
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.Locale;
 import java.util.Map;
 import java.util.TimeZone;
 
@@ -21,88 +26,165 @@ import java.util.TimeZone;
 public class ServerUtils {
 
 	public final static String DATE_FORMAT = "E, dd MMM yyyy HH:mm:ss zzz";
+	public final static int MAX_HEADER = 65536;  // max length of a request header
 	
 	/**
-	 * Creates an instance of the class requested and gets the dynamic response.
+	 * Gets the dynamic response of a servlet to a GET or, if there is a body,
+	 * to a POST.
 	 * 
-	 * @param nombreclase name of the java class
-	 * @param parameters parameters of the java class
+	 * @param servlet servlet called
+	 * @param parameters parameters of the servlet
+	 * @param body stream of the request body, null for a GET
 	 * @return html dynamic message
-	 * @throws ClassNotFoundException If the class cannot be located
-	 * @throws InstantiationException If this Class represents an abstract class,
-	 * an interface, an array class, a primitive type, or void; or if the class 
-	 * has no nullary constructor; or if the instantiation fails for some other reason
-	 * @throws IllegalAccessException If the class or its nullary constructor is not accessible
-	 * @throws Exception If the class method called fails
+	 * @throws Exception If the servlet method called fails
 	 */
-    public static String processDynRequest(String nombreclase,
-		Map<String, String> parameters) throws ClassNotFoundException, InstantiationException, IllegalAccessException, Exception {
-
-        MiniServlet servlet;  // interface
-		Class<?> instancia;	  // instance of a class
-
-		// Create an instance of the class requested
-        instancia = Class.forName(nombreclase);  
-		
-		// Cast to the interface
-		servlet = (MiniServlet) instancia.newInstance();
+	public static String processDynRequest(MiniServlet servlet, Map<String, String> parameters,
+			InputStream body) throws Exception {
 
 		// Call the function that returns the dynamic response
-		return servlet.doGet(parameters);
-    }
+		return body == null ? servlet.doGet(parameters) : servlet.doPost(parameters, body);
+	}
+	
+	/**
+	 * Writes the response of a servlet to a GET. A StreamingServlet writes it
+	 * as it creates it, any other servlet writes it when it is done.
+	 * 
+	 * @param servlet servlet called
+	 * @param parameters parameters of the servlet
+	 * @param out writer of the html dynamic message, closed at the end
+	 * @throws Exception If the servlet method called fails
+	 */
+	public static void processDynRequest(MiniServlet servlet, Map<String, String> parameters,
+			Writer out) throws Exception {
+
+		// Call the function that writes the dynamic response
+		if (servlet instanceof StreamingServlet)
+			((StreamingServlet) servlet).doGet(parameters, out);
+		else
+			out.write(servlet.doGet(parameters));
+		out.close();
+	}
+	
+	/**
+	 * Gets the servlet of a route: the instance registered for it or, for a
+	 * servlet given by its class, a new instance of the class.
+	 * 
+	 * @param className name of the servlet class, ignored if there is an instance
+	 * @param instance servlet registered for the route, null if it is given by its class
+	 * @return the servlet
+	 * @throws ReflectiveOperationException If the class cannot be located or instantiated
+	 */
+	public static MiniServlet getServlet(String className, MiniServlet instance) 
+			throws ReflectiveOperationException {
+		if (instance != null)
+			return instance;
+		return (MiniServlet) Class.forName(className).getDeclaredConstructor().newInstance();
+	}
 	
 	/**
-	 * Reads the user input until an empty line is sent.
+	 * Reads the user input until an empty line is sent. The bytes are read one
+	 * by one, so the stream is left at the start of the request body.
 	 * 
-	 * @param in buffered to read from
+	 * @param in stream to read from
 	 * @return message separated by new line characters
-	 * @throws IOException If an I/O error occurs while reading from the buffer
+	 * @throws IOException If an I/O error occurs while reading from the stream 
+	 * or the message is longer than MAX_HEADER
 	 */
-	public static String readInput(BufferedReader in) throws IOException {
-        String line, message="";
+	public static String readInput(InputStream in) throws IOException {
+        StringBuilder message = new StringBuilder();
+		StringBuilder line = new StringBuilder();
+		int c;
         
 		// Read input until an empty line is sent
-        while ((line = in.readLine()) != null) {
-            if (line.isEmpty()) break;
-            message += line + '\n';
+        while ((c = in.read()) != -1) {
+			if (c == '\n') {
+				if (line.length() == 0) break;
+				message.append(line).append('\n');
+				line.setLength(0);
+				
+			} else if (c != '\r')
+				line.append((char) c);  // ISO-8859-1
+			
+			if (message.length() + line.length() > MAX_HEADER)
+				throw new IOException("Request header too large");
         }
         
-        return message;
+        return message.toString();
     }
 	
 	/**
-	 * Finds and gets the file with a name from a path.
+	 * Splits the header lines into their names and values. The names are 
+	 * lower-cased and repeated headers are joined with commas.
 	 * 
-	 * @param path directory where the file is located
-	 * @param filename filename
-	 * @return null if the file does not exist, the File if exists
-	 * @throws IllegalArgumentException If the path or the file are null or empty
+	 * @param header header lines separated by new line characters
+	 * @return the header values by their lower-case names
 	 */
-	public static File getFile(String path, String filename){
+	public static Map<String, String> parseHeaders(String header) {
+		Map<String, String> headers = new HashMap<>();
 		
-		// Check the path and file are valid
-		if (path == null || path.isEmpty())
-			throw new IllegalArgumentException("Invalid pathname");
+		for (String line : header.split("\n")) {
+			int colon = line.indexOf(':');
+			if (colon <= 0)
+				continue;  // malformed line
+			
+			String name = line.substring(0, colon).trim().toLowerCase(Locale.ROOT);
+			String value = line.substring(colon + 1).trim();
+			headers.merge(name, value, (a, b) -> a + ", " + b);
+		}
 		
-		if (filename == null || filename.isEmpty())
-			throw new IllegalArgumentException("Invalid filename");
+		return headers;
+	}
+	
+	/**
+	 * Decodes the percent-encoded octets of a URI component as UTF-8.
+	 * 
+	 * @param s string to decode
+	 * @param plusAsSpace true to decode '+' as a space, as in a query string
+	 * @return the decoded string
+	 * @throws IllegalArgumentException If an escape sequence is malformed
+	 */
+	public static String decode(String s, boolean plusAsSpace) {
 		
-		// avoid double '/' when join path+filename
-		String p = path;
-		if (!path.endsWith("/")) p = path + "/";
+		// Nothing to decode, avoid the copy
+		if (s.indexOf('%') == -1 && (!plusAsSpace || s.indexOf('+') == -1))
+			return s;
 		
-		String f = filename;
-		if (filename.startsWith("/")) f = filename.substring(1);
+		byte[] out = new byte[s.length()];
+		int n = 0;
 		
-		// Get the file with the absolute path
-		File file = new File(p + f);
-
-		// Check if the file exists. If the file exists as a directory, but is 
-		// requested as a file return null too
-		if (!file.exists() || (!filename.endsWith("/") && file.isDirectory()))
-			return null;		
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			
+			if (c == '%') {
+				if (i + 2 >= s.length())
+					throw new IllegalArgumentException("Malformed escape in " + s);
+				
+				int hi = Character.digit(s.charAt(i+1), 16);
+				int lo = Character.digit(s.charAt(i+2), 16);
+				if (hi == -1 || lo == -1)
+					throw new IllegalArgumentException("Malformed escape in " + s);
+				
+				out[n++] = (byte) ((hi << 4) | lo);
+				i += 2;
+				
+			} else if (c == '+' && plusAsSpace)
+				out[n++] = ' ';
+			else if (c < 0x80)
+				out[n++] = (byte) c;
+			else {
+				// Not encoded non ASCII character, keep it as UTF-8, the whole
+				// code point if it is a surrogate pair
+				int cp = s.codePointAt(i);
+				byte[] b = new String(Character.toChars(cp)).getBytes(StandardCharsets.UTF_8);
+				if (n + b.length > out.length)
+					out = Arrays.copyOf(out, out.length + b.length + 8);
+				System.arraycopy(b, 0, out, n, b.length);
+				n += b.length;
+				i += Character.charCount(cp) - 1;
+			}
+		}
 		
-		return file;
+		return new String(out, 0, n, StandardCharsets.UTF_8);
 	}
 	
 	/**
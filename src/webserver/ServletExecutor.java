@@ -0,0 +1,248 @@
+package webserver;
+
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the servlets in their own thread pool, so the connection workers are
+ * free while a servlet computes. Each servlet runs a limited number of requests
+ * at the same time and the rest are rejected, so a slow servlet cannot take the
+ * whole pool. A request that takes longer than its timeout fails without
+ * waiting for the servlet, which is interrupted.
+ *
+ * @author Ángel Miguélez Millos
+ */
+public class ServletExecutor {
+
+	private final ThreadPoolExecutor compute;		// runs the servlets
+	private final ExecutorService responders;	// sends the responses
+	private final TimerWheel timer;
+	private final int concurrency;				// requests per servlet at the same time
+
+	private final Map<String, Semaphore> bulkheads = new ConcurrentHashMap<>();
+	private final Map<String, Long> timeouts = new ConcurrentHashMap<>();  // servlet class or route -> timeout
+
+	/**
+	 * Servlet call, interrupted if it is still running when its request expires.
+	 */
+	private static class Call implements Runnable {
+
+		private final static int QUEUED = 0, RUNNING = 1, FINISHED = 2;
+
+		private final Callable<byte[]> servlet;
+		private final CompletableFuture<byte[]> result;
+		private final Semaphore permits;
+		private final Runnable cleanup;
+
+		private int state = QUEUED;
+		private Thread runner;
+
+		private Call(Callable<byte[]> servlet, CompletableFuture<byte[]> result, Semaphore permits,
+				Runnable cleanup) {
+			this.servlet = servlet;
+			this.result = result;
+			this.permits = permits;
+			this.cleanup = cleanup;
+		}
+
+		@Override
+		public void run() {
+			synchronized (this) {
+				if (state != QUEUED)
+					return;  // expired while queued
+				state = RUNNING;
+				runner = Thread.currentThread();
+			}
+
+			try {
+				result.complete(servlet.call());
+			} catch (Throwable e) {
+				result.completeExceptionally(e);
+			} finally {
+				synchronized (this) {
+					state = FINISHED;
+					runner = null;
+					Thread.interrupted();  // clear an interrupt that came too late
+				}
+				release();
+			}
+		}
+
+		/**
+		 * Stops the call, interrupting the servlet if it is running.
+		 */
+		private void cancel() {
+			synchronized (this) {
+				if (state == RUNNING) {
+					runner.interrupt();
+					return;
+				}
+				if (state == FINISHED)
+					return;
+				state = FINISHED;
+			}
+			release();  // it never ran
+		}
+
+		/**
+		 * Frees the servlet slot and the request resources.
+		 */
+		private void release() {
+			permits.release();
+			cleanup.run();
+		}
+	}
+
+	/**
+	 * Creates a new ServletExecutor.
+	 *
+	 * @param threads number of threads running servlets
+	 * @param concurrency max requests of a servlet running or queued at the same time
+	 * @param timer timer used to expire the requests
+	 */
+	public ServletExecutor(int threads, int concurrency, TimerWheel timer) {
+		this.timer = timer;
+		this.concurrency = concurrency;
+
+		compute = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<>(), threadFactory("servlet-"));
+		responders = Executors.newCachedThreadPool(threadFactory("servlet-responder-"));
+	}
+
+	/**
+	 * Runs a servlet in the pool. The returned future is completed with the
+	 * servlet response, with a RejectedExecutionException if the servlet runs
+	 * too many requests, with a TimeoutException if it takes longer than its
+	 * timeout or with the error of the servlet. It is completed in a servlet
+	 * or timer thread, so the response must be sent from a responder thread.
+	 *
+	 * @param className name of the servlet class, or route of a servlet instance
+	 * @param instance servlet registered for the route, null if it is given by its class
+	 * @param timeout milliseconds the servlet has to respond, unless it declares its own
+	 * @param servlet computes the response encoded as UTF-8
+	 * @param cleanup frees the request resources once the servlet does not run anymore
+	 * @return the response
+	 */
+	public CompletableFuture<byte[]> submit(String className, MiniServlet instance, long timeout, 
+			Callable<byte[]> servlet, Runnable cleanup) {
+		CompletableFuture<byte[]> result = new CompletableFuture<>();
+
+		// Reject the request if the servlet is full
+		Semaphore permits = bulkheads.computeIfAbsent(className, k -> new Semaphore(concurrency));
+		if (!permits.tryAcquire()) {
+			cleanup.run();
+			result.completeExceptionally(new RejectedExecutionException("Too many requests to " + className));
+			return result;
+		}
+
+		Call call = new Call(servlet, result, permits, cleanup);
+
+		try {
+			long t = getTimeout(className, instance, timeout);
+
+			// Expire the request, the servlet may keep running until it notices
+			if (t > 0) {
+				TimerWheel.Timeout deadline = timer.schedule(() -> {
+					if (result.completeExceptionally(new TimeoutException(className + " took more than " + t + " ms")))
+						call.cancel();
+				}, t);
+				result.whenComplete((body, e) -> deadline.cancel());
+			}
+
+			compute.execute(call);
+
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			call.cancel();
+			result.completeExceptionally(e);
+		}
+
+		return result;
+	}
+
+	/**
+	 * Gets the executor that sends the servlet responses.
+	 *
+	 * @return the responder threads
+	 */
+	public Executor getResponders() { return responders; }
+
+	/**
+	 * Gets the number of servlet calls waiting for a thread.
+	 *
+	 * @return the queued calls
+	 */
+	public int getQueueSize() { return compute.getQueue().size(); }
+
+	/**
+	 * Gets the number of threads running a servlet.
+	 *
+	 * @return the busy threads
+	 */
+	public int getActiveCount() { return compute.getActiveCount(); }
+
+	/**
+	 * Gets the number of threads running servlets.
+	 *
+	 * @return the size of the pool
+	 */
+	public int getThreads() { return compute.getMaximumPoolSize(); }
+
+	/**
+	 * Stops the pools, interrupting the servlets still running.
+	 */
+	public void close() {
+		compute.shutdownNow();
+		responders.shutdown();
+	}
+
+	/**
+	 * Gets the timeout of a servlet, asking an instance of it the first time.
+	 *
+	 * @param className name of the servlet class, or route of a servlet instance
+	 * @param instance servlet registered for the route, null if it is given by its class
+	 * @param timeout default timeout
+	 * @return the timeout in milliseconds, 0 if it has none
+	 * @throws ReflectiveOperationException If the class cannot be located or instantiated
+	 */
+	private long getTimeout(String className, MiniServlet instance, long timeout) 
+			throws ReflectiveOperationException {
+		Long t = timeouts.get(className);
+		if (t == null) {
+			MiniServlet servlet = ServerUtils.getServlet(className, instance);
+			t = servlet.getTimeout();
+			timeouts.put(className, t);
+		}
+
+		return t > 0 ? t : timeout;
+	}
+
+	/**
+	 * Creates a factory of threads named with a prefix and a number.
+	 *
+	 * @param prefix prefix of the names
+	 * @return the thread factory
+	 */
+	private static ThreadFactory threadFactory(String prefix) {
+		return new ThreadFactory() {
+			private final AtomicInteger n = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				return new Thread(r, prefix + n.incrementAndGet());
+			}
+		};
+	}
+}
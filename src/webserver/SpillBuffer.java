@@ -0,0 +1,140 @@
+package webserver;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Holds a request body in memory up to a limit and spills the rest to a
+ * temporary file, so big bodies do not fill the heap. The file is deleted
+ * when the buffer is closed.
+ *
+ * @author Ángel Miguélez Millos
+ */
+public class SpillBuffer implements Closeable {
+
+	private final int memoryLimit;	// bytes kept in memory
+	private final long maxLength;	// max bytes of the body
+
+	private byte[] memory = new byte[1024];
+	private int memoryLength;
+	private File spill;
+	private long length;
+
+	/**
+	 * Thrown when the body is longer than the max length.
+	 */
+	public static class TooLargeException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		private TooLargeException(long max) {
+			super("Body larger than " + max + " bytes");
+		}
+	}
+
+	/**
+	 * Creates a new SpillBuffer.
+	 *
+	 * @param memoryLimit bytes kept in memory before spilling to disk
+	 * @param maxLength max bytes of the body
+	 */
+	public SpillBuffer(int memoryLimit, long maxLength) {
+		this.memoryLimit = memoryLimit;
+		this.maxLength = maxLength;
+	}
+
+	/**
+	 * Reads a whole body into the buffer.
+	 *
+	 * @param in stream of the body, it is read until its end
+	 * @throws TooLargeException If the body is longer than the max length
+	 * @throws IOException If an I/O error occurs while reading or spilling
+	 */
+	public void readFrom(InputStream in) throws IOException {
+		byte[] buffer = new byte[8192];
+		OutputStream file = null;
+
+		try {
+			int n;
+			while ((n = in.read(buffer)) != -1) {
+				length += n;
+				if (length > maxLength)
+					throw new TooLargeException(maxLength);
+
+				// Keep it in memory while it fits
+				if (file == null && memoryLength + n <= memoryLimit) {
+					if (memoryLength + n > memory.length)
+						memory = Arrays.copyOf(memory, Math.min(memoryLimit,
+								Math.max(memory.length * 2, memoryLength + n)));
+					System.arraycopy(buffer, 0, memory, memoryLength, n);
+					memoryLength += n;
+					continue;
+				}
+
+				// Spill the rest to disk
+				if (file == null) {
+					spill = File.createTempFile("webserver-body", ".tmp");
+					file = new FileOutputStream(spill);
+				}
+				file.write(buffer, 0, n);
+			}
+
+		} finally {
+			if (file != null)
+				file.close();
+		}
+	}
+
+	/**
+	 * Gets the length of the body.
+	 *
+	 * @return the length in bytes
+	 */
+	public long length() { return length; }
+
+	/**
+	 * Gets a stream to read the body from the start.
+	 *
+	 * @return the stream of the body
+	 * @throws IOException If the spilled file cannot be opened
+	 */
+	public InputStream getInputStream() throws IOException {
+		InputStream mem = new ByteArrayInputStream(memory, 0, memoryLength);
+		if (spill == null)
+			return mem;
+
+		return new SequenceInputStream(mem, new FileInputStream(spill));
+	}
+
+	/**
+	 * Decodes the body as text. Only for bodies kept in memory.
+	 *
+	 * @param charset charset of the body
+	 * @return the body as text
+	 * @throws IllegalStateException If the body was spilled to disk
+	 */
+	public String toString(Charset charset) {
+		if (spill != null)
+			throw new IllegalStateException("Body spilled to disk");
+
+		return new String(memory, 0, memoryLength, charset);
+	}
+
+	/**
+	 * Deletes the spilled file, if any.
+	 */
+	@Override
+	public void close() {
+		if (spill != null && !spill.delete())
+			spill.deleteOnExit();
+		spill = null;
+	}
+}
@@ -0,0 +1,39 @@
+package webserver;
+
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.Map;
+
+/**
+ * Servlet that writes its GET response as it creates it, so the client gets 
+ * the first parts before the whole response is done.
+ * 
+ * @author Ángel Miguélez Millos
+ */
+public interface StreamingServlet extends MiniServlet {
+
+	/**
+	 * Writes the response to a GET. A flush sends what was written so far to
+	 * the client. Once the request expires, the writes fail.
+	 * 
+	 * @param parameters dynamic arguments
+	 * @param out writer of the html dynamic message
+	 * @throws Exception If the response cannot be created
+	 */
+	public void doGet(Map<String, String> parameters, Writer out) throws Exception;
+	
+	/**
+	 * Gets the whole response to a GET.
+	 * 
+	 * @param parameters dynamic arguments
+	 * @return the html dynamic message
+	 * @throws Exception If the response cannot be created
+	 */
+	@Override
+	public default String doGet(Map<String, String> parameters) throws Exception {
+		StringWriter out = new StringWriter();
+		doGet(parameters, out);
+		return out.toString();
+	}
+	
+}
@@ -0,0 +1,61 @@
+package webserver;
+
+import java.io.InterruptedIOException;
+
+/**
+ * Bandwidth limits of a connection: its own rate and its share of the global
+ * one. The requests of an HTTP/2 connection share its throttle.
+ *
+ * @author Ángel Miguélez Millos
+ */
+public class Throttle {
+
+	private final BandwidthScheduler global;	// null to not limit nor count
+	private final TokenBucket connection;		// null for no limit
+	private final long smallSize;
+
+	/**
+	 * Creates a new Throttle.
+	 *
+	 * @param global bandwidth of the server, null to not limit nor count the bytes
+	 * @param settings rate of the connection and size of the small responses
+	 */
+	public Throttle(BandwidthScheduler global, ThrottleSettings settings) {
+		this.global = global;
+		this.connection = settings.getConnectionRate() == 0 ? null : new TokenBucket(settings.getConnectionRate());
+		this.smallSize = settings.getSmallSize();
+	}
+
+	/**
+	 * Gets the class of a response.
+	 *
+	 * @param length length of the body
+	 * @return SMALL if it goes ahead of the big downloads, BULK otherwise
+	 */
+	public BandwidthScheduler.Traffic classify(long length) {
+		return length <= smallSize ? BandwidthScheduler.Traffic.SMALL : BandwidthScheduler.Traffic.BULK;
+	}
+
+	/**
+	 * Checks if the writes may wait.
+	 *
+	 * @return true if there is a rate limit
+	 */
+	public boolean isLimited() {
+		return connection != null || (global != null && global.isLimited());
+	}
+
+	/**
+	 * Waits until a write of the body can be sent.
+	 *
+	 * @param t class of the response
+	 * @param n bytes to write
+	 * @throws InterruptedIOException If interrupted while waiting
+	 */
+	public void acquire(BandwidthScheduler.Traffic t, long n) throws InterruptedIOException {
+		if (connection != null)
+			connection.acquire(n);
+		if (global != null)
+			global.acquire(t, n);
+	}
+}
@@ -0,0 +1,58 @@
+package webserver;
+
+/**
+ * Limits of the bandwidth used by the response bodies.
+ *
+ * @author Ángel Miguélez Millos
+ */
+public class ThrottleSettings {
+
+	private final long rate;			// bytes/s of all the connections, 0 for no limit
+	private final long connectionRate;	// bytes/s of each connection, 0 for no limit
+	private final long smallSize;		// max bytes of a response body sent ahead of the bulk ones
+	private final int smallWeight;		// share of the small responses against the bulk ones
+
+	/**
+	 * Creates a new ThrottleSettings.
+	 *
+	 * @param rate bytes per second sent to all the clients, 0 for no limit
+	 * @param connectionRate bytes per second sent to each connection, 0 for no limit
+	 * @param smallSize max bytes of a response body that is not a bulk transfer
+	 * @param smallWeight bytes of small responses sent for each byte of bulk
+	 * transfers when both wait
+	 * @throws IllegalArgumentException If any of the values is out of range
+	 */
+	public ThrottleSettings(long rate, long connectionRate, long smallSize, int smallWeight) {
+		if (rate < 0 || connectionRate < 0 || smallSize < 0 || smallWeight < 1)
+			throw new IllegalArgumentException("Invalid throttle settings");
+
+		this.rate = rate;
+		this.connectionRate = connectionRate;
+		this.smallSize = smallSize;
+		this.smallWeight = smallWeight;
+	}
+
+	/**
+	 * Gets the bytes per second sent to all the clients.
+	 * @return the global rate, 0 if unlimited
+	 */
+	public long getRate() { return rate; }
+
+	/**
+	 * Gets the bytes per second sent to each connection.
+	 * @return the connection rate, 0 if unlimited
+	 */
+	public long getConnectionRate() { return connectionRate; }
+
+	/**
+	 * Gets the max length of a body that is not a bulk transfer.
+	 * @return the size in bytes
+	 */
+	public long getSmallSize() { return smallSize; }
+
+	/**
+	 * Gets the share of the small responses against the bulk ones.
+	 * @return the weight of the small responses, the bulk ones weigh 1
+	 */
+	public int getSmallWeight() { return smallWeight; }
+}
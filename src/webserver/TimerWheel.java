@@ -0,0 +1,155 @@
+package webserver;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashed timer wheel used to expire connection deadlines. Scheduling and
+ * cancelling are O(1) and a single thread advances the wheel, so thousands of
+ * connections can hold a deadline without a thread or a heap entry each.
+ *
+ * @author Ángel Miguélez Millos
+ */
+public class TimerWheel {
+
+	private final long tickNanos;				// duration of a tick
+	private final ArrayDeque<Timeout>[] wheel;	// buckets, only touched by the worker
+	private final int mask;
+	private final Queue<Timeout> pending = new ConcurrentLinkedQueue<>();
+	private final Thread worker;
+
+	private volatile boolean running = true;
+	private long tick;  // ticks elapsed since the start
+
+	/**
+	 * Handle of a scheduled task.
+	 */
+	public static class Timeout {
+
+		private final Runnable task;
+		private final long deadline;  // nanoTime of expiration
+		private long rounds;		  // full turns left before expiring
+		private volatile boolean cancelled;
+
+		private Timeout(Runnable task, long deadline) {
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		/**
+		 * Cancels the task. Nothing happens if it already expired.
+		 */
+		public void cancel() { cancelled = true; }
+
+		/**
+		 * Checks if the task was cancelled.
+		 *
+		 * @return true if the task was cancelled
+		 */
+		public boolean isCancelled() { return cancelled; }
+	}
+
+	/**
+	 * Creates and starts a new TimerWheel.
+	 *
+	 * @param tickMillis duration of a tick in milliseconds, the precision of the timer
+	 * @param size number of buckets, rounded up to a power of two
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public TimerWheel(long tickMillis, int size) {
+		if (tickMillis <= 0 || size <= 0)
+			throw new IllegalArgumentException("Invalid tick or wheel size");
+
+		// Round the size to a power of two to replace the modulo by a mask
+		int n = Integer.highestOneBit(size);
+		if (n < size) n <<= 1;
+
+		tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+		wheel = new ArrayDeque[n];
+		for (int i = 0; i < n; i++)
+			wheel[i] = new ArrayDeque<>();
+		mask = n - 1;
+
+		worker = new Thread(this::work, "timer-wheel");
+		worker.setDaemon(true);
+		worker.start();
+	}
+
+	/**
+	 * Schedules a task to run once after a delay. The task runs in the timer
+	 * thread, so it must be short (i.e. close a socket).
+	 *
+	 * @param task task to run
+	 * @param delayMillis delay in milliseconds
+	 * @return the handle to cancel the task
+	 */
+	public Timeout schedule(Runnable task, long delayMillis) {
+		Timeout t = new Timeout(task, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis));
+		pending.add(t);
+		return t;
+	}
+
+	/**
+	 * Stops the timer. Pending tasks are discarded.
+	 */
+	public void stop() {
+		running = false;
+		worker.interrupt();
+	}
+
+	/**
+	 * Advances the wheel one bucket per tick and runs the expired tasks.
+	 */
+	private void work() {
+		final long start = System.nanoTime();
+
+		while (running) {
+
+			// Sleep until the next tick
+			long next = start + (tick + 1) * tickNanos;
+			long sleep = next - System.nanoTime();
+			if (sleep > 0) {
+				try {
+					TimeUnit.NANOSECONDS.sleep(sleep);
+				} catch (InterruptedException e) {
+					if (!running) return;
+				}
+			}
+
+			// Move the new tasks into their buckets
+			Timeout t;
+			while ((t = pending.poll()) != null) {
+				if (t.cancelled) continue;
+
+				long ticks = Math.max((t.deadline - start) / tickNanos, tick);
+				t.rounds = (ticks - tick) / wheel.length;
+				wheel[(int) (ticks & mask)].add(t);
+			}
+
+			// Expire the tasks of the current bucket
+			Iterator<Timeout> it = wheel[(int) (tick & mask)].iterator();
+			while (it.hasNext()) {
+				t = it.next();
+
+				if (t.cancelled)
+					it.remove();
+				else if (t.rounds > 0)
+					t.rounds--;
+				else {
+					it.remove();
+					try {
+						t.task.run();
+					} catch (RuntimeException e) {
+						System.out.println("Error in timer task: " + e.getMessage());
+						e.printStackTrace();
+					}
+				}
+			}
+
+			tick++;
+		}
+	}
+}
@@ -0,0 +1,466 @@
+package webserver;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+
+/**
+ * Server side of a TLS connection driven by an SSLEngine over the streams of
+ * a socket. The plain data is read and written through its own streams. The
+ * engine only works on buffers, so the same connection can be driven by a
+ * blocking socket or a channel; the buffers come from pools and go back when
+ * the connection is closed.
+ *
+ * The written data is kept until it fills a record or is flushed, so a
+ * response header travels in the same record as the start of its body. A
+ * file can be sent reading it into a direct buffer that is encrypted without
+ * copying it to the heap.
+ *
+ * @author Ángel Miguélez Millos
+ */
+public class TlsConnection {
+
+	private final static ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+	private final SSLEngine engine;
+	private final InputStream in;	// encrypted data from the client
+	private final OutputStream out;	// encrypted data to the client
+	private final BufferPool packets, applications, files;
+
+	// the reads and the writes can run in different threads
+	private final Object readLock = new Object(), writeLock = new Object();
+
+	private ByteBuffer netIn;	// records read and not decrypted, ready to get
+	private ByteBuffer appIn;	// data decrypted and not read, ready to get
+	private ByteBuffer netOut;	// record being sent
+	private ByteBuffer appOut;	// data written and not encrypted, ready to put
+
+	private volatile boolean handshaken;
+	private boolean inboundDone;	// the client closed its side
+	private volatile boolean closed;
+
+	private final Input input = new Input();
+	private final Output output = new Output();
+
+	/**
+	 * Plain data sent by the client.
+	 */
+	private class Input extends InputStream {
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0)
+				return 0;
+			if (!handshake())
+				return -1;
+
+			synchronized (readLock) {
+				while (!closed && !appIn.hasRemaining()) {
+					if (inboundDone)
+						return -1;
+
+					SSLEngineResult r = unwrap();
+					if (r == null || r.getStatus() == SSLEngineResult.Status.CLOSED) {
+						inboundDone = true;
+						continue;
+					}
+
+					// i.e. a key update, answered before reading more
+					if (r.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+						synchronized (writeLock) {
+							runHandshake();
+						}
+					}
+				}
+				if (closed)
+					return -1;
+
+				int n = Math.min(len, appIn.remaining());
+				appIn.get(b, off, n);
+				return n;
+			}
+		}
+
+		@Override
+		public int available() {
+			synchronized (readLock) {
+				return closed ? 0 : appIn.remaining();
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+
+	/**
+	 * Plain data sent to the client.
+	 */
+	public class Output extends OutputStream {
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (!handshake())
+				throw new EOFException("Connection closed by the client");
+
+			synchronized (writeLock) {
+				if (closed)
+					throw new IOException("Connection closed");
+
+				// Encrypt a record each time the buffer fills
+				while (len > 0) {
+					int n = Math.min(len, appOut.remaining());
+					appOut.put(b, off, n);
+					off += n;
+					len -= n;
+					if (!appOut.hasRemaining())
+						sendBuffered();
+				}
+			}
+		}
+
+		/**
+		 * Sends part of a file, reading it into direct buffers. The data
+		 * written before goes in the same records as the start of the file.
+		 *
+		 * @param channel file to send
+		 * @param position position of the first byte sent
+		 * @param count number of bytes sent
+		 * @throws EOFException If the file is shorter than expected
+		 * @throws IOException If an I/O error occurs
+		 */
+		public void transferFrom(FileChannel channel, long position, long count) throws IOException {
+			if (!handshake())
+				throw new EOFException("Connection closed by the client");
+
+			synchronized (writeLock) {
+				if (closed)
+					throw new IOException("Connection closed");
+
+				ByteBuffer file = files.acquire();
+				try {
+					while (count > 0) {
+						file.clear();
+						if (count < file.capacity())
+							file.limit((int) count);
+
+						int n = channel.read(file, position);
+						if (n < 0)
+							throw new EOFException("File shorter than expected");
+						position += n;
+						count -= n;
+
+						// Whole records, gathering the buffered data with the file
+						file.flip();
+						appOut.flip();
+						while (appOut.hasRemaining() || file.hasRemaining())
+							wrap(appOut, file);
+						appOut.clear();
+					}
+				} finally {
+					files.release(file);
+				}
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			synchronized (writeLock) {
+				if (closed)
+					return;
+				sendBuffered();
+				out.flush();
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			TlsConnection.this.close();
+		}
+	}
+
+	/**
+	 * Creates a new TlsConnection.
+	 *
+	 * @param engine engine in server mode
+	 * @param in stream of the encrypted data from the client
+	 * @param out stream of the encrypted data to the client
+	 * @param packets pool of the buffers of the encrypted records
+	 * @param applications pool of the buffers of the plain data
+	 * @param files pool of the direct buffers of the files sent
+	 */
+	public TlsConnection(SSLEngine engine, InputStream in, OutputStream out, BufferPool packets,
+			BufferPool applications, BufferPool files) {
+		this.engine = engine;
+		this.in = in;
+		this.out = out;
+		this.packets = packets;
+		this.applications = applications;
+		this.files = files;
+
+		// The input buffers start empty, ready to get
+		netIn = packets.acquire();
+		netIn.flip();
+		appIn = applications.acquire();
+		appIn.flip();
+		netOut = packets.acquire();
+		appOut = applications.acquire();
+	}
+
+	/**
+	 * Gets the stream of the plain data sent by the client.
+	 *
+	 * @return the input stream
+	 */
+	public InputStream getInputStream() { return input; }
+
+	/**
+	 * Gets the stream of the plain data sent to the client.
+	 *
+	 * @return the output stream
+	 */
+	public Output getOutputStream() { return output; }
+
+	/**
+	 * Sends the data written, the close notification and closes the streams.
+	 * The buffers go back to their pools.
+	 *
+	 * @throws IOException If an I/O error occurs
+	 */
+	public void close() throws IOException {
+		synchronized (readLock) {
+			synchronized (writeLock) {
+				if (closed)
+					return;
+
+				try {
+					if (handshaken) {
+						sendBuffered();
+						engine.closeOutbound();
+						while (!engine.isOutboundDone())
+							wrap(EMPTY);
+						out.flush();
+					}
+				} finally {
+					closed = true;
+					out.close();
+
+					packets.release(netIn);
+					packets.release(netOut);
+					applications.release(appIn);
+					applications.release(appOut);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Does the handshake if it was not done yet.
+	 *
+	 * @return false if the client closed the connection before finishing it
+	 * @throws IOException If the handshake fails
+	 */
+	private boolean handshake() throws IOException {
+		if (handshaken)
+			return true;
+
+		synchronized (readLock) {
+			synchronized (writeLock) {
+				if (handshaken)
+					return true;
+				if (closed)
+					return false;
+
+				engine.beginHandshake();
+				if (!runHandshake())
+					return false;
+				handshaken = true;
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Exchanges the handshake records until the engine needs no more. The
+	 * caller holds both locks.
+	 *
+	 * @return false if the client closed the connection
+	 * @throws IOException If the handshake fails
+	 */
+	private boolean runHandshake() throws IOException {
+		while (true) {
+			switch (engine.getHandshakeStatus()) {
+				case NEED_TASK:
+					runTasks();
+					break;
+
+				case NEED_WRAP:
+					wrap(EMPTY);
+					out.flush();
+					break;
+
+				case NEED_UNWRAP:
+					SSLEngineResult r = unwrap();
+					if (r == null || r.getStatus() == SSLEngineResult.Status.CLOSED)
+						return false;
+					break;
+
+				default:  // finished
+					return true;
+			}
+		}
+	}
+
+	/**
+	 * Encrypts the buffered data and sends it. The caller holds the write lock.
+	 *
+	 * @throws IOException If the connection is closed or an I/O error occurs
+	 */
+	private void sendBuffered() throws IOException {
+		appOut.flip();
+		try {
+			while (appOut.hasRemaining())
+				if (wrap(appOut).getStatus() == SSLEngineResult.Status.CLOSED)
+					throw new IOException("Connection closed");
+		} finally {
+			appOut.compact();
+		}
+	}
+
+	/**
+	 * Encrypts a record from the sources and sends it. The caller holds the
+	 * write lock.
+	 *
+	 * @param srcs plain data, consumed in order
+	 * @return the result of the engine
+	 * @throws IOException If an I/O error occurs
+	 */
+	private SSLEngineResult wrap(ByteBuffer... srcs) throws IOException {
+		while (true) {
+			netOut.clear();
+			SSLEngineResult r = engine.wrap(srcs, netOut);
+
+			// The record does not fit, the session needs bigger buffers
+			if (r.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+				ByteBuffer b = ByteBuffer.allocate(Math.max(engine.getSession().getPacketBufferSize(),
+						netOut.capacity() * 2));
+				packets.release(netOut);
+				netOut = b;
+				continue;
+			}
+
+			netOut.flip();
+			if (netOut.hasRemaining())
+				out.write(netOut.array(), netOut.arrayOffset(), netOut.limit());
+
+			if (r.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK)
+				runTasks();
+			return r;
+		}
+	}
+
+	/**
+	 * Decrypts a record into the input buffer, reading from the client until
+	 * a whole record is received. The caller holds the read lock.
+	 *
+	 * @return the result of the engine, null if the client closed the connection
+	 * @throws IOException If the record is not valid or an I/O error occurs
+	 */
+	private SSLEngineResult unwrap() throws IOException {
+		appIn.compact();
+		try {
+			while (true) {
+				SSLEngineResult r = engine.unwrap(netIn, appIn);
+
+				switch (r.getStatus()) {
+
+					// Incomplete record
+					case BUFFER_UNDERFLOW:
+						if (!readRecords())
+							return null;
+						break;
+
+					// The data does not fit, the session needs bigger buffers
+					case BUFFER_OVERFLOW:
+						ByteBuffer b = ByteBuffer.allocate(Math.max(engine.getSession().getApplicationBufferSize(),
+								appIn.capacity() * 2));
+						appIn.flip();
+						b.put(appIn);
+						applications.release(appIn);
+						appIn = b;
+						break;
+
+					default:
+						if (r.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK)
+							runTasks();
+						return r;
+				}
+			}
+		} finally {
+			appIn.flip();
+		}
+	}
+
+	/**
+	 * Reads encrypted data from the client.
+	 *
+	 * @return false if the client closed the connection
+	 * @throws IOException If an I/O error occurs
+	 */
+	private boolean readRecords() throws IOException {
+		netIn.compact();
+
+		// A record larger than the buffer
+		if (!netIn.hasRemaining()) {
+			ByteBuffer b = ByteBuffer.allocate(Math.max(engine.getSession().getPacketBufferSize(),
+					netIn.capacity() * 2));
+			netIn.flip();
+			b.put(netIn);
+			packets.release(netIn);
+			netIn = b;
+		}
+
+		int n = in.read(netIn.array(), netIn.arrayOffset() + netIn.position(), netIn.remaining());
+		if (n > 0)
+			netIn.position(netIn.position() + n);
+		netIn.flip();
+
+		if (n < 0) {
+			try {
+				engine.closeInbound();
+			} catch (SSLException e) {
+				// closed without notification, the response is delimited anyway
+			}
+			return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Runs the slow tasks of the handshake, i.e. checking a certificate.
+	 */
+	private void runTasks() {
+		Runnable task;
+		while ((task = engine.getDelegatedTask()) != null)
+			task.run();
+	}
+}
@@ -0,0 +1,102 @@
+package webserver;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+
+/**
+ * Server side TLS shared by the HTTPS connections: the SSLContext with the
+ * server key, its session cache and the buffer pools of the connections.
+ * A returning client resumes its session from the cache or from a ticket,
+ * so it skips the full handshake.
+ *
+ * @author Ángel Miguélez Millos
+ */
+public class TlsContext {
+
+	private final static int FILE_BUFFER_SIZE = 65536;	// file bytes read at once to encrypt
+	private final static int POOL_SIZE = 256;			// buffers of each kind kept
+
+	private final SSLContext context;
+	private final String[] protocols;
+
+	private final BufferPool packets;		// encrypted records
+	private final BufferPool applications;	// plain data
+	private final BufferPool files;			// direct, file data to encrypt
+
+	/**
+	 * Creates a new TlsContext loading the keystore.
+	 *
+	 * @param settings keystore, protocols and session settings
+	 * @throws IOException If the keystore cannot be read
+	 * @throws GeneralSecurityException If the keystore or its key are not valid,
+	 * or a protocol is not supported
+	 */
+	public TlsContext(TlsSettings settings) throws IOException, GeneralSecurityException {
+		char[] password = settings.getPassword() == null ? null : settings.getPassword().toCharArray();
+
+		// Stateless resumption, read when the first context is created. A
+		// client renegotiation would stop the response while it is written.
+		System.setProperty("jdk.tls.server.enableSessionTicketExtension",
+				String.valueOf(settings.isSessionTickets()));
+		System.setProperty("jdk.tls.rejectClientInitiatedRenegotiation", "true");
+
+		// Load the server key and certificate
+		KeyStore keystore = KeyStore.getInstance(settings.getKeystoreType());
+		try (InputStream in = new FileInputStream(settings.getKeystore())) {
+			keystore.load(in, password);
+		}
+
+		KeyManagerFactory keys = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+		keys.init(keystore, password);
+
+		context = SSLContext.getInstance("TLS");
+		context.init(keys.getKeyManagers(), null, null);
+
+		// Sessions kept to be resumed
+		SSLSessionContext sessions = context.getServerSessionContext();
+		sessions.setSessionCacheSize(settings.getSessionCacheSize());
+		sessions.setSessionTimeout(settings.getSessionTimeout());
+
+		protocols = settings.getProtocols();
+
+		// Size the buffers for the largest record
+		SSLSession session = createEngine().getSession();
+		packets = new BufferPool(session.getPacketBufferSize(), false, POOL_SIZE);
+		applications = new BufferPool(session.getApplicationBufferSize(), false, POOL_SIZE);
+		files = new BufferPool(FILE_BUFFER_SIZE, true, POOL_SIZE);
+	}
+
+	/**
+	 * Starts the server side of a TLS connection. The handshake is done on
+	 * the first read.
+	 *
+	 * @param in stream of the encrypted data from the client
+	 * @param out stream of the encrypted data to the client
+	 * @return the connection, to read and write plain data
+	 */
+	public TlsConnection open(InputStream in, OutputStream out) {
+		return new TlsConnection(createEngine(), in, out, packets, applications, files);
+	}
+
+	/**
+	 * Creates an engine in server mode with the enabled protocols.
+	 *
+	 * @return the engine
+	 * @throws IllegalArgumentException If a protocol is not supported
+	 */
+	private SSLEngine createEngine() {
+		SSLEngine engine = context.createSSLEngine();
+		engine.setUseClientMode(false);
+		engine.setEnabledProtocols(protocols);
+		return engine;
+	}
+}
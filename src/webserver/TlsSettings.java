@@ -0,0 +1,104 @@
+package webserver;
+
+/**
+ * HTTPS listener settings: port, keystore with the server certificate and
+ * session resumption.
+ * 
+ * @author Ángel Miguélez Millos
+ */
+public class TlsSettings {
+
+	private final int port;				// 0 disables HTTPS
+	private final String keystore;		// path to the keystore
+	private final String password;		// password of the keystore and its key
+	private final String keystoreType;	// i.e. PKCS12 or JKS
+	private final String[] protocols;	// enabled protocols
+	private final int sessionCacheSize;	// sessions kept to resume, 0 for no limit
+	private final int sessionTimeout;	// seconds a session can be resumed
+	private final boolean sessionTickets;	// resume without server state
+
+	/**
+	 * Creates a new TlsSettings.
+	 * 
+	 * @param port port of the HTTPS listener, 0 to disable it
+	 * @param keystore path to the keystore with the server key and certificate
+	 * @param password password of the keystore and its key
+	 * @param keystoreType type of the keystore
+	 * @param protocols enabled protocols, i.e. "TLSv1.3"
+	 * @param sessionCacheSize sessions kept to be resumed, 0 for no limit
+	 * @param sessionTimeout seconds a session can be resumed, 0 for no limit
+	 * @param sessionTickets true to resume the sessions with tickets kept by the clients
+	 * @throws IllegalArgumentException If a value is negative or the keystore 
+	 * is missing while enabled
+	 */
+	public TlsSettings(int port, String keystore, String password, String keystoreType, String[] protocols,
+			int sessionCacheSize, int sessionTimeout, boolean sessionTickets) {
+		if (port < 0 || sessionCacheSize < 0 || sessionTimeout < 0 || protocols.length == 0)
+			throw new IllegalArgumentException("Invalid TLS settings");
+		if (port > 0 && keystore == null)
+			throw new IllegalArgumentException("Missing TLS_KEYSTORE");
+
+		this.port = port;
+		this.keystore = keystore;
+		this.password = password;
+		this.keystoreType = keystoreType;
+		this.protocols = protocols.clone();
+		this.sessionCacheSize = sessionCacheSize;
+		this.sessionTimeout = sessionTimeout;
+		this.sessionTickets = sessionTickets;
+	}
+
+	/**
+	 * Gets if the HTTPS listener is enabled.
+	 * @return true if it has a port
+	 */
+	public boolean isEnabled() { return port > 0; }
+
+	/**
+	 * Gets the port of the HTTPS listener.
+	 * @return the port, 0 if disabled
+	 */
+	public int getPort() { return port; }
+
+	/**
+	 * Gets the path to the keystore.
+	 * @return the keystore path
+	 */
+	public String getKeystore() { return keystore; }
+
+	/**
+	 * Gets the password of the keystore and its key.
+	 * @return the password
+	 */
+	public String getPassword() { return password; }
+
+	/**
+	 * Gets the type of the keystore.
+	 * @return the keystore type
+	 */
+	public String getKeystoreType() { return keystoreType; }
+
+	/**
+	 * Gets the enabled protocols.
+	 * @return a copy of the protocols
+	 */
+	public String[] getProtocols() { return protocols.clone(); }
+
+	/**
+	 * Gets the number of sessions kept to be resumed.
+	 * @return the session cache size, 0 for no limit
+	 */
+	public int getSessionCacheSize() { return sessionCacheSize; }
+
+	/**
+	 * Gets the time a session can be resumed.
+	 * @return the session timeout in seconds, 0 for no limit
+	 */
+	public int getSessionTimeout() { return sessionTimeout; }
+
+	/**
+	 * Gets if the sessions are resumed with tickets.
+	 * @return true if the tickets are enabled
+	 */
+	public boolean isSessionTickets() { return sessionTickets; }
+}
@@ -0,0 +1,97 @@
+package webserver;
+
+import java.io.InterruptedIOException;
+
+/**
+ * Token bucket that limits a rate of bytes. The tokens come at the rate up to
+ * a burst of 100 ms, and a write takes as many as its bytes. A write bigger
+ * than the tokens left goes into debt, paid by the next ones, so a write of
+ * any size waits only until the bucket is not empty.
+ *
+ * @author Ángel Miguélez Millos
+ */
+public class TokenBucket {
+
+	private final static long BURST_MS = 100;	// ms of tokens kept at most
+	private final static long MIN_BURST = 16384;
+
+	private long rate;		// bytes per second
+	private long burst;		// max tokens
+	private double tokens;	// negative when in debt
+	private long last;		// nanoTime of the last refill
+
+	/**
+	 * Creates a new TokenBucket, full.
+	 *
+	 * @param rate bytes per second, more than 0
+	 */
+	public TokenBucket(long rate) {
+		last = System.nanoTime();
+		setRate(rate);
+		tokens = burst;
+	}
+
+	/**
+	 * Changes the rate, keeping the tokens.
+	 *
+	 * @param rate bytes per second, more than 0
+	 */
+	public synchronized void setRate(long rate) {
+		if (rate <= 0)
+			throw new IllegalArgumentException("Invalid rate: " + rate);
+
+		refill();
+		this.rate = rate;
+		burst = Math.max(rate * BURST_MS / 1000, MIN_BURST);
+		tokens = Math.min(tokens, burst);
+	}
+
+	/**
+	 * Waits until the bucket is not empty and takes the tokens of a write.
+	 *
+	 * @param n bytes to write
+	 * @throws InterruptedIOException If interrupted while waiting
+	 */
+	public synchronized void acquire(long n) throws InterruptedIOException {
+		long wait;
+		while ((wait = waitMillis()) > 0) {
+			try {
+				wait(wait);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while throttled");
+			}
+		}
+		take(n);
+	}
+
+	/**
+	 * Gets the time until the bucket is not empty.
+	 *
+	 * @return milliseconds to wait, 0 if there are tokens
+	 */
+	synchronized long waitMillis() {
+		refill();
+		if (tokens > 0)
+			return 0;
+		return (long) Math.ceil((1 - tokens) * 1000 / rate);
+	}
+
+	/**
+	 * Takes the tokens of a write, going into debt if there are not enough.
+	 *
+	 * @param n bytes to write
+	 */
+	synchronized void take(long n) {
+		tokens -= n;
+	}
+
+	/**
+	 * Adds the tokens come since the last refill.
+	 */
+	private void refill() {
+		long now = System.nanoTime();
+		tokens = Math.min(burst, tokens + (now - last) * rate / 1e9);
+		last = now;
+	}
+}
@@ -0,0 +1,49 @@
+package webserver;
+
+/**
+ * Timing of the requests, sent to the client and written into the logs.
+ *
+ * @author Ángel Miguélez Millos
+ */
+public class TraceSettings {
+
+	private final boolean serverTiming;	// send the Server-Timing header
+	private final boolean logDuration;	// write the duration into the access and error logs
+	private final long slowThreshold;	// ms of a request logged as slow, 0 disables it
+
+	/**
+	 * Creates a new TraceSettings.
+	 *
+	 * @param serverTiming true to send the time of each phase in a Server-Timing header
+	 * @param logDuration true to write the duration of each request into the logs
+	 * @param slowThreshold milliseconds of a request to write it into the slow
+	 * requests log, 0 to disable it
+	 * @throws IllegalArgumentException If the threshold is negative
+	 */
+	public TraceSettings(boolean serverTiming, boolean logDuration, long slowThreshold) {
+		if (slowThreshold < 0)
+			throw new IllegalArgumentException("Invalid trace settings");
+
+		this.serverTiming = serverTiming;
+		this.logDuration = logDuration;
+		this.slowThreshold = slowThreshold;
+	}
+
+	/**
+	 * Gets if the Server-Timing header is sent.
+	 * @return true if sent
+	 */
+	public boolean isServerTiming() { return serverTiming; }
+
+	/**
+	 * Gets if the duration of the requests is logged.
+	 * @return true if logged
+	 */
+	public boolean isLogDuration() { return logDuration; }
+
+	/**
+	 * Gets the duration of a request logged as slow.
+	 * @return the threshold in milliseconds, 0 if disabled
+	 */
+	public long getSlowThreshold() { return slowThreshold; }
+}
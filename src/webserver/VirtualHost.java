@@ -0,0 +1,88 @@
+package webserver;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Site served for a host name: its resources directory, default file and
+ * listing policy. The default host answers the requests whose Host header
+ * does not match any other.
+ * 
+ * @author Ángel Miguélez Millos
+ */
+public class VirtualHost {
+
+	private final String name;			// lower-case host name, null for the default host
+	private final List<String> aliases;	// other lower-case names of the host
+	private final String dir, dirIndex;	// resources path and default file
+	private final boolean allow;
+
+	/**
+	 * Creates a new VirtualHost.
+	 * 
+	 * @param name host name, null for the default host
+	 * @param aliases other names of the host
+	 * @param dir path to the resources directory
+	 * @param dirIndex default file when a directory is requested
+	 * @param allow true if the directories can be listed
+	 * @throws IllegalArgumentException If a name is empty or has a port or path
+	 */
+	public VirtualHost(String name, List<String> aliases, String dir, String dirIndex, boolean allow) {
+		if (name != null)
+			checkName(name);
+		for (String alias : aliases)
+			checkName(alias);
+
+		this.name = name == null ? null : name.toLowerCase(Locale.ROOT);
+		List<String> lower = new ArrayList<>();
+		for (String alias : aliases)
+			lower.add(alias.toLowerCase(Locale.ROOT));
+		this.aliases = Collections.unmodifiableList(lower);
+		this.dir = dir;
+		this.dirIndex = dirIndex;
+		this.allow = allow;
+	}
+
+	/**
+	 * Checks a host name.
+	 * 
+	 * @param name host name
+	 * @throws IllegalArgumentException If it is empty or has a port or path
+	 */
+	private static void checkName(String name) {
+		if (name.isEmpty() || name.contains(":") || name.contains("/") || name.endsWith("."))
+			throw new IllegalArgumentException("Invalid host name: " + name);
+	}
+
+	/**
+	 * Gets the host name.
+	 * @return the lower-case host name, null for the default host
+	 */
+	public String getName() { return name; }
+
+	/**
+	 * Gets the other names of the host.
+	 * @return unmodifiable list of the lower-case aliases
+	 */
+	public List<String> getAliases() { return aliases; }
+
+	/**
+	 * Gets the path to the resources directory.
+	 * @return the resources directory
+	 */
+	public String getDir() { return dir; }
+
+	/**
+	 * Gets the default file when a directory is requested.
+	 * @return the default filename
+	 */
+	public String getDirIndex() { return dirIndex; }
+
+	/**
+	 * Gets the allow value.
+	 * @return true if the directories can be listed
+	 */
+	public boolean isAllow() { return allow; }
+}
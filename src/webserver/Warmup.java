@@ -0,0 +1,311 @@
+package webserver;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Warms up the server before its listeners open, so the first clients are not
+ * served by a cold server. It walks the resources directory of every host
+ * resolving its paths, which fills the path caches with the metadata and
+ * MIME type of the files, reads the small files into the page cache of the
+ * system and processes synthetic requests, so the request path is compiled
+ * and its classes are loaded.
+ *
+ * The synthetic requests only ask for files, directories and errors. The
+ * servlets are not called, their responses would fill the response caches.
+ *
+ * @author Ángel Miguélez Millos
+ */
+public class Warmup {
+
+	private final static int MAX_REQUESTED = 64;			// distinct files requested
+	private final static long MAX_REQUESTED_SIZE = 65536;	// bytes of a file requested
+	private final static int READ_BUFFER_SIZE = 65536;		// file bytes read at once to preload
+
+	// Discards the synthetic responses
+	private final static OutputStream DISCARD = new OutputStream() {
+		@Override
+		public void write(int b) { }
+
+		@Override
+		public void write(byte[] b, int off, int len) { }
+	};
+
+	// Sends the synthetic responses without limit nor counting them
+	private final static Throttle UNTHROTTLED = new Throttle(null, new ThrottleSettings(0, 0, 0, 1));
+
+	private final ServerConfig config;
+	private final HostTable hosts;
+	private final ServletExecutor servlets;
+	private final WarmupSettings settings;
+
+	private final List<Path> files = new ArrayList<>();			// files resolved, to preload
+	private final List<String> requests = new ArrayList<>();	// synthetic requests
+	private int paths;
+	private int preloaded;
+	private long preloadedBytes;
+
+	/**
+	 * Creates a new Warmup.
+	 *
+	 * @param config server configuration
+	 * @param hosts sites served, with their resolvers
+	 * @param servlets servlet executor, passed to the request handlers
+	 * @param settings files preloaded and requests processed
+	 */
+	public Warmup(ServerConfig config, HostTable hosts, ServletExecutor servlets, WarmupSettings settings) {
+		this.config = config;
+		this.hosts = hosts;
+		this.servlets = servlets;
+		this.settings = settings;
+	}
+
+	/**
+	 * Runs the phases of the warm-up and reports how long each one took. A
+	 * phase that fails is reported and the next one runs anyway.
+	 */
+	public void run() {
+		long start = System.nanoTime();
+
+		// Fill the path caches
+		List<HostContext> all = new ArrayList<>();
+		all.add(hosts.getDefault());
+		all.addAll(hosts.getHosts());
+		for (HostContext h : all) {
+			try {
+				resolveAll(h);
+			} catch (IOException e) {
+				System.out.println("Error warming up " + h.getHost().getDir() + ": " + e.getMessage());
+			}
+		}
+		long resolved = System.nanoTime();
+
+		// Read the small files into the page cache
+		if (settings.getPreloadSize() > 0)
+			preload();
+		long loaded = System.nanoTime();
+
+		// Process the synthetic requests
+		int processed = 0;
+		if (settings.getRequests() > 0 && !requests.isEmpty()) {
+			try {
+				processed = process();
+			} catch (IOException | RuntimeException e) {
+				System.out.println("Error: warmup request failed");
+				e.printStackTrace();
+			}
+		}
+		long end = System.nanoTime();
+
+		System.out.println("Warmup: " + paths + " paths resolved in " + millis(start, resolved) + " ms, "
+				+ preloaded + " files (" + preloadedBytes + " bytes) preloaded in " + millis(resolved, loaded)
+				+ " ms, " + processed + " requests in " + millis(loaded, end) + " ms");
+	}
+
+	/**
+	 * Resolves every file and directory under the resources directory of a
+	 * host, up to the size of its path cache. The files are kept to preload
+	 * and some of them to request.
+	 *
+	 * @param h host
+	 * @throws IOException If an I/O error occurs when walking the directory
+	 */
+	private void resolveAll(HostContext h) throws IOException {
+		Path root = Paths.get(h.getHost().getDir()).toAbsolutePath().normalize();
+		PathResolver resolver = h.getResolver();
+		String name = h.getHost().getName();
+		int max = config.getPathCacheSize();
+		int[] count = { 0 };
+		int base = requests.size();
+
+		// Errors of the host, once
+		addRequest("GET", "/warmup-not-found", name);
+		addRequest("GET", "/%zz", name);
+
+		Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes attrs) {
+				return visit(d, true) ? FileVisitResult.CONTINUE : FileVisitResult.TERMINATE;
+			}
+
+			@Override
+			public FileVisitResult visitFile(Path f, BasicFileAttributes attrs) {
+				return visit(f, false) ? FileVisitResult.CONTINUE : FileVisitResult.TERMINATE;
+			}
+
+			@Override
+			public FileVisitResult visitFileFailed(Path f, IOException e) {
+				return FileVisitResult.CONTINUE;  // unreadable, skip it
+			}
+
+			/**
+			 * Resolves a path, returns false when the cache is full.
+			 */
+			private boolean visit(Path p, boolean dir) {
+				if (count[0] >= max)
+					return false;
+
+				String uri = toUri(root.relativize(p), dir);
+				PathResolver.Entry e;
+				try {
+					e = resolver.resolve(uri);
+				} catch (IllegalArgumentException ex) {
+					return true;  // name that cannot be requested
+				}
+				count[0]++;
+				paths++;
+
+				// Directories and small files are requested
+				switch (e.getKind()) {
+					case FILE:
+						files.add(p);
+						if (e.getLength() <= MAX_REQUESTED_SIZE && requests.size() - base < MAX_REQUESTED) {
+							addRequest("GET", uri, name);
+							addRequest("HEAD", uri, name);
+						}
+						break;
+
+					case INDEX:
+					case LISTING:
+						if (requests.size() - base < MAX_REQUESTED)
+							addRequest("GET", uri, name);
+						break;
+
+					default:
+				}
+				return true;
+			}
+		});
+	}
+
+	/**
+	 * Reads the files into the page cache of the system, skipping the big
+	 * ones, until the max bytes are read.
+	 */
+	private void preload() {
+		ByteBuffer buffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+
+		for (Path p : files) {
+			try (FileChannel channel = FileChannel.open(p, StandardOpenOption.READ)) {
+				long size = channel.size();
+				if (size > settings.getPreloadSize())
+					continue;
+				if (preloadedBytes + size > settings.getPreloadTotal())
+					break;
+
+				// Read the whole file, the data is not kept
+				long read = 0;
+				int n;
+				buffer.clear();
+				while ((n = channel.read(buffer)) > 0) {
+					read += n;
+					buffer.clear();
+				}
+
+				preloaded++;
+				preloadedBytes += read;
+
+			} catch (IOException e) {
+				System.out.println("Error preloading " + p + ": " + e.getMessage());  // skip it
+			}
+		}
+	}
+
+	/**
+	 * Processes the synthetic requests in turn, as a connection would,
+	 * discarding the responses. They are not logged.
+	 *
+	 * @return the number of requests processed
+	 * @throws IOException If a request cannot be read
+	 */
+	private int process() throws IOException {
+		List<byte[]> raw = new ArrayList<>();
+		for (String r : requests)
+			raw.add(r.getBytes(StandardCharsets.ISO_8859_1));
+
+		InputStream noBody = new ByteArrayInputStream(new byte[0]);
+		int n = settings.getRequests();
+
+		for (int i = 0; i < n; i++) {
+			String message = ServerUtils.readInput(new ByteArrayInputStream(raw.get(i % raw.size())));
+			RequestTrace trace = RequestTrace.acquire();
+			HttpRequestHandler handler = new HttpRequestHandler(DISCARD, noBody, config, hosts, servlets, trace,
+					UNTHROTTLED);
+			handler.processMessage(message).join();
+			RequestTrace.release(trace);
+		}
+
+		return n;
+	}
+
+	/**
+	 * Adds a synthetic request.
+	 *
+	 * @param method method of the request
+	 * @param uri URI requested
+	 * @param host name of the host, null for the default one
+	 */
+	private void addRequest(String method, String uri, String host) {
+		requests.add(method + " " + uri + " HTTP/1.1\r\n"
+				+ (host == null ? "" : "Host: " + host + "\r\n")
+				+ "User-Agent: warmup\r\n\r\n");
+	}
+
+	/**
+	 * Percent-encodes a path relative to the root as a request URI.
+	 *
+	 * @param relative relative path
+	 * @param dir true to end the URI with '/'
+	 * @return the URI, starting with '/'
+	 */
+	private static String toUri(Path relative, boolean dir) {
+		StringBuilder uri = new StringBuilder("/");
+
+		for (Path segment : relative) {
+			if (segment.toString().isEmpty())
+				continue;
+
+			for (byte b : segment.toString().getBytes(StandardCharsets.UTF_8)) {
+				char c = (char) (b & 0xFF);
+				if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+						|| c == '-' || c == '.' || c == '_' || c == '~')
+					uri.append(c);
+				else
+					uri.append('%').append(Character.toUpperCase(Character.forDigit(c >> 4, 16)))
+							.append(Character.toUpperCase(Character.forDigit(c & 0xF, 16)));
+			}
+			uri.append('/');
+		}
+
+		// Only the directories end with '/'
+		if (!dir && uri.length() > 1)
+			uri.setLength(uri.length() - 1);
+		return uri.toString();
+	}
+
+	/**
+	 * Gets the milliseconds between two times.
+	 *
+	 * @param from start, in nanoseconds
+	 * @param to end, in nanoseconds
+	 * @return the milliseconds elapsed
+	 */
+	static long millis(long from, long to) {
+		return TimeUnit.NANOSECONDS.toMillis(to - from);
+	}
+}
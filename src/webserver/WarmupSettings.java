@@ -0,0 +1,57 @@
+package webserver;
+
+/**
+ * Warm-up run on start, before the listeners open.
+ *
+ * @author Ángel Miguélez Millos
+ */
+public class WarmupSettings {
+
+	private final boolean enabled;
+	private final long preloadSize;		// max bytes of a file read into the page cache, 0 disables it
+	private final long preloadTotal;	// max bytes read into the page cache
+	private final int requests;			// synthetic requests processed
+
+	/**
+	 * Creates a new WarmupSettings.
+	 *
+	 * @param enabled true to warm up the server on start
+	 * @param preloadSize max bytes of a file read into the page cache, 0 to disable it
+	 * @param preloadTotal max bytes read into the page cache among all the files
+	 * @param requests synthetic requests processed, 0 to disable them
+	 * @throws IllegalArgumentException If any of the values is negative
+	 */
+	public WarmupSettings(boolean enabled, long preloadSize, long preloadTotal, int requests) {
+		if (preloadSize < 0 || preloadTotal < 0 || requests < 0)
+			throw new IllegalArgumentException("Invalid warmup settings");
+
+		this.enabled = enabled;
+		this.preloadSize = preloadSize;
+		this.preloadTotal = preloadTotal;
+		this.requests = requests;
+	}
+
+	/**
+	 * Gets if the server is warmed up on start.
+	 * @return true if enabled
+	 */
+	public boolean isEnabled() { return enabled; }
+
+	/**
+	 * Gets the size of the largest file read into the page cache.
+	 * @return the max size in bytes, 0 if disabled
+	 */
+	public long getPreloadSize() { return preloadSize; }
+
+	/**
+	 * Gets the bytes read into the page cache among all the files.
+	 * @return the max bytes read
+	 */
+	public long getPreloadTotal() { return preloadTotal; }
+
+	/**
+	 * Gets the number of synthetic requests processed.
+	 * @return the number of requests, 0 if disabled
+	 */
+	public int getRequests() { return requests; }
+}
@@ -3,133 +3,742 @@ package webserver;
 import java.net.*;
 import java.io.*;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
- * Creates and runs an http server using sockets and with the properties specified 
+ * Creates and runs an http server using sockets and with the properties specified
  * in a configuration file.
- * 
+ *
+ * It can also be embedded: a Builder sets the properties by code, on top of 
+ * the file if there is one, the servlet instances, the executor of the 
+ * connections and the sinks of the logs. start() and stop() run in the 
+ * background and complete their futures once the server listens or is 
+ * stopped, and the port 0 binds any free one, so a test can run its own 
+ * server in process.
+ *
  * @author Ángel Miguélez Millos
  */
 public class WebServer {
-    		
+
+	private final static String CONFIG = "config.properties";
+
 	private final String WD;  // working directory
-	
-	private int port;
-	private String dir, dir_index;	// default resources path and file
-	private boolean allow;
-	private String log_index;  // default log files path
-	
+	private final String configFile;  // path of the configuration file, null if there is none
+	private final Properties overrides;  // properties set by code, with the defaults
+	private final Map<String, MiniServlet> handlers;  // route -> servlet instance
+	private final ExecutorService executor;  // runs the connections, null for the acceptor workers
+	private final List<LogSink> sinks;
+	private final long started;  // nanoTime when the server was created
+	private final long configLoaded;  // nanoTime when the configuration was loaded
+
+	// current configuration, swapped on reload
+	private final AtomicReference<ServerConfig> config = new AtomicReference<>();
+	private final AtomicReference<HostTable> hosts = new AtomicReference<>();
+	private ServletExecutor servlets;
+	private BandwidthScheduler bandwidth;  // shared by all the connections
+	private long configModified;
+
+	// connections being served
+	private final Set<WebServerThread> connections = ConcurrentHashMap.newKeySet();
+
+	private final AtomicBoolean running = new AtomicBoolean(true);  // until the shutdown starts
+	private final AtomicBoolean opened = new AtomicBoolean();  // started once
+	private final CompletableFuture<Void> stopped = new CompletableFuture<>();  // completed by the shutdown
+	private volatile InetSocketAddress address, tlsAddress;  // bound by the listeners
+	private final List<Acceptor> acceptors = new CopyOnWriteArrayList<>();
+	private final List<Thread> acceptorThreads = new CopyOnWriteArrayList<>();
+	private final List<LogHandler> logHandlers = new CopyOnWriteArrayList<>();  // of all the hosts ever created
+	private final Map<Path, FileWatcher> watchers = new ConcurrentHashMap<>();  // by resources directory
+	private TimerWheel timer;
+	private ScheduledExecutorService reloader;
+	private volatile AdminServer admin;  // null if disabled
+
+	/**
+	 * Sets up an embedded server. The properties set take precedence over the
+	 * configuration file, and the ones not set anywhere take the defaults of 
+	 * an embedded server: any free port, the working directory as resources 
+	 * and log directory, and no directory listings.
+	 */
+	public static class Builder {
+
+		private String wd = new File("").getAbsolutePath();
+		private String configFile;  // null to use the default one if it exists
+		private final Properties defaults = new Properties();
+		private final Properties properties;
+		private final Map<String, MiniServlet> handlers = new LinkedHashMap<>();
+		private ExecutorService executor;
+		private final List<LogSink> sinks = new ArrayList<>();
+
+		/**
+		 * Creates a new Builder.
+		 */
+		public Builder() {
+			defaults.setProperty("PORT", "0");
+			defaults.setProperty("DIRECTORY", "");
+			defaults.setProperty("DIRECTORY_INDEX", "index.html");
+			defaults.setProperty("ALLOW", "false");
+			defaults.setProperty("LOG_INDEX", "");
+			properties = new Properties(defaults);
+		}
+
+		/**
+		 * Sets the working directory, the relative paths of the configuration
+		 * are resolved from it. It is the current directory by default.
+		 *
+		 * @param wd path of the working directory
+		 * @return this builder
+		 */
+		public Builder workingDirectory(String wd) {
+			this.wd = wd;
+			return this;
+		}
+
+		/**
+		 * Sets the configuration file, which must exist. By default the 
+		 * config.properties of the working directory is read if it exists.
+		 *
+		 * @param path path of the file, relative to the working directory
+		 * @return this builder
+		 */
+		public Builder configFile(String path) {
+			this.configFile = path;
+			return this;
+		}
+
+		/**
+		 * Sets a property as in the configuration file.
+		 *
+		 * @param name name of the property, i.e. "SERVLET_THREADS"
+		 * @param value value of the property
+		 * @return this builder
+		 */
+		public Builder property(String name, String value) {
+			properties.setProperty(name, value);
+			return this;
+		}
+
+		/**
+		 * Sets the port to listen.
+		 *
+		 * @param port port of the HTTP listener, 0 for any free one
+		 * @return this builder
+		 * @see WebServer#getAddress()
+		 */
+		public Builder port(int port) {
+			return property("PORT", String.valueOf(port));
+		}
+
+		/**
+		 * Sets the executor that runs the connections instead of the workers
+		 * of the acceptors. The server does not stop it.
+		 *
+		 * @param executor runs the task of each connection
+		 * @return this builder
+		 */
+		public Builder executor(ExecutorService executor) {
+			this.executor = executor;
+			return this;
+		}
+
+		/**
+		 * Serves a route with a servlet instance, shared by all its requests.
+		 * It replaces the SERVLETS and ROUTES routes with the same pattern.
+		 *
+		 * @param route pattern of the route as in ROUTES, i.e. "/hello" or "/users/{id}"
+		 * @param servlet servlet answering the requests
+		 * @return this builder
+		 */
+		public Builder servlet(String route, MiniServlet servlet) {
+			handlers.put(route, servlet);
+			return this;
+		}
+
+		/**
+		 * Adds a receiver of the accesses and errors of all the hosts.
+		 *
+		 * @param sink receiver of the log records
+		 * @return this builder
+		 */
+		public Builder logSink(LogSink sink) {
+			sinks.add(sink);
+			return this;
+		}
+
+		/**
+		 * Creates the server, loading its configuration. It does not listen
+		 * until it is started.
+		 *
+		 * @return the server
+		 * @throws IllegalArgumentException If the configuration file set does
+		 * not exist or a value is not valid
+		 * @throws IOException If a problem occurs while reading the configuration file
+		 */
+		public WebServer build() throws IOException {
+			return new WebServer(this);
+		}
+	}
+
 	/**
 	 * Creates a new WebServer with the parameters from a configuration file.
-	 * 
-	 * @param wd absolute path of the working directory, where the configuration 
+	 *
+	 * @param wd absolute path of the working directory, where the configuration
 	 * file must be located
 	 * @throws IllegalArgumentException If the configuration file does not exist
 	 * @throws IOException If a problem occurs while handling the configuration file
-	 * @throws SecurityException If a security manager exists and its 
+	 * @throws SecurityException If a security manager exists and its
 	 * SecurityManager.checkRead(java.lang.String) method denies read access to the configuration file
 	 */
 	public WebServer(String wd) throws IOException {
-		WD = wd;
+		this(new Builder().workingDirectory(wd).configFile(CONFIG));
+	}
+
+	/**
+	 * Creates a new WebServer from a builder.
+	 *
+	 * @param b settings of the server
+	 * @throws IllegalArgumentException If the configuration file set does not exist
+	 * @throws IOException If a problem occurs while handling the configuration file
+	 */
+	private WebServer(Builder b) throws IOException {
+		WD = b.wd.endsWith("/") || b.wd.endsWith(File.separator) ? b.wd : b.wd + File.separator;
+		started = System.nanoTime();
+		overrides = new Properties(b.defaults);
+		overrides.putAll(b.properties);
+		handlers = new LinkedHashMap<>(b.handlers);
+		executor = b.executor;
+		sinks = new ArrayList<>(b.sinks);
 
 		// Check if exists the config file
-		final String CONFIG = "config.properties";
-		if (!Files.exists(Paths.get(WD + CONFIG)))
+		String path = WD + (b.configFile == null ? CONFIG : b.configFile);
+		if (Files.exists(Paths.get(path)))
+			configFile = path;
+		else if (b.configFile == null)
+			configFile = null;
+		else
 			throw new IllegalArgumentException("No config file found");
-		
+
 		// Load the properties
-		loadProperties(WD + CONFIG);
+		if (configFile != null)
+			configModified = new File(configFile).lastModified();
+		config.set(ServerConfig.load(WD, configFile, overrides, handlers));
+		configLoaded = System.nanoTime();
 	}
 
 	/**
-	 * Loads the default properties from a configuration file.
-	 * 
-	 * @param path path of the configuration file
+	 * Creates a builder of an embedded server.
+	 *
+	 * @return a new builder
 	 */
-	private void loadProperties(String path) throws IOException {
-		FileInputStream input;
+	public static Builder builder() {
+		return new Builder();
+	}
 
-		// Open a stream to read the config file
-		input = new FileInputStream(path);
-			
-		// Load the properties
-		Properties prop = new Properties();
-		prop.load(input);
-
-		// Save the properties
-		port = Integer.parseInt(prop.getProperty("PORT"));
-		dir = WD + prop.getProperty("DIRECTORY");
-		dir_index = prop.getProperty("DIRECTORY_INDEX");
-		allow = prop.getProperty("ALLOW").equals("true");
-		log_index = WD + prop.getProperty("LOG_INDEX");
+	/**
+	 * Reloads the configuration file if it was modified since the last load.
+	 * The new values apply to the connections accepted from now on. The port
+	 * and the log directory need a restart to change.
+	 */
+	private void reloadConfig() {
+		long modified = new File(configFile).lastModified();
+		if (modified == configModified)
+			return;
+		configModified = modified;
+
+		try {
+			ServerConfig old = config.get();
+			ServerConfig updated = ServerConfig.load(WD, configFile, overrides, handlers);
+
+			if (needsRestart(old, updated))
+				System.err.println("PORT, ADMIN_PORT, LOG_*, TLS_*, SERVLET_THREADS and SERVLET_CONCURRENCY changes need a restart to apply");
+
+			// Hosts with a new resources directory get a new resolver
+			HostTable previous = hosts.get();
+			HostTable table = createHosts(updated, previous, updated.getPathCacheSize() == old.getPathCacheSize());
+			config.set(updated);
+			hosts.set(table);
+			closeUnused(previous, table);
+			bandwidth.configure(updated.getThrottleSettings());
+
+			System.out.println("Configuration reloaded");
+
+		} catch (IOException | RuntimeException e) {
+			// Keep the previous configuration
+			System.err.println("Error reloading the configuration: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Creates the table of the hosts of a configuration. A host that was in 
+	 * the previous table keeps its cache and logs, and its resolver if its
+	 * resources directory did not change.
+	 *
+	 * @param conf configuration
+	 * @param previous current table, null on start
+	 * @param sameCacheSize true if the path cache size did not change
+	 * @return the table of the hosts
+	 * @throws IOException If the log files of a new host cannot be opened
+	 * @throws IllegalArgumentException If a name is used by two hosts
+	 */
+	private HostTable createHosts(ServerConfig conf, HostTable previous, boolean sameCacheSize) throws IOException {
+		Map<String, HostContext> old = new HashMap<>();
+		if (previous != null) {
+			old.put("", previous.getDefault());
+			for (HostContext h : previous.getHosts())
+				old.put(h.getHost().getName(), h);
+		}
+
+		HostContext defaultHost = createHost(conf, conf.getDefaultHost(), old.get(""), sameCacheSize);
+		List<HostContext> named = new ArrayList<>();
+		for (VirtualHost vh : conf.getVirtualHosts())
+			named.add(createHost(conf, vh, old.get(vh.getName()), sameCacheSize));
+
+		return new HostTable(defaultHost, named);
+	}
+
+	/**
+	 * Creates the running state of a host. The log files of a named host are
+	 * prefixed with its name, i.e. 'example.com-accesslogs.txt'. Its resolver
+	 * and cache are told of the changes by the watcher of its resources 
+	 * directory, shared with the hosts of the same directory.
+	 *
+	 * @param conf configuration
+	 * @param vh host to create
+	 * @param old previous state of the host, null if it is new
+	 * @param sameCacheSize true if the path cache size did not change
+	 * @return the state of the host
+	 * @throws IOException If the log files of a new host cannot be opened or
+	 * its resources directory cannot be watched
+	 */
+	private HostContext createHost(ServerConfig conf, VirtualHost vh, HostContext old, boolean sameCacheSize)
+			throws IOException {
+		FileWatcher watcher = getWatcher(vh.getDir());
 		
-		// Close the stream
-		input.close();
+		if (old == null) {
+			String prefix = vh.getName() == null ? "" : vh.getName() + "-";
+			String ext = conf.getLogSettings().isBinary() ? ".bin" : ".txt";
+			LogHandler log = new LogHandler(conf.getLogIndex(), prefix + "accesslogs" + ext, 
+					prefix + "errorlogs" + ext, prefix + "slowlogs.txt", conf.getLogSettings(), sinks);
+			logHandlers.add(log);
+
+			ResponseCache cache = new ResponseCache(conf.getResponseCacheSize());
+			watcher.subscribe(cache);
+			return new HostContext(vh, new PathResolver(vh.getDir(), vh.getDirIndex(), conf.getPathCacheSize(), 
+					watcher), cache, log);
+		}
+
+		// The cached paths belong to the old resources directory
+		VirtualHost o = old.getHost();
+		PathResolver resolver = old.getResolver();
+		if (!sameCacheSize || !vh.getDir().equals(o.getDir()) || !vh.getDirIndex().equals(o.getDirIndex()))
+			resolver = new PathResolver(vh.getDir(), vh.getDirIndex(), conf.getPathCacheSize(), watcher);
+
+		// The cached responses follow the new resources directory
+		if (!vh.getDir().equals(o.getDir())) {
+			getWatcher(o.getDir()).unsubscribe(old.getCache());
+			watcher.subscribe(old.getCache());
+		}
+
+		return new HostContext(vh, resolver, old.getCache(), old.getLogHandler());
+	}
+
+	/**
+	 * Gets the watcher of a resources directory, creating it the first time.
+	 *
+	 * @param dir resources directory
+	 * @return the watcher of the directory
+	 * @throws IOException If the directory cannot be watched
+	 */
+	private FileWatcher getWatcher(String dir) throws IOException {
+		Path root = Paths.get(dir).toAbsolutePath().normalize();
+		FileWatcher w = watchers.get(root);
+		if (w == null) {
+			w = new FileWatcher(root);
+			watchers.put(root, w);
+		}
+		return w;
+	}
+
+	/**
+	 * Closes the resolvers and the watchers of a previous table that the 
+	 * current one does not use, and unsubscribes the caches of the removed hosts.
+	 *
+	 * @param previous previous table
+	 * @param current current table, null to close all of them
+	 */
+	private void closeUnused(HostTable previous, HostTable current) {
+		Set<PathResolver> resolvers = new HashSet<>();
+		Set<ResponseCache> caches = new HashSet<>();
+		Set<Path> roots = new HashSet<>();
+		if (current != null) {
+			List<HostContext> used = new ArrayList<>(current.getHosts());
+			used.add(current.getDefault());
+			for (HostContext h : used) {
+				resolvers.add(h.getResolver());
+				caches.add(h.getCache());
+				roots.add(Paths.get(h.getHost().getDir()).toAbsolutePath().normalize());
+			}
+		}
+
+		List<HostContext> all = new ArrayList<>(previous.getHosts());
+		all.add(previous.getDefault());
+		for (HostContext h : all) {
+			if (resolvers.add(h.getResolver()))
+				h.getResolver().close();
+			if (caches.add(h.getCache()))
+				watchers.get(Paths.get(h.getHost().getDir()).toAbsolutePath().normalize()).unsubscribe(h.getCache());
+		}
+
+		// Nobody listens to them anymore
+		watchers.keySet().removeIf(root -> {
+			if (roots.contains(root))
+				return false;
+			watchers.get(root).close();
+			return true;
+		});
+	}
+
+	/**
+	 * Prints the bytes sent of each class of responses and their average
+	 * throughput.
+	 */
+	private void printBandwidth() {
+		for (BandwidthScheduler.Traffic t : BandwidthScheduler.Traffic.values())
+			System.out.println("Sent " + t.name().toLowerCase() + " responses: " + bandwidth.getBytes(t) 
+					+ " bytes, " + Math.round(bandwidth.getAverageThroughput(t)) + " bytes/s");
+	}
+
+	/**
+	 * Checks if a new configuration changes values that only apply on start.
+	 *
+	 * @param old current configuration
+	 * @param updated new configuration
+	 * @return true if any of those values changed
+	 */
+	private static boolean needsRestart(ServerConfig old, ServerConfig updated) {
+		LogSettings a = old.getLogSettings(), b = updated.getLogSettings();
+
+		return updated.getPort() != old.getPort() || updated.getAdminPort() != old.getAdminPort()
+				|| !updated.getLogIndex().equals(old.getLogIndex())
+				|| a.isBinary() != b.isBinary() || a.getMaxSize() != b.getMaxSize()
+				|| a.getInterval() != b.getInterval() || a.getKeep() != b.getKeep()
+				|| a.isCompress() != b.isCompress()
+				|| updated.getServletThreads() != old.getServletThreads()
+				|| updated.getServletConcurrency() != old.getServletConcurrency()
+				|| tlsChanged(old.getTlsSettings(), updated.getTlsSettings());
 	}
-	
+
+	/**
+	 * Checks if the HTTPS listener settings changed.
+	 *
+	 * @param a current settings
+	 * @param b new settings
+	 * @return true if any of them changed
+	 */
+	private static boolean tlsChanged(TlsSettings a, TlsSettings b) {
+		return a.getPort() != b.getPort() || !String.valueOf(a.getKeystore()).equals(String.valueOf(b.getKeystore()))
+				|| !String.valueOf(a.getPassword()).equals(String.valueOf(b.getPassword()))
+				|| !a.getKeystoreType().equals(b.getKeystoreType())
+				|| !Arrays.equals(a.getProtocols(), b.getProtocols())
+				|| a.getSessionCacheSize() != b.getSessionCacheSize()
+				|| a.getSessionTimeout() != b.getSessionTimeout()
+				|| a.isSessionTickets() != b.isSessionTickets();
+	}
+
 	/**
-	 * Creates the server socket and waits for client connections.
-	 * 
-	 * @throws IOException If an I/O error occurs when opening the server socket
+	 * Creates the hosts, the pools and the acceptors, and starts the threads 
+	 * of the acceptors.
+	 *
+	 * @throws IOException If an I/O error occurs when opening the server sockets
+	 * or the log files.
+	 * @throws GeneralSecurityException If the keystore cannot be loaded
+	 * @throws IllegalStateException If the server was already started or stopped
+	 */
+	private void open() throws IOException, GeneralSecurityException {
+		if (!running.get() || !opened.compareAndSet(false, true))
+			throw new IllegalStateException("Server already started or stopped");
+		ServerConfig conf = config.get();
+
+		// Create the hosts, each one with its log handler, resolver of the 
+		// requested paths and cache of the servlet responses
+		hosts.set(createHosts(conf, null, true));
+		long hostsCreated = System.nanoTime();
+
+		// Create the timer that expires the connection deadlines
+		timer = new TimerWheel(100, 512);
+
+		// Create the pool that runs the servlets
+		servlets = new ServletExecutor(conf.getServletThreads(), conf.getServletConcurrency(), timer);
+
+		// Create the scheduler of the bandwidth of the responses
+		bandwidth = new BandwidthScheduler(conf.getThrottleSettings());
+
+		// Warm up before any client connects
+		WarmupSettings warmup = conf.getWarmupSettings();
+		if (warmup.isEnabled())
+			new Warmup(conf, hosts.get(), servlets, warmup).run();
+		long warmedUp = System.nanoTime();
+
+		// Check periodically the config file
+		if (configFile != null && conf.getReloadInterval() > 0) {
+			reloader = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread t = new Thread(r, "config-reloader");
+				t.setDaemon(true);
+				return t;
+			});
+			reloader.scheduleWithFixedDelay(this::reloadConfig, conf.getReloadInterval(),
+					conf.getReloadInterval(), TimeUnit.MILLISECONDS);
+		}
+
+		// Several listening sockets on the same port need SO_REUSEPORT
+		int n = conf.getAcceptors();
+		if (n > 1 && !Acceptor.isReusePortSupported()) {
+			System.err.println("SO_REUSEPORT not supported, using a single acceptor");
+			n = 1;
+		}
+
+		// Create the acceptors, each one with its own socket and workers. With
+		// the port 0, the first one chooses the port of the others
+		Acceptor.ConnectionFactory factory = client ->
+				new WebServerThread(client, config.get(), hosts.get(), servlets, null, timer, connections, 
+						bandwidth);
+
+		int port = conf.getPort();
+		for (int i = 0; i < n; i++) {
+			Acceptor a = new Acceptor(i, port, n > 1, conf.getWorkers(), executor, factory);
+			acceptors.add(a);
+			port = a.getAddress().getPort();
+		}
+		address = acceptors.get(0).getAddress();
+
+		// The same for HTTPS on its own port
+		TlsSettings tlsSettings = conf.getTlsSettings();
+		if (tlsSettings.isEnabled()) {
+			TlsContext tls = new TlsContext(tlsSettings);
+			Acceptor.ConnectionFactory tlsFactory = client ->
+					new WebServerThread(client, config.get(), hosts.get(), servlets, tls, timer, connections,
+							bandwidth);
+
+			int tlsPort = tlsSettings.getPort();
+			for (int i = 0; i < n; i++) {
+				Acceptor a = new Acceptor(n + i, tlsPort, n > 1, conf.getWorkers(), executor, tlsFactory);
+				acceptors.add(a);
+				tlsPort = a.getAddress().getPort();
+			}
+			tlsAddress = acceptors.get(n).getAddress();
+		}
+
+		// Show the state of the server on localhost
+		if (conf.getAdminPort() > 0)
+			admin = new AdminServer(conf.getAdminPort(), connections, acceptors, servlets, hosts::get, bandwidth);
+
+		long listening = System.nanoTime();
+		System.out.println("Started in " + Warmup.millis(started, listening) + " ms: configuration "
+				+ Warmup.millis(started, configLoaded) + " ms, hosts " + Warmup.millis(configLoaded, hostsCreated)
+				+ " ms, warmup " + Warmup.millis(hostsCreated, warmedUp) + " ms, listeners "
+				+ Warmup.millis(warmedUp, listening) + " ms");
+
+		// Working loop of each acceptor
+		for (Acceptor a : acceptors) {
+			Thread t = new Thread(a, "acceptor-" + acceptorThreads.size());
+			acceptorThreads.add(t);
+			t.start();
+		}
+	}
+
+	/**
+	 * Starts the server and waits until all the acceptors are closed.
+	 *
+	 * @throws IOException If an I/O error occurs when opening the server sockets
 	 * or the log files.
 	 */
 	private void run() throws IOException {
-        ServerSocket server = null;
-        Socket client;
-
-        try {		
-			
-            // Create a server socket
-            server = new ServerSocket(port);
-           
-            // Set a timeout of 300 secs
-            server.setSoTimeout(300000);
-
-			// Create the log handler
-			LogHandler logHandler = new LogHandler(log_index, "accesslogs.txt", "errorlogs.txt");
-			
-			// Working loop
-            while (true) {
-				
-                // Wait for connections
-                client = server.accept();
-
-                // Create a WebServerThread object with the new connection
-                WebServerThread serverThr = new WebServerThread(logHandler, client, dir, dir_index, allow);
-
-                // Initiate thread using the start() method
-                serverThr.start();
-            }
-
-        } catch (NumberFormatException e) {
-            System.err.println("Error: Invalid port value");
-			e.printStackTrace();
-        } catch (SocketTimeoutException e) {
-            System.err.println("Nothing received in 300 secs ");
+        try {
+			open();
+
+			for (Thread t : acceptorThreads)
+				t.join();
+
 		} catch (FileNotFoundException e) {
-			System.err.println("Log files not found");
-			
+			System.err.println("Log directory or keystore not found: " + e.getMessage());
+
+		} catch (GeneralSecurityException e) {
+			System.err.println("Error loading the keystore: " + e.getMessage());
+
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+
         } finally {
-            if (server != null)
-                server.close();
+			for (Acceptor a : acceptors)
+				a.close();
         }
     }
-	
+
+	/**
+	 * Starts the server in the background.
+	 *
+	 * @return completed with this server once it listens, or with the error
+	 * that stopped it from starting. An IllegalStateException if it was 
+	 * already started or stopped.
+	 */
+	public CompletableFuture<WebServer> start() {
+		CompletableFuture<WebServer> result = new CompletableFuture<>();
+
+		Thread t = new Thread(() -> {
+			try {
+				open();
+				result.complete(this);
+			} catch (IllegalStateException e) {
+				result.completeExceptionally(e);
+			} catch (IOException | GeneralSecurityException | RuntimeException e) {
+				// Free what was opened before the error
+				shutdown();
+				result.completeExceptionally(e);
+			}
+		}, "server-start");
+		t.start();
+
+		return result;
+	}
+
+	/**
+	 * Stops the server in the background, as shutdown() does.
+	 *
+	 * @return completed once the connections are closed and the logs written
+	 */
+	public CompletableFuture<Void> stop() {
+		Thread t = new Thread(this::shutdown, "server-stop");
+		t.start();
+
+		return stopped;
+	}
+
+	/**
+	 * Gets the address the HTTP listener is bound to.
+	 *
+	 * @return the local address, with the port chosen if it was 0; null if 
+	 * the server is not listening yet
+	 */
+	public InetSocketAddress getAddress() { return address; }
+
+	/**
+	 * Gets the address the HTTPS listener is bound to.
+	 *
+	 * @return the local address, null if there is no HTTPS listener or the 
+	 * server is not listening yet
+	 */
+	public InetSocketAddress getTlsAddress() { return tlsAddress; }
+
+	/**
+	 * Gets the address the admin listener is bound to.
+	 *
+	 * @return the local address, null if there is no admin listener or the 
+	 * server is not listening yet
+	 */
+	public InetSocketAddress getAdminAddress() {
+		AdminServer a = admin;
+		return a == null ? null : a.getAddress();
+	}
+
+	/**
+	 * Stops accepting connections, waits for the ones in progress up to the
+	 * drain timeout, closes the remaining ones and flushes the logs. A server
+	 * cannot be started again.
+	 */
+	public void shutdown() {
+		if (!running.compareAndSet(true, false))
+			return;
+
+		System.out.println("Shutting down, waiting for " + connections.size() + " connection(s)");
+
+		try {
+			// Stop accepting connections
+			for (Acceptor a : acceptors)
+				a.close();
+			if (reloader != null)
+				reloader.shutdownNow();
+
+			// Wait for the connections in progress
+			long deadline = System.currentTimeMillis() + config.get().getDrainTimeout();
+			for (Acceptor a : acceptors) {
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0)
+					break;
+				if (!a.isShared())
+					a.getWorkers().awaitTermination(remaining, TimeUnit.MILLISECONDS);
+			}
+
+			// The servlet requests finish out of the workers, and the shared
+			// executor is not stopped
+			while (!connections.isEmpty() && System.currentTimeMillis() < deadline)
+				Thread.sleep(50);
+
+			// Close the ones that did not finish in time
+			for (WebServerThread t : connections)
+				t.close();
+			for (Acceptor a : acceptors)
+				if (!a.isShared())
+					a.getWorkers().shutdownNow();
+			if (servlets != null)
+				servlets.close();
+			if (admin != null)
+				admin.close();
+
+			if (timer != null)
+				timer.stop();
+			if (hosts.get() != null)
+				closeUnused(hosts.get(), null);
+			if (bandwidth != null)
+				printBandwidth();
+
+			// Write the pending log records
+			for (LogHandler l : logHandlers)
+				l.close();
+
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (IOException e) {
+			System.err.println("Error during the shutdown: " + e.getMessage());
+		} finally {
+			stopped.complete(null);
+		}
+	}
+
 	/**
 	 * Main method.
-	 * 
+	 *
 	 * @param args array with the arguments (configuration file absolute path)
 	 * @throws IOException If an I/O error occurs while running the server.
 	 */
 	public static void main(String[] args) throws IOException {
-		
+
 		// Create a server
 		WebServer server = new WebServer(args[0]);
-		
+
+		// Drain the connections on SIGTERM / SIGINT
+		Runtime.getRuntime().addShutdownHook(new Thread(server::shutdown, "shutdown"));
+
 		// Run the server
 		server.run();
 	}
-    
+
 }
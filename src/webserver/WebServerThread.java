@@ -2,91 +2,282 @@ package webserver;
 
 import java.net.*;
 import java.io.*;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.net.ssl.SSLException;
 
 /**
- * Manages a single client TCP connection.
+ * Manages a single client TCP connection. It runs in a worker thread of the 
+ * acceptor that accepted the connection. A servlet request is finished by the
+ * servlet executor, so the worker is free while the servlet computes.
  * 
  * @author Ángel Miguélez Millos
  */
-public class WebServerThread extends Thread {
+public class WebServerThread implements Runnable {
 
-	private final String DIR_INDEX, DIR;
-	private final boolean ALLOW;
+	private final static AtomicLong COUNTER = new AtomicLong();
+	
+	private final long id;  // number of the connection
     private final Socket clientSocket;
-	private final LogHandler logHandler;
+	private final ServerConfig config;
+	private final HostTable hosts;
+	private final ServletExecutor servlets;
+	private final TlsContext tls;  // null for plain http
+	private final TimerWheel timer;
+	private final ConnectionTimeouts timeouts;
+	private final Set<WebServerThread> connections;
+	private final BandwidthScheduler bandwidth;
+	
+	// live state, read by the admin listener without locks
+	private final long created = System.currentTimeMillis();
+	private volatile String requestLine;  // null while waiting for the header
+	private volatile WriteTimeoutOutputStream output;
+	private volatile Http2Connection http2;  // null for http/1.x
 
 	/**
 	 * Saves the main server configuration and the client connection.
 	 * 
-	 * @param handler accesses and errors log handler
 	 * @param s socket of the client
-	 * @param defaultDir path to the resources directory
-	 * @param defaultFile default filename when access to a directory
-	 * @param allow allow value
+	 * @param config server configuration snapshot used during the whole connection
+	 * @param hosts sites served, with their resolvers, caches and logs
+	 * @param servlets runs the servlets out of the worker thread
+	 * @param tls encrypts the connection, null for plain http
+	 * @param timer timer used to expire the connection deadlines
+	 * @param connections connections being served, this one is added until it finishes
+	 * @param bandwidth shares the bandwidth of the server among the connections
 	 */
-    public WebServerThread(LogHandler handler, Socket s, String defaultDir, String defaultFile, boolean allow) {
-		DIR_INDEX = defaultDir;
-		DIR = defaultFile;
-		ALLOW = allow;
-		logHandler = handler;
+    public WebServerThread(Socket s, ServerConfig config, HostTable hosts, ServletExecutor servlets, 
+			TlsContext tls, TimerWheel timer, Set<WebServerThread> connections, BandwidthScheduler bandwidth) {
+		id = COUNTER.incrementAndGet();
 		clientSocket = s;
+		this.config = config;
+		this.hosts = hosts;
+		this.servlets = servlets;
+		this.tls = tls;
+		this.timer = timer;
+		this.timeouts = config.getTimeouts();
+		this.connections = connections;
+		this.bandwidth = bandwidth;
+		
+		connections.add(this);
     }
 
 	/**
 	 * Processes a message and updates the logs with the request exit status.
 	 */
+	@Override
     public void run() {
+		TimerWheel.Timeout headerDeadline = null;
+		boolean pending = false;  // the request finishes in another thread
+		RequestTrace trace = RequestTrace.acquire();
+		
         try {
-            // Set the input channel
-            BufferedReader sInput = new BufferedReader(new InputStreamReader(
-                    clientSocket.getInputStream()));
-
-            // Set the output channel
-            OutputStream sOutput = clientSocket.getOutputStream();
+			// Close the connection if the client stays idle or does not send
+			// the whole header in time
+			clientSocket.setSoTimeout(timeouts.getHeader());
+			headerDeadline = timer.schedule(this::expire, timeouts.getHeader());
+			
+            // Set the input and output channels
+            MinRateInputStream rated = new MinRateInputStream(clientSocket.getInputStream(), timeouts.getMinDataRate());
+			InputStream in = rated;
+            output = new WriteTimeoutOutputStream(clientSocket.getOutputStream(), 
+					timer, timeouts.getWrite(), clientSocket);
+			OutputStream out = output;
+			
+			// Encrypted, the handshake is done within the header deadline
+			if (tls != null) {
+				TlsConnection c = tls.open(in, out);
+				in = c.getInputStream();
+				out = c.getOutputStream();
+			}
+			InputStream sInput = new BufferedInputStream(in);
+			OutputStream sOutput = out;
+			
+			Throttle throttle = new Throttle(bandwidth, config.getThrottleSettings());
 			
             // Receive the message from the client
+			trace.begin(RequestTrace.Phase.READ);
 			String message = ServerUtils.readInput(sInput);
+			trace.end(RequestTrace.Phase.READ);
+			headerDeadline.cancel();
+			int eol = message.indexOf('\n');
+			requestLine = eol == -1 ? message : message.substring(0, eol);
+			
+			// Any further read belongs to the request body
+			clientSocket.setSoTimeout(timeouts.getBody());
 			
+			// HTTP/2 with prior knowledge or upgrading this request, the 
+			// connection serves many requests and is idle between them
+			if (tls == null && config.getHttp2Settings().isEnabled() 
+					&& (message.equals(Http2Connection.PREFACE_START) || Http2Connection.isUpgrade(message))) {
+				rated.disable();
+				clientSocket.setSoTimeout(timeouts.getHeader());
+				
+				http2 = new Http2Connection(id, clientSocket, sInput, sOutput, config, hosts, servlets, throttle);
+				http2.serve(message.equals(Http2Connection.PREFACE_START) ? null : message);
+				
 			// Process the message (if valid)
-			if (!message.isEmpty()) {
+			} else if (!message.isEmpty()) {
 				
 				System.out.println("SERVER: Received message");
 				System.out.println();
 				System.out.print(message);
 				
 				// Create a handler to manage the request
-				HttpRequestHandler handler = new HttpRequestHandler(sOutput, DIR_INDEX, DIR, ALLOW);
+				HttpRequestHandler handler = new HttpRequestHandler(sOutput, sInput, config, hosts, 
+						servlets, trace, throttle);
 				
-				// Process the request
-				handler.processMessage(message);
-								
-				// Write into a log file the connection exit status
-				logHandler.addLog(handler.getRequest(), 
-						ServerUtils.getClientIP(clientSocket), 
-						handler.getDate(), 
-						handler.getCode(), 
-						handler.getFile(),
-						handler.getMessage());
-				
-				System.out.println("------------------------------");
+				// Process the request, the connection is finished when the response is sent
+				CompletableFuture<HttpCode> done = handler.processMessage(message);
+				pending = true;
+				done.whenComplete((c, e) -> finish(handler, trace, sInput, sOutput, e));
+				return;
 			}
             	
             // Close the streams
             sInput.close();
             sOutput.close();
 
-        } catch (IOException e) {
-			System.out.println("Error in thread " + this.getId() + ": " + e.getMessage());
+        } catch (SocketTimeoutException e) {
+			System.out.println("Timeout in connection " + id + ": " + e.getMessage());
+			
+		} catch (SSLException e) {
+			System.out.println("TLS error in connection " + id + ": " + e.getMessage());
+			
+		} catch (IOException e) {
+			System.out.println("Error in connection " + id + ": " + e.getMessage());
 			e.printStackTrace();
 			
 		} finally {
-            try {
-				if (clientSocket != null)
-					clientSocket.close();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+			if (headerDeadline != null)
+				headerDeadline.cancel();
+			if (!pending) {
+				RequestTrace.release(trace);
+				release();
+			}
         }
     }
 	
+	/**
+	 * Writes into the logs the exit status of the request and closes the 
+	 * connection.
+	 * 
+	 * @param handler handler of the request
+	 * @param trace timing of the request, released
+	 * @param sInput input channel
+	 * @param sOutput output channel
+	 * @param error error while sending the response, null if none
+	 */
+	private void finish(HttpRequestHandler handler, RequestTrace trace, InputStream sInput, OutputStream sOutput, 
+			Throwable error) {
+		try {
+			if (error != null) {
+				System.out.println("Error in connection " + id + ": " + error.getMessage());
+				error.printStackTrace();
+			
+			} else {
+				// Write into a log file of the host the connection exit status
+				handler.log(ServerUtils.getClientIP(clientSocket));
+				
+				System.out.println("------------------------------");
+			}
+			
+			// Close the streams
+			sInput.close();
+			sOutput.close();
+			
+		} catch (IOException e) {
+			System.out.println("Error in connection " + id + ": " + e.getMessage());
+			e.printStackTrace();
+			
+		} finally {
+			RequestTrace.release(trace);
+			release();
+		}
+	}
+	
+	/**
+	 * Removes the connection from the ones being served and closes its socket.
+	 */
+	private void release() {
+		connections.remove(this);
+		
+		try {
+			if (clientSocket != null)
+				clientSocket.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Gets the number of the connection.
+	 * @return the connection id
+	 */
+	public long getId() { return id; }
+	
+	/**
+	 * Gets the address of the client.
+	 * @return the client ip
+	 */
+	public InetAddress getClientIP() { return ServerUtils.getClientIP(clientSocket); }
+	
+	/**
+	 * Gets the request being served.
+	 * @return the request line, or the first line of an HTTP/2 connection; 
+	 * null while waiting for the header
+	 */
+	public String getRequestLine() { return requestLine; }
+	
+	/**
+	 * Gets the bytes sent to the client, headers and TLS records included.
+	 * @return the number of bytes
+	 */
+	public long getBytesSent() {
+		WriteTimeoutOutputStream o = output;
+		return o == null ? 0 : o.getWritten();
+	}
+	
+	/**
+	 * Gets the time since the connection was accepted.
+	 * @return the age in milliseconds
+	 */
+	public long getAge() { return System.currentTimeMillis() - created; }
+	
+	/**
+	 * Gets the streams of an HTTP/2 connection.
+	 * @return the open streams, -1 for http/1.x
+	 */
+	public int getOpenStreams() {
+		Http2Connection c = http2;
+		return c == null ? -1 : c.getOpenStreams();
+	}
+	
+	/**
+	 * Checks if the connection waits for a request: the header of an 
+	 * http/1.x request, or a new stream of an HTTP/2 connection.
+	 * @return true if it is idle
+	 */
+	public boolean isIdle() { return requestLine == null || getOpenStreams() == 0; }
+	
+	/**
+	 * Closes the connection, making any blocked read or write fail.
+	 */
+	public void close() {
+		try {
+			clientSocket.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Closes the connection when the header deadline expires.
+	 */
+	private void expire() {
+		System.out.println("Header timeout in connection " + id + ", closing the connection");
+		close();
+	}
+	
 }
@@ -0,0 +1,106 @@
+package webserver;
+
+import java.io.Closeable;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Output stream that closes the connection when a write stays blocked for a
+ * given time, i.e. the client does not read the response. Instead of
+ * rescheduling a deadline on every write, a single timer task checks the
+ * write in progress when it expires and rearms itself.
+ * 
+ * @author Ángel Miguélez Millos
+ */
+public class WriteTimeoutOutputStream extends FilterOutputStream {
+
+	private final TimerWheel timer;
+	private final long timeout;		// ms without progress
+	private final Closeable connection;
+	
+	private volatile long lastProgress;
+	private volatile boolean writing;  // a write is blocked in the socket
+	private volatile TimerWheel.Timeout deadline;
+	private volatile boolean closed;
+	private volatile long written;  // bytes, the writes of a connection do not overlap
+	
+	/**
+	 * Creates a new WriteTimeoutOutputStream and arms its deadline.
+	 * 
+	 * @param out stream to write to
+	 * @param timer timer used to check the deadline
+	 * @param timeout max time without progress in milliseconds
+	 * @param connection connection closed when the deadline expires
+	 */
+	public WriteTimeoutOutputStream(OutputStream out, TimerWheel timer, long timeout, Closeable connection) {
+		super(out);
+		this.timer = timer;
+		this.timeout = timeout;
+		this.connection = connection;
+		
+		lastProgress = System.currentTimeMillis();
+		deadline = timer.schedule(this::check, timeout);
+	}
+	
+	@Override
+	public void write(int b) throws IOException {
+		lastProgress = System.currentTimeMillis();
+		writing = true;
+		try {
+			out.write(b);
+			written++;
+		} finally {
+			writing = false;
+		}
+	}
+	
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		lastProgress = System.currentTimeMillis();
+		writing = true;
+		try {
+			out.write(b, off, len);
+			written += len;
+		} finally {
+			writing = false;
+		}
+	}
+	
+	/**
+	 * Gets the bytes written to the connection so far.
+	 * 
+	 * @return the number of bytes
+	 */
+	public long getWritten() { return written; }
+	
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		deadline.cancel();
+		super.close();
+	}
+	
+	/**
+	 * Closes the connection if a write is blocked since the timeout, rearms the
+	 * deadline otherwise.
+	 */
+	private void check() {
+		if (closed)
+			return;
+		
+		long idle = writing ? System.currentTimeMillis() - lastProgress : 0;
+		
+		if (idle < timeout) {
+			deadline = timer.schedule(this::check, timeout - idle);
+			return;
+		}
+		
+		try {
+			System.out.println("Write timeout, closing the connection");
+			connection.close();
+		} catch (IOException e) {
+			System.out.println("Error while closing the connection: " + e.getMessage());
+		}
+	}
+}